@@ -0,0 +1,84 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.api;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+
+/**
+ * Values looked up in Kill Bill for an account, kept until a bus event tells they changed. At most
+ * {@code maxEntries} accounts are kept, the least recently used ones are dropped first.
+ */
+public class AccountCache<V> {
+
+  public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+  // Access ordered so that the eldest entry is the least recently used one, guarded by itself
+  private final Map<UUID, V> entries;
+  // Bumped by every invalidation, guarded by the map of entries
+  private long invalidations;
+
+  public AccountCache(final int maxEntries) {
+    this.entries =
+        new LinkedHashMap<UUID, V>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(final Map.Entry<UUID, V> eldest) {
+            return size() > maxEntries;
+          }
+        };
+  }
+
+  /**
+   * @param loader looks the value up in Kill Bill, a null value is not cached
+   */
+  @Nullable
+  public V get(final UUID accountId, final Supplier<V> loader) {
+    final long generation;
+    synchronized (entries) {
+      final V cached = entries.get(accountId);
+      if (cached != null) {
+        return cached;
+      }
+      generation = invalidations;
+    }
+
+    final V value = loader.get();
+    synchronized (entries) {
+      // An event received during the lookup may be about what the loader has just read
+      if (value != null && generation == invalidations) {
+        entries.put(accountId, value);
+      }
+    }
+    return value;
+  }
+
+  public void invalidate(final UUID accountId) {
+    synchronized (entries) {
+      invalidations++;
+      entries.remove(accountId);
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+}
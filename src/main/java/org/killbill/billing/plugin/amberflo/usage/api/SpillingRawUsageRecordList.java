@@ -0,0 +1,482 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.api;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.UUID;
+import org.joda.time.Chronology;
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClientException;
+import org.killbill.billing.usage.api.RawUsageRecord;
+
+/**
+ * Usage records handed back to Kill Bill, kept on heap in a columnar batch until they are
+ * estimated to take more than a threshold. Records added after that are written to a temp file as
+ * fixed size binary records, and read back from a memory mapped view of the file. Either way the
+ * list hands out read-only views, and the date and amount of a record are only built when Kill
+ * Bill reads them.
+ *
+ * <p>Records are added with {@link #add(UUID, String, long, String, long)}, then {@link #finish()}
+ * makes the list readable. The temp file is deleted once written, the mapping goes away with the
+ * list.
+ *
+ * <p>The list is ordered by date then subscription, records that compare equal staying in the
+ * order they were added in. Records usually come in a few sorted runs, one per meter or time slice
+ * for instance, ascending or descending; the list keeps track of them and merges them as they are
+ * read instead of sorting. Iterating streams the merge, the merged order is only indexed for the
+ * records {@link #get(int)} reached.
+ */
+public final class SpillingRawUsageRecordList extends AbstractList<RawUsageRecord>
+    implements RandomAccess, UsageRecordSink {
+
+  private static final int RECORD_BYTES = UsageRecordBatch.ROW_BYTES;
+  private static final int RECORDS_PER_SEGMENT = Integer.MAX_VALUE / RECORD_BYTES;
+  // Records gathered before being written to the temp file at once
+  private static final int WRITE_BATCH_RECORDS = 2048;
+  private static final int WRITE_BUFFER_BYTES = RECORD_BYTES * WRITE_BATCH_RECORDS;
+  private static final Comparator<UUID> SUBSCRIPTION_ORDER =
+      Comparator.nullsFirst(Comparator.naturalOrder());
+
+  private final long thresholdBytes;
+  private final UsageRecordBatch heapRecords = new UsageRecordBatch();
+  // Every record of the list shares the chronology, and with it the time zone
+  private final Chronology chronology = ISOChronology.getInstance();
+
+  // Subscriptions and unit types repeat on every record, the columns only hold their index
+  private final List<UUID> subscriptionIds = new ArrayList<>();
+  private final Map<UUID, Integer> subscriptionIndexes = new HashMap<>();
+  private final List<String> unitTypes = new ArrayList<>();
+  private final Map<String, Integer> unitTypeIndexes = new HashMap<>();
+  private final Map<Integer, BigDecimal> wideAmounts = new HashMap<>();
+  // Consecutive records nearly always share both, their index is only looked up when they change
+  private UUID lastSubscriptionId;
+  private int lastSubscriptionIndex = -1;
+  private String lastUnitType;
+  private int lastUnitTypeIndex = -1;
+
+  // First record of each run of records added in order or in strictly reverse order, whether the
+  // run is reversed, and the last record added
+  private int[] runStarts = new int[8];
+  private boolean[] descendingRuns = new boolean[8];
+  private int runCount;
+  private long lastSourceTimeInMillis;
+  private int lastRunSubscriptionIndex;
+  // Rank of each subscription index in the order of the subscriptions, once finished with runs
+  private int[] subscriptionRanks;
+  // Index of the first records of the list in the order of the list, as far as get reached
+  private int[] order;
+  private int orderedSize;
+  private UsageRecordRunMerger orderMerger;
+
+  // Set once the threshold is crossed
+  private UsageRecordBatch pendingRecords;
+  private FileChannel channel;
+  private ByteBuffer writeBuffer;
+  private MappedByteBuffer[] segments;
+  private int spilledSize;
+
+  /**
+   * @param thresholdBytes estimated heap size of the records past which they go to disk
+   */
+  public SpillingRawUsageRecordList(final long thresholdBytes) {
+    this.thresholdBytes = thresholdBytes;
+  }
+
+  /**
+   * @param amount decimal representation of the amount, as Amberflo sent it
+   * @param trackingId handed to Kill Bill as a hexadecimal string
+   * @throws NumberFormatException when the amount is not a number, the record is not added then
+   * @throws AmberfloClientException when the record cannot be written to disk
+   */
+  @Override
+  public void add(
+      final UUID subscriptionId,
+      final String unitType,
+      final long sourceTimeInMillis,
+      final String amount,
+      final long trackingId) {
+    final UsageRecordBatch records = recordsToAddTo();
+    final int subscription = subscriptionIndexOf(subscriptionId);
+    records.add(subscription, unitTypeIndexOf(unitType), sourceTimeInMillis, amount, trackingId);
+    trackRun(subscription, sourceTimeInMillis);
+    spillIfFull(records);
+  }
+
+  /**
+   * @throws AmberfloClientException when the record cannot be written to disk
+   */
+  public void add(
+      final UUID subscriptionId,
+      final String unitType,
+      final long sourceTimeInMillis,
+      final BigDecimal amount,
+      final long trackingId) {
+    final UsageRecordBatch records = recordsToAddTo();
+    final int subscription = subscriptionIndexOf(subscriptionId);
+    records.add(subscription, unitTypeIndexOf(unitType), sourceTimeInMillis, amount, trackingId);
+    trackRun(subscription, sourceTimeInMillis);
+    spillIfFull(records);
+  }
+
+  private UsageRecordBatch recordsToAddTo() {
+    if (segments != null) {
+      throw new IllegalStateException("Usage records were already finished");
+    }
+    if (pendingRecords == null
+        && (long) (heapRecords.size() + 1) * UsageRecordBatch.ROW_BYTES <= thresholdBytes) {
+      return heapRecords;
+    }
+    if (pendingRecords == null) {
+      pendingRecords = new UsageRecordBatch();
+    }
+    return pendingRecords;
+  }
+
+  // The second record of a run tells whether it is ascending or descending, a record that does not
+  // go on in the same direction starts a new run. Descending runs are strict, so that reading them
+  // backwards keeps the records that compare equal in the order they were added in
+  private void trackRun(final int subscription, final long sourceTimeInMillis) {
+    final int last = runCount - 1;
+    final int comparison = runCount == 0 ? 0 : compareToLast(subscription, sourceTimeInMillis);
+    if (runCount > 0 && runStarts[last] == size() - 2) {
+      descendingRuns[last] = comparison < 0;
+    } else if (runCount == 0 || (descendingRuns[last] ? comparison >= 0 : comparison < 0)) {
+      if (runCount == runStarts.length) {
+        runStarts = Arrays.copyOf(runStarts, runCount * 2);
+        descendingRuns = Arrays.copyOf(descendingRuns, runCount * 2);
+      }
+      runStarts[runCount] = size() - 1;
+      descendingRuns[runCount++] = false;
+    }
+    lastSourceTimeInMillis = sourceTimeInMillis;
+    lastRunSubscriptionIndex = subscription;
+  }
+
+  private int compareToLast(final int subscription, final long sourceTimeInMillis) {
+    if (sourceTimeInMillis != lastSourceTimeInMillis) {
+      return sourceTimeInMillis < lastSourceTimeInMillis ? -1 : 1;
+    }
+    if (subscription == lastRunSubscriptionIndex) {
+      return 0;
+    }
+    return SUBSCRIPTION_ORDER.compare(
+        subscriptionIds.get(subscription), subscriptionIds.get(lastRunSubscriptionIndex));
+  }
+
+  private void spillIfFull(final UsageRecordBatch records) {
+    if (records == pendingRecords && pendingRecords.size() == WRITE_BATCH_RECORDS) {
+      spill();
+    }
+  }
+
+  // Writes the pending records to the temp file
+  private void spill() {
+    try {
+      if (channel == null) {
+        openSpillFile();
+      }
+      for (int i = 0; i < pendingRecords.size(); i++) {
+        if (!writeBuffer.hasRemaining()) {
+          flush();
+        }
+        writeBuffer
+            .putInt(pendingRecords.subscription(i))
+            .putInt(pendingRecords.unitType(i))
+            .putLong(pendingRecords.sourceTimeInMillis(i))
+            .putLong(pendingRecords.unscaledAmount(i))
+            .putInt(pendingRecords.scale(i))
+            .putLong(pendingRecords.trackingId(i));
+        if (pendingRecords.scale(i) == UsageRecordBatch.WIDE_AMOUNT) {
+          wideAmounts.put(spilledSize, pendingRecords.amount(i));
+        }
+        spilledSize++;
+      }
+      pendingRecords.clear();
+    } catch (IOException e) {
+      close();
+      throw new AmberfloClientException("Unable to spill usage records to disk", e);
+    }
+  }
+
+  /**
+   * Makes the records readable, no record can be added afterwards.
+   *
+   * @throws AmberfloClientException when the spilled records cannot be mapped
+   */
+  public SpillingRawUsageRecordList finish() {
+    if (pendingRecords == null) {
+      segments = new MappedByteBuffer[0];
+      rankSubscriptions();
+      return this;
+    }
+
+    try {
+      spill();
+      pendingRecords = null;
+      flush();
+      final int segmentCount = (spilledSize + RECORDS_PER_SEGMENT - 1) / RECORDS_PER_SEGMENT;
+      final MappedByteBuffer[] mapped = new MappedByteBuffer[segmentCount];
+      for (int i = 0; i < segmentCount; i++) {
+        final long first = (long) i * RECORDS_PER_SEGMENT;
+        final long count = Math.min(RECORDS_PER_SEGMENT, spilledSize - first);
+        mapped[i] =
+            channel.map(FileChannel.MapMode.READ_ONLY, first * RECORD_BYTES, count * RECORD_BYTES);
+      }
+      segments = mapped;
+      rankSubscriptions();
+    } catch (IOException e) {
+      throw new AmberfloClientException("Unable to map spilled usage records", e);
+    } finally {
+      // The mapping outlives the channel, closing it deletes the file
+      close();
+    }
+    return this;
+  }
+
+  // The few subscriptions of an account are sorted once, the merge compares their ranks
+  private void rankSubscriptions() {
+    if (runCount <= 1) {
+      return;
+    }
+    final Integer[] bySubscription = new Integer[subscriptionIds.size()];
+    for (int i = 0; i < bySubscription.length; i++) {
+      bySubscription[i] = i;
+    }
+    Arrays.sort(
+        bySubscription,
+        (a, b) -> SUBSCRIPTION_ORDER.compare(subscriptionIds.get(a), subscriptionIds.get(b)));
+    subscriptionRanks = new int[bySubscription.length];
+    for (int rank = 0; rank < bySubscription.length; rank++) {
+      subscriptionRanks[bySubscription[rank]] = rank;
+    }
+  }
+
+  private UsageRecordRunMerger newMerger() {
+    return new UsageRecordRunMerger(this, runStarts, descendingRuns, runCount, subscriptionRanks);
+  }
+
+  public int getRunCount() {
+    return runCount;
+  }
+
+  /** Lets go of the temp file, for a list that will never be finished. */
+  public void close() {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.close();
+    } catch (IOException ignored) {
+      // The file is deleted on close, there is nothing left to do with it
+    }
+    channel = null;
+    writeBuffer = null;
+    pendingRecords = null;
+  }
+
+  public int getSpilledSize() {
+    return spilledSize;
+  }
+
+  @Override
+  public int size() {
+    return heapRecords.size()
+        + spilledSize
+        + (pendingRecords == null ? 0 : pendingRecords.size());
+  }
+
+  /** A view of the record, which reads it from the list whenever one of its getters is called. */
+  @Override
+  public RawUsageRecord get(final int index) {
+    checkFinished();
+    if (index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException("Index " + index + ", size " + size());
+    }
+    if (runCount > 1) {
+      return new UsageRecordView(this, orderedIndexOf(index));
+    }
+    // Records added in reverse order are read backwards
+    return new UsageRecordView(
+        this, runCount == 1 && descendingRuns[0] ? size() - 1 - index : index);
+  }
+
+  // The merge goes on only as far as the records asked for
+  private synchronized int orderedIndexOf(final int index) {
+    if (order == null) {
+      order = new int[size()];
+      orderMerger = newMerger();
+    }
+    while (orderedSize <= index) {
+      order[orderedSize++] = orderMerger.next();
+    }
+    return order[index];
+  }
+
+  /** Views of the records in order, merging their runs as it goes without indexing them. */
+  @Override
+  public Iterator<RawUsageRecord> iterator() {
+    checkFinished();
+    if (runCount <= 1) {
+      return super.iterator();
+    }
+    final UsageRecordRunMerger merger = newMerger();
+    return new Iterator<RawUsageRecord>() {
+      @Override
+      public boolean hasNext() {
+        return merger.hasNext();
+      }
+
+      @Override
+      public RawUsageRecord next() {
+        if (!merger.hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return new UsageRecordView(SpillingRawUsageRecordList.this, merger.next());
+      }
+    };
+  }
+
+  private void checkFinished() {
+    if (segments == null) {
+      throw new IllegalStateException("Usage records are not finished yet");
+    }
+  }
+
+  // The accessors below take the index of a record in the order it was added in
+  UUID subscriptionIdAt(final int index) {
+    return subscriptionIds.get(subscriptionIndexAt(index));
+  }
+
+  int subscriptionIndexAt(final int index) {
+    final int spilledIndex = index - heapRecords.size();
+    return spilledIndex < 0
+        ? heapRecords.subscription(index)
+        : segmentOf(spilledIndex).getInt(offsetOf(spilledIndex));
+  }
+
+  String unitTypeAt(final int index) {
+    final int spilledIndex = index - heapRecords.size();
+    return unitTypes.get(
+        spilledIndex < 0
+            ? heapRecords.unitType(index)
+            : segmentOf(spilledIndex).getInt(offsetOf(spilledIndex) + 4));
+  }
+
+  long sourceTimeInMillisAt(final int index) {
+    final int spilledIndex = index - heapRecords.size();
+    return spilledIndex < 0
+        ? heapRecords.sourceTimeInMillis(index)
+        : segmentOf(spilledIndex).getLong(offsetOf(spilledIndex) + 8);
+  }
+
+  long trackingIdAt(final int index) {
+    final int spilledIndex = index - heapRecords.size();
+    return spilledIndex < 0
+        ? heapRecords.trackingId(index)
+        : segmentOf(spilledIndex).getLong(offsetOf(spilledIndex) + 28);
+  }
+
+  DateTime dateAt(final int index) {
+    return new DateTime(sourceTimeInMillisAt(index), chronology);
+  }
+
+  BigDecimal amountAt(final int index) {
+    final int spilledIndex = index - heapRecords.size();
+    if (spilledIndex < 0) {
+      return heapRecords.amount(index);
+    }
+    final MappedByteBuffer segment = segmentOf(spilledIndex);
+    final int offset = offsetOf(spilledIndex);
+    final int scale = segment.getInt(offset + 24);
+    return scale == UsageRecordBatch.WIDE_AMOUNT
+        ? wideAmounts.get(spilledIndex)
+        : BigDecimal.valueOf(segment.getLong(offset + 16), scale);
+  }
+
+  private MappedByteBuffer segmentOf(final int spilledIndex) {
+    return segments[spilledIndex / RECORDS_PER_SEGMENT];
+  }
+
+  private static int offsetOf(final int spilledIndex) {
+    return (spilledIndex % RECORDS_PER_SEGMENT) * RECORD_BYTES;
+  }
+
+  private void openSpillFile() throws IOException {
+    final Path file = Files.createTempFile("amberflo-usage-", ".bin");
+    channel =
+        FileChannel.open(
+            file,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.DELETE_ON_CLOSE);
+    writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+  }
+
+  private void flush() throws IOException {
+    writeBuffer.flip();
+    while (writeBuffer.hasRemaining()) {
+      channel.write(writeBuffer);
+    }
+    writeBuffer.clear();
+  }
+
+  private int subscriptionIndexOf(final UUID subscriptionId) {
+    if (lastSubscriptionIndex < 0 || subscriptionId != lastSubscriptionId) {
+      lastSubscriptionIndex = indexOf(subscriptionId, subscriptionIds, subscriptionIndexes);
+      lastSubscriptionId = subscriptionId;
+    }
+    return lastSubscriptionIndex;
+  }
+
+  // Unit types are interned by the decoder, the same meter comes with the same instance
+  private int unitTypeIndexOf(final String unitType) {
+    if (lastUnitTypeIndex < 0 || unitType != lastUnitType) {
+      lastUnitTypeIndex = indexOf(unitType, unitTypes, unitTypeIndexes);
+      lastUnitType = unitType;
+    }
+    return lastUnitTypeIndex;
+  }
+
+  private static <T> int indexOf(
+      final T value, final List<T> values, final Map<T, Integer> indexes) {
+    Integer index = indexes.get(value);
+    if (index == null) {
+      index = values.size();
+      values.add(value);
+      indexes.put(value, index);
+    }
+    return index;
+  }
+}
@@ -16,26 +16,39 @@
 
 package org.killbill.billing.plugin.amberflo.usage.api;
 
-import java.math.BigDecimal;
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.killbill.billing.ObjectType;
+import org.killbill.billing.account.api.Account;
 import org.killbill.billing.account.api.AccountApiException;
 import org.killbill.billing.entitlement.api.Subscription;
 import org.killbill.billing.entitlement.api.SubscriptionApiException;
 import org.killbill.billing.entitlement.api.SubscriptionBundle;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.payment.api.PluginProperty;
-import org.killbill.billing.plugin.amberflo.usage.api.model.RawUsageRecordImpl;
-import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClientImpl;
-import org.killbill.billing.plugin.amberflo.usage.core.UsageConfigurationHandler;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClient;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClientException;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClientRegistry;
+import org.killbill.billing.plugin.amberflo.usage.client.Deadline;
+import org.killbill.billing.plugin.amberflo.usage.client.RecordAggregation;
+import org.killbill.billing.plugin.amberflo.usage.client.UsageRequestCoalescer;
+import org.killbill.billing.plugin.amberflo.usage.client.UsageRowHandler;
+import org.killbill.billing.plugin.amberflo.usage.client.UsageTrackingIds;
+import org.killbill.billing.plugin.amberflo.usage.core.UsageConfigProperties;
 import org.killbill.billing.plugin.api.PluginTenantContext;
 import org.killbill.billing.usage.api.RawUsageRecord;
 import org.killbill.billing.usage.plugin.api.UsageContext;
@@ -45,17 +58,66 @@ import org.killbill.billing.util.customfield.CustomField;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class UsagePluginApiImpl implements UsagePluginApi {
+public class UsagePluginApiImpl implements UsagePluginApi, AutoCloseable {
+
+  // Plugin property overriding the time budget of the tenant for a single call
+  public static final String USAGE_BUDGET_MILLIS_PROPERTY = "usageBudgetMillis";
+
+  // Custom field naming the Amberflo meter of a subscription
+  private static final String MEASURE_NAME_FIELD = "measure_name";
 
-  private final UsageConfigurationHandler usageConfigurationHandler;
   private final OSGIKillbillAPI killbillAPI;
+  private final AmberfloClientRegistry clientRegistry;
+  private final UsageRequestCoalescer requestCoalescer = new UsageRequestCoalescer();
+  private final AccountCache<String> externalKeys;
+  private final AccountCache<Map<String, UUID>> measureNames;
+  private final ExecutorService lookupExecutor;
+  // Kill Bill does not let the time zone of an account change, it is never invalidated
+  private final AccountCache<DateTimeZone> timeZones =
+      new AccountCache<>(AccountCache.DEFAULT_MAX_ENTRIES);
   private static final Logger logger = LoggerFactory.getLogger(UsagePluginApiImpl.class);
 
   public UsagePluginApiImpl(
-      final UsageConfigurationHandler usageConfigurationHandler,
-      final OSGIKillbillAPI killbillAPI) {
-    this.usageConfigurationHandler = usageConfigurationHandler;
+      final OSGIKillbillAPI killbillAPI, final AmberfloClientRegistry clientRegistry) {
+    this(
+        killbillAPI,
+        clientRegistry,
+        new AccountCache<>(AccountCache.DEFAULT_MAX_ENTRIES),
+        new AccountCache<>(AccountCache.DEFAULT_MAX_ENTRIES),
+        UsageConfigProperties.DEFAULT_LOOKUP_THREADS);
+  }
+
+  /**
+   * @param externalKeys external keys of the accounts, to be invalidated on ACCOUNT_CHANGE events
+   * @param measureNames subscriptions of the accounts by measure_name, to be invalidated on custom
+   *     field and subscription events
+   * @param lookupThreads number of threads looking up subscriptions, further lookups wait for one
+   */
+  public UsagePluginApiImpl(
+      final OSGIKillbillAPI killbillAPI,
+      final AmberfloClientRegistry clientRegistry,
+      final AccountCache<String> externalKeys,
+      final AccountCache<Map<String, UUID>> measureNames,
+      final int lookupThreads) {
     this.killbillAPI = killbillAPI;
+    this.clientRegistry = clientRegistry;
+    this.externalKeys = externalKeys;
+    this.measureNames = measureNames;
+    final AtomicInteger threadCount = new AtomicInteger();
+    this.lookupExecutor =
+        Executors.newFixedThreadPool(
+            lookupThreads,
+            runnable -> {
+              final Thread thread =
+                  new Thread(runnable, "amberflo-lookup-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  @Override
+  public void close() {
+    lookupExecutor.shutdownNow();
   }
 
   @Override
@@ -83,32 +145,66 @@ public class UsagePluginApiImpl implements UsagePluginApi {
     startDate = sanitizeDateTime(startDate, true);
     endDate = sanitizeDateTime(endDate, false);
 
-    String accountExternalKey = this.getExternalKeyFromAccount(context.getAccountId(), context);
-    AmberfloClientImpl client =
-        new AmberfloClientImpl(
-            usageConfigurationHandler.getConfigurable(context.getTenantId()), accountExternalKey);
-    Map<String, UUID> map = getMeasureName(context.getAccountId(), context);
-    List<RawUsageRecord> rawUsageRecordList = new ArrayList<>();
-    List<OutputDTO> listDTO = client.getUsageAccount(startDate, endDate);
-    for (int i = 0; i < listDTO.size(); i++) {
-
-      RawUsageRecordImpl rawUsageRecordImpl = new RawUsageRecordImpl();
-
-      try {
-        rawUsageRecordImpl.setSubscriptionId(map.get(listDTO.get(i).getMeasureName()));
-
-        rawUsageRecordImpl.setDate(getDateTimeFromMilis(listDTO.get(i).getSourceTimeInMillis()));
-        rawUsageRecordImpl.setUnitType(listDTO.get(i).getMeasureName());
-        rawUsageRecordImpl.setAmount(new BigDecimal(listDTO.get(i).getMeasureValue()));
-        rawUsageRecordImpl.setTrackingId(listDTO.get(i).getSourceTimeInMillis());
-
-        rawUsageRecordList.add(rawUsageRecordImpl);
-
-      } catch (Exception e) {
-        logger.error("{}", e.getMessage(), e);
+    AmberfloClient client = clientRegistry.getClient(context.getTenantId());
+    Deadline deadline = startDeadline(client, properties);
+    final UUID accountId = context.getAccountId();
+    String accountExternalKey = this.getExternalKeyFromAccount(accountId, context);
+    deadline.check("looking up account " + accountId);
+    // Past the threshold of the tenant the records go to disk instead of the Kill Bill heap
+    SpillingRawUsageRecordList rawUsageRecordList =
+        new SpillingRawUsageRecordList(client.getSpillThresholdBytes());
+    UsageRecordAggregator aggregator = newAggregator(client, accountId, context, startDate);
+    UsageRecordSink sink = aggregator == null ? rawUsageRecordList : aggregator;
+    UsageTrackingIds trackingIds = new UsageTrackingIds();
+    try {
+      // A dry run and the real invoice often ask for the same account and period together
+      final DateTime start = startDate;
+      final DateTime end = endDate;
+      if (client.isAggregated()) {
+        // Totals are queried meter by meter, for the meters the subscriptions are tagged with
+        Map<String, UUID> map = getMeasureName(accountId, context, deadline);
+        final UsageRowHandler handler = new AccountRecordConverter(sink, trackingIds, () -> map);
+        for (String meterApiName : map.keySet()) {
+          requestCoalescer.fetch(
+              new UsageRequestCoalescer.Key(
+                  context.getTenantId(), accountExternalKey, meterApiName, startDate, endDate),
+              deadline,
+              rows ->
+                  client.getUsageSubscription(
+                      accountExternalKey, meterApiName, start, end, deadline, rows),
+              handler);
+        }
+      } else {
+        // Only the external key is needed to query Amberflo, the subscriptions are looked up
+        // meanwhile and awaited when the first row is converted
+        final Future<Map<String, UUID>> measureNameLookup =
+            lookupExecutor.submit(() -> getMeasureName(accountId, context, deadline));
+        try {
+          final UsageRowHandler handler =
+              new AccountRecordConverter(
+                  sink,
+                  trackingIds,
+                  () -> awaitMeasureNames(measureNameLookup, accountId, deadline));
+          requestCoalescer.fetch(
+              new UsageRequestCoalescer.Key(
+                  context.getTenantId(), accountExternalKey, null, startDate, endDate),
+              deadline,
+              rows -> client.getUsageAccount(accountExternalKey, start, end, deadline, rows),
+              handler);
+          // A failed lookup fails the call even when Amberflo returned no rows
+          awaitMeasureNames(measureNameLookup, accountId, deadline);
+        } finally {
+          // Does nothing once the lookup is done, otherwise frees its thread for other calls
+          measureNameLookup.cancel(true);
+        }
       }
+    } catch (AmberfloClientException e) {
+      // Returning nothing here would bill zero usage, let Kill Bill fail and retry the invoice
+      logger.error("{}", e.getMessage(), e);
+      rawUsageRecordList.close();
+      throw e;
     }
-    return rawUsageRecordList;
+    return finish(rawUsageRecordList, aggregator);
   }
 
   @Override
@@ -135,53 +231,188 @@ public class UsagePluginApiImpl implements UsagePluginApi {
     startDate = sanitizeDateTime(startDate, true);
     endDate = sanitizeDateTime(endDate, false);
 
+    AmberfloClient client = clientRegistry.getClient(context.getTenantId());
+    Deadline deadline = startDeadline(client, properties);
     String customField = getCustomFieldFromSubscription(subscriptionId, tenantContext);
+    deadline.check("looking up the custom fields of subscription " + subscriptionId);
     if (customField == null || customField.isEmpty()) {
       logger.error("Custom field measure_name is not found");
       return Collections.emptyList();
     }
 
     String externalAccountId = getExternalKeyFromAccount(context.getAccountId(), tenantContext);
-    AmberfloClientImpl client =
-        new AmberfloClientImpl(
-            usageConfigurationHandler.getConfigurable(context.getTenantId()),
-            externalAccountId,
-            customField);
+    deadline.check("looking up account " + context.getAccountId());
+
+    // Past the threshold of the tenant the records go to disk instead of the Kill Bill heap
+    SpillingRawUsageRecordList rawUsageRecordList =
+        new SpillingRawUsageRecordList(client.getSpillThresholdBytes());
+    UsageRecordAggregator aggregator =
+        newAggregator(client, context.getAccountId(), tenantContext, startDate);
+    UsageRecordSink sink = aggregator == null ? rawUsageRecordList : aggregator;
+    UsageTrackingIds trackingIds = new UsageTrackingIds();
+    try {
+      final DateTime start = startDate;
+      final DateTime end = endDate;
+      requestCoalescer.fetch(
+          new UsageRequestCoalescer.Key(
+              context.getTenantId(), externalAccountId, customField, startDate, endDate),
+          deadline,
+          rows ->
+              client.getUsageSubscription(
+                  externalAccountId, customField, start, end, deadline, rows),
+          (customerId, measureName, sourceTimeInMillis, measureValue) ->
+              addRawUsageRecord(
+                  sink,
+                  trackingIds,
+                  subscriptionId,
+                  customerId,
+                  measureName,
+                  sourceTimeInMillis,
+                  measureValue));
+    } catch (AmberfloClientException e) {
+      logger.error("{}", e.getMessage(), e);
+      rawUsageRecordList.close();
+      throw e;
+    }
+    return finish(rawUsageRecordList, aggregator);
+  }
 
-    List<RawUsageRecord> rawUsageRecordList = new ArrayList<>();
-    List<OutputDTO> listDTO = client.getUsageSubscription(startDate, endDate);
-    for (int i = 0; i < listDTO.size(); i++) {
+  // Null when the tenant hands every record to Kill Bill as is
+  private UsageRecordAggregator newAggregator(
+      AmberfloClient client, UUID accountId, TenantContext context, DateTime startDate) {
+    final RecordAggregation aggregation = client.getRecordAggregation();
+    if (aggregation == null || aggregation == RecordAggregation.NONE) {
+      return null;
+    }
+    final DateTimeZone timeZone =
+        aggregation == RecordAggregation.PERIOD
+            ? DateTimeZone.UTC
+            : getTimeZone(accountId, context);
+    return new UsageRecordAggregator(aggregation, timeZone, startDate);
+  }
 
-      RawUsageRecordImpl rawUsageRecordImpl = new RawUsageRecordImpl();
+  private static List<RawUsageRecord> finish(
+      SpillingRawUsageRecordList rawUsageRecordList, UsageRecordAggregator aggregator) {
+    if (aggregator != null) {
+      aggregator.drainTo(rawUsageRecordList);
+    }
+    return rawUsageRecordList.finish();
+  }
 
-      try {
-        rawUsageRecordImpl.setSubscriptionId(subscriptionId);
+  private void addRawUsageRecord(
+      UsageRecordSink sink,
+      UsageTrackingIds trackingIds,
+      UUID subscriptionId,
+      String customerId,
+      String measureName,
+      long sourceTimeInMillis,
+      String measureValue) {
+    final long trackingId =
+        trackingIds.next(customerId, measureName, sourceTimeInMillis, measureValue);
+
+    // A record that cannot be written to disk fails the call, it is not skipped
+    try {
+      sink.add(subscriptionId, measureName, sourceTimeInMillis, measureValue, trackingId);
+    } catch (NumberFormatException e) {
+      logger.error("{}", e.getMessage(), e);
+    }
+  }
 
-        rawUsageRecordImpl.setDate(getDateTimeFromMilis(listDTO.get(i).getSourceTimeInMillis()));
-        rawUsageRecordImpl.setUnitType(listDTO.get(i).getMeasureName());
-        rawUsageRecordImpl.setAmount(new BigDecimal(listDTO.get(i).getMeasureValue()));
-        rawUsageRecordImpl.setTrackingId(listDTO.get(i).getSourceTimeInMillis());
+  // Converts the rows of an account query, the measure_name map is resolved with the first row and
+  // looked up once per run of rows of the same meter, whose name the decoder interned
+  private final class AccountRecordConverter implements UsageRowHandler {
+
+    private final UsageRecordSink sink;
+    private final UsageTrackingIds trackingIds;
+    private final Supplier<Map<String, UUID>> measureNames;
+    private Map<String, UUID> map;
+    private String lastMeasureName;
+    private UUID lastSubscriptionId;
+
+    private AccountRecordConverter(
+        UsageRecordSink sink,
+        UsageTrackingIds trackingIds,
+        Supplier<Map<String, UUID>> measureNames) {
+      this.sink = sink;
+      this.trackingIds = trackingIds;
+      this.measureNames = measureNames;
+    }
 
-        rawUsageRecordList.add(rawUsageRecordImpl);
-      } catch (Exception e) {
-        logger.error("{}", e.getMessage(), e);
+    @Override
+    public void onRow(
+        String customerId, String measureName, long sourceTimeInMillis, String measureValue) {
+      if (map == null || measureName != lastMeasureName) {
+        if (map == null) {
+          map = measureNames.get();
+        }
+        lastSubscriptionId = map.get(measureName);
+        lastMeasureName = measureName;
       }
+      addRawUsageRecord(
+          sink,
+          trackingIds,
+          lastSubscriptionId,
+          customerId,
+          measureName,
+          sourceTimeInMillis,
+          measureValue);
     }
-    return rawUsageRecordList;
+  }
+
+  // The budget of the tenant, unless the caller asked for another one with a plugin property
+  private Deadline startDeadline(AmberfloClient client, Iterable<PluginProperty> properties) {
+    long budgetMillis = client.getUsageBudgetMillis();
+    if (properties != null) {
+      for (PluginProperty property : properties) {
+        if (USAGE_BUDGET_MILLIS_PROPERTY.equals(property.getKey()) && property.getValue() != null) {
+          try {
+            long requestedMillis = Long.parseLong(property.getValue().toString().trim());
+            if (requestedMillis > 0) {
+              budgetMillis = requestedMillis;
+            }
+          } catch (NumberFormatException e) {
+            logger.warn(
+                "Ignoring invalid {} {}", USAGE_BUDGET_MILLIS_PROPERTY, property.getValue());
+          }
+        }
+      }
+    }
+    return Deadline.after(budgetMillis);
   }
 
   private String getExternalKeyFromAccount(UUID accountId, TenantContext context) {
+    return externalKeys.get(accountId, () -> lookUpExternalKey(accountId, context));
+  }
+
+  private String lookUpExternalKey(UUID accountId, TenantContext context) {
     try {
-      return killbillAPI.getAccountUserApi().getAccountById(accountId, context).getExternalKey();
+      final Account account = killbillAPI.getAccountUserApi().getAccountById(accountId, context);
+      // Saves another lookup to the calls summing the records of the account
+      timeZones.get(accountId, account::getTimeZone);
+      return account.getExternalKey();
     } catch (AccountApiException e) {
       logger.error("{}", e.getMessage(), e);
     }
     return null;
   }
 
-  private DateTime getDateTimeFromMilis(String milis) {
-    Date date = new Date(Long.parseLong(milis));
-    return new DateTime(date);
+  // UTC when the account cannot be looked up
+  private DateTimeZone getTimeZone(UUID accountId, TenantContext context) {
+    final DateTimeZone timeZone =
+        timeZones.get(
+            accountId,
+            () -> {
+              try {
+                return killbillAPI
+                    .getAccountUserApi()
+                    .getAccountById(accountId, context)
+                    .getTimeZone();
+              } catch (AccountApiException e) {
+                logger.error("{}", e.getMessage(), e);
+                return null;
+              }
+            });
+    return timeZone == null ? DateTimeZone.UTC : timeZone;
   }
 
   private String getCustomFieldFromSubscription(UUID subscriptionId, TenantContext context) {
@@ -191,32 +422,79 @@ public class UsagePluginApiImpl implements UsagePluginApi {
             .getCustomFieldsForObject(subscriptionId, ObjectType.SUBSCRIPTION, context);
 
     for (CustomField customField : customFields) {
-      if (customField.getFieldName().equals("measure_name")) return customField.getFieldValue();
+      if (customField.getFieldName().equals(MEASURE_NAME_FIELD)) return customField.getFieldValue();
     }
 
     return null;
   }
 
-  private Map<String, UUID> getMeasureName(UUID accountId, TenantContext context) {
+  private Map<String, UUID> getMeasureName(
+      UUID accountId, TenantContext context, Deadline deadline) {
+    final Map<String, UUID> map =
+        measureNames.get(accountId, () -> lookUpMeasureNames(accountId, context, deadline));
+    return map == null ? Collections.emptyMap() : map;
+  }
+
+  // Failures of the lookup are rethrown as they were raised on the lookup thread
+  private static Map<String, UUID> awaitMeasureNames(
+      Future<Map<String, UUID>> lookup, UUID accountId, Deadline deadline) {
+    try {
+      return lookup.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new AmberfloClientException(
+          "Looking up the subscriptions of account " + accountId + " failed", e.getCause());
+    } catch (TimeoutException e) {
+      throw deadline.exceeded("looking up the subscriptions of account " + accountId);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AmberfloClientException(
+          "Interrupted while looking up the subscriptions of account " + accountId, e);
+    }
+  }
+
+  // Null when the subscriptions cannot be listed, so that the next call tries again
+  private Map<String, UUID> lookUpMeasureNames(
+      UUID accountId, TenantContext context, Deadline deadline) {
     try {
       List<SubscriptionBundle> subscriptionBundles =
           killbillAPI.getSubscriptionApi().getSubscriptionBundlesForAccountId(accountId, context);
+      deadline.check("listing the subscriptions of account " + accountId);
       List<Subscription> subscriptions =
           subscriptionBundles.stream()
               .flatMap(p -> p.getSubscriptions().stream())
               .collect(Collectors.toList());
+
+      // The custom fields of every subscription of the account come with a single call, the
+      // first measure_name of a subscription is the one used
+      List<CustomField> customFields =
+          killbillAPI
+              .getCustomFieldUserApi()
+              .getCustomFieldsForAccountType(accountId, ObjectType.SUBSCRIPTION, context);
+      deadline.check("looking up the custom fields of account " + accountId);
+      Map<UUID, String> measureNameBySubscription = new HashMap<>();
+      for (CustomField customField : customFields) {
+        if (MEASURE_NAME_FIELD.equals(customField.getFieldName())) {
+          measureNameBySubscription.putIfAbsent(
+              customField.getObjectId(), customField.getFieldValue());
+        }
+      }
+
       Map<String, UUID> map = new HashMap<>();
       for (Subscription subscription : subscriptions) {
-        if (getCustomFieldFromSubscription(subscription.getId(), context) != null) {
-          map.put(
-              getCustomFieldFromSubscription(subscription.getId(), context), subscription.getId());
+        String measureName = measureNameBySubscription.get(subscription.getId());
+        if (measureName != null) {
+          map.put(measureName, subscription.getId());
         }
       }
-      return map;
+      // Shared by every call for the account until it is invalidated
+      return Collections.unmodifiableMap(map);
 
     } catch (SubscriptionApiException e) {
       logger.error("{}", e.getMessage(), e);
-      return Collections.emptyMap();
+      return null;
     }
   }
 
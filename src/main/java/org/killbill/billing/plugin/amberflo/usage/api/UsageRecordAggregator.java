@@ -0,0 +1,167 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.api;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.amberflo.usage.client.RecordAggregation;
+import org.killbill.billing.plugin.amberflo.usage.client.UsageTrackingIds;
+
+/**
+ * Sums the usage records of a call per subscription, unit type and bucket before they are handed
+ * to Kill Bill. Hours and days start in the time zone of the account; each total is dated at the
+ * start of its bucket, but never before the start of the call, so that the same usage aggregated
+ * again gets the same date, and the same tracking id, which is derived from the subscription, unit
+ * type and date only: a total that grows with late usage keeps its tracking id.
+ */
+final class UsageRecordAggregator implements UsageRecordSink {
+
+  private static final Comparator<Key> KEY_ORDER =
+      Comparator.comparingLong((Key key) -> key.bucketStartMillis)
+          .thenComparing(
+              key -> key.subscriptionId, Comparator.nullsFirst(Comparator.naturalOrder()))
+          .thenComparing(key -> key.unitType, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+  private final RecordAggregation aggregation;
+  private final DateTimeZone timeZone;
+  private final long startMillis;
+  private final Map<Key, Total> totals = new HashMap<>();
+
+  // Consecutive rows nearly always fall in the same bucket of the same meter
+  private long bucketStartMillis = Long.MIN_VALUE;
+  private long bucketEndMillis = Long.MIN_VALUE;
+  private UUID lastSubscriptionId;
+  private String lastUnitType;
+  private Total lastTotal;
+
+  /**
+   * @param aggregation HOUR, DAY or PERIOD
+   * @param timeZone time zone of the account, in which hours and days start
+   * @param startDate start of the call, the date of a period total
+   */
+  UsageRecordAggregator(
+      final RecordAggregation aggregation, final DateTimeZone timeZone, final DateTime startDate) {
+    this.aggregation = aggregation;
+    this.timeZone = timeZone;
+    this.startMillis = startDate.getMillis();
+    if (aggregation == RecordAggregation.PERIOD) {
+      bucketEndMillis = Long.MAX_VALUE;
+    }
+  }
+
+  @Override
+  public void add(
+      final UUID subscriptionId,
+      final String unitType,
+      final long sourceTimeInMillis,
+      final String amount,
+      final long trackingId) {
+    final BigDecimal value = new BigDecimal(amount);
+    if (sourceTimeInMillis < bucketStartMillis || sourceTimeInMillis >= bucketEndMillis) {
+      startBucket(sourceTimeInMillis);
+      lastTotal = null;
+    }
+    if (lastTotal == null || subscriptionId != lastSubscriptionId || unitType != lastUnitType) {
+      lastTotal =
+          totals.computeIfAbsent(
+              new Key(subscriptionId, unitType, bucketStartMillis), key -> new Total());
+      lastSubscriptionId = subscriptionId;
+      lastUnitType = unitType;
+    }
+    lastTotal.amount = lastTotal.amount.add(value);
+  }
+
+  private void startBucket(final long sourceTimeInMillis) {
+    final DateTime time = new DateTime(sourceTimeInMillis, timeZone);
+    final DateTime start;
+    final DateTime end;
+    if (aggregation == RecordAggregation.HOUR) {
+      start = time.hourOfDay().roundFloorCopy();
+      end = start.plusHours(1);
+    } else {
+      start = time.withTimeAtStartOfDay();
+      end = start.plusDays(1).withTimeAtStartOfDay();
+    }
+    bucketStartMillis = start.getMillis();
+    bucketEndMillis = end.getMillis();
+  }
+
+  /** Adds the totals to the records, ordered by date, subscription and unit type. */
+  void drainTo(final SpillingRawUsageRecordList records) {
+    final List<Key> keys = new ArrayList<>(totals.keySet());
+    keys.sort(KEY_ORDER);
+    for (final Key key : keys) {
+      final long dateMillis = Math.max(key.bucketStartMillis, startMillis);
+      records.add(
+          key.subscriptionId,
+          key.unitType,
+          dateMillis,
+          totals.get(key).amount,
+          UsageTrackingIds.ofTotal(
+              key.subscriptionId == null ? null : key.subscriptionId.toString(),
+              key.unitType,
+              dateMillis));
+    }
+    totals.clear();
+    lastTotal = null;
+  }
+
+  private static final class Total {
+
+    private BigDecimal amount = BigDecimal.ZERO;
+  }
+
+  private static final class Key {
+
+    private final UUID subscriptionId;
+    private final String unitType;
+    private final long bucketStartMillis;
+
+    private Key(final UUID subscriptionId, final String unitType, final long bucketStartMillis) {
+      this.subscriptionId = subscriptionId;
+      this.unitType = unitType;
+      this.bucketStartMillis = bucketStartMillis;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) o;
+      return bucketStartMillis == other.bucketStartMillis
+          && Objects.equals(subscriptionId, other.subscriptionId)
+          && Objects.equals(unitType, other.unitType);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(subscriptionId, unitType, bucketStartMillis);
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.api;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Usage records kept column by column. The subscription and unit type of a record are indexes in
+ * dictionaries held by the caller, its amount an unscaled long and a scale, so that adding a record
+ * allocates nothing but the occasional larger column.
+ */
+final class UsageRecordBatch {
+
+  // subscription index, unit type index, date, unscaled amount, scale, tracking id
+  static final int ROW_BYTES = 4 + 4 + 8 + 8 + 4 + 8;
+  // Scale of a record whose unscaled amount does not fit in a long, the amount is then kept aside
+  static final int WIDE_AMOUNT = Integer.MIN_VALUE;
+
+  private static final int INITIAL_CAPACITY = 256;
+  // Any number of up to 18 digits fits in a long
+  private static final int MAX_LONG_DIGITS = 18;
+
+  private int[] subscriptions = new int[INITIAL_CAPACITY];
+  private int[] unitTypes = new int[INITIAL_CAPACITY];
+  private long[] sourceTimesInMillis = new long[INITIAL_CAPACITY];
+  private long[] unscaledAmounts = new long[INITIAL_CAPACITY];
+  private int[] scales = new int[INITIAL_CAPACITY];
+  private long[] trackingIds = new long[INITIAL_CAPACITY];
+  private final Map<Integer, BigDecimal> wideAmounts = new HashMap<>();
+  private int size;
+
+  /**
+   * Adds a record whose amount is the decimal representation Amberflo sent, read the way {@link
+   * BigDecimal#BigDecimal(String)} does without creating one for plain decimals.
+   *
+   * @throws NumberFormatException when the amount is not a number, nothing is added then
+   */
+  void add(
+      final int subscription,
+      final int unitType,
+      final long sourceTimeInMillis,
+      final String amount,
+      final long trackingId) {
+    final int length = amount.length();
+    int i = 0;
+    boolean negative = false;
+    if (length > 0 && (amount.charAt(0) == '-' || amount.charAt(0) == '+')) {
+      negative = amount.charAt(0) == '-';
+      i++;
+    }
+
+    long unscaled = 0;
+    int digits = 0;
+    int scale = -1;
+    for (; i < length; i++) {
+      final char c = amount.charAt(i);
+      if (c >= '0' && c <= '9' && digits < MAX_LONG_DIGITS) {
+        unscaled = unscaled * 10 + (c - '0');
+        digits++;
+        if (scale >= 0) {
+          scale++;
+        }
+      } else if (c == '.' && scale < 0) {
+        scale = 0;
+      } else {
+        // Exponents, long amounts and malformed ones
+        add(subscription, unitType, sourceTimeInMillis, new BigDecimal(amount), trackingId);
+        return;
+      }
+    }
+    if (digits == 0) {
+      throw new NumberFormatException("Not an amount: \"" + amount + "\"");
+    }
+    append(
+        subscription,
+        unitType,
+        sourceTimeInMillis,
+        negative ? -unscaled : unscaled,
+        Math.max(scale, 0),
+        trackingId);
+  }
+
+  void add(
+      final int subscription,
+      final int unitType,
+      final long sourceTimeInMillis,
+      final BigDecimal amount,
+      final long trackingId) {
+    if (amount.unscaledValue().bitLength() > 63) {
+      wideAmounts.put(size, amount);
+      append(subscription, unitType, sourceTimeInMillis, 0, WIDE_AMOUNT, trackingId);
+    } else {
+      append(
+          subscription,
+          unitType,
+          sourceTimeInMillis,
+          amount.unscaledValue().longValue(),
+          amount.scale(),
+          trackingId);
+    }
+  }
+
+  private void append(
+      final int subscription,
+      final int unitType,
+      final long sourceTimeInMillis,
+      final long unscaledAmount,
+      final int scale,
+      final long trackingId) {
+    if (size == sourceTimesInMillis.length) {
+      final int capacity = size + (size >> 1);
+      subscriptions = Arrays.copyOf(subscriptions, capacity);
+      unitTypes = Arrays.copyOf(unitTypes, capacity);
+      sourceTimesInMillis = Arrays.copyOf(sourceTimesInMillis, capacity);
+      unscaledAmounts = Arrays.copyOf(unscaledAmounts, capacity);
+      scales = Arrays.copyOf(scales, capacity);
+      trackingIds = Arrays.copyOf(trackingIds, capacity);
+    }
+    subscriptions[size] = subscription;
+    unitTypes[size] = unitType;
+    sourceTimesInMillis[size] = sourceTimeInMillis;
+    unscaledAmounts[size] = unscaledAmount;
+    scales[size] = scale;
+    trackingIds[size] = trackingId;
+    size++;
+  }
+
+  int size() {
+    return size;
+  }
+
+  int subscription(final int index) {
+    return subscriptions[index];
+  }
+
+  int unitType(final int index) {
+    return unitTypes[index];
+  }
+
+  long sourceTimeInMillis(final int index) {
+    return sourceTimesInMillis[index];
+  }
+
+  long unscaledAmount(final int index) {
+    return unscaledAmounts[index];
+  }
+
+  int scale(final int index) {
+    return scales[index];
+  }
+
+  long trackingId(final int index) {
+    return trackingIds[index];
+  }
+
+  BigDecimal amount(final int index) {
+    return scales[index] == WIDE_AMOUNT
+        ? wideAmounts.get(index)
+        : BigDecimal.valueOf(unscaledAmounts[index], scales[index]);
+  }
+
+  // Keeps the columns to be filled again
+  void clear() {
+    wideAmounts.clear();
+    size = 0;
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.api;
+
+/**
+ * Merges the sorted runs of a {@link SpillingRawUsageRecordList}, for instance the rows of each
+ * meter or time slice, into the order of the records by date then subscription, one record at a
+ * time. A run is either ascending or strictly descending, the latter being read backwards. A
+ * binary heap holds one cursor per run, so that n records in k runs are ordered in O(n log k)
+ * without moving them or indexing them all. Records that compare equal keep the order they were
+ * added in.
+ */
+final class UsageRecordRunMerger {
+
+  private final SpillingRawUsageRecordList records;
+  private final int[] subscriptionRanks;
+  // Per run: next record, record past the last one, step from one record to the next, date and
+  // subscription rank of the next record
+  private final int[] cursors;
+  private final int[] ends;
+  private final int[] steps;
+  private final long[] times;
+  private final int[] ranks;
+  // Runs that still have records, the run of the next record first
+  private final int[] heap;
+  private int heapSize;
+
+  /**
+   * @param runStarts index of the first record of each run, in ascending order, the first one 0
+   * @param descendingRuns whether each run is descending
+   * @param subscriptionRanks rank of each subscription index in the order of the subscriptions
+   */
+  UsageRecordRunMerger(
+      final SpillingRawUsageRecordList records,
+      final int[] runStarts,
+      final boolean[] descendingRuns,
+      final int runCount,
+      final int[] subscriptionRanks) {
+    this.records = records;
+    this.subscriptionRanks = subscriptionRanks;
+    cursors = new int[runCount];
+    ends = new int[runCount];
+    steps = new int[runCount];
+    times = new long[runCount];
+    ranks = new int[runCount];
+    heap = new int[runCount];
+    for (int run = 0; run < runCount; run++) {
+      final int start = runStarts[run];
+      final int end = run + 1 < runCount ? runStarts[run + 1] : records.size();
+      if (descendingRuns[run]) {
+        cursors[run] = end - 1;
+        ends[run] = start - 1;
+        steps[run] = -1;
+      } else {
+        cursors[run] = start;
+        ends[run] = end;
+        steps[run] = 1;
+      }
+      readKey(run);
+      heap[run] = run;
+    }
+    heapSize = runCount;
+    for (int i = heapSize / 2 - 1; i >= 0; i--) {
+      siftDown(i);
+    }
+  }
+
+  boolean hasNext() {
+    return heapSize > 0;
+  }
+
+  /** Index of the next record in merged order. */
+  int next() {
+    final int run = heap[0];
+    final int index = cursors[run];
+    cursors[run] += steps[run];
+    if (cursors[run] != ends[run]) {
+      readKey(run);
+    } else {
+      heap[0] = heap[--heapSize];
+    }
+    siftDown(0);
+    return index;
+  }
+
+  private void readKey(final int run) {
+    times[run] = records.sourceTimeInMillisAt(cursors[run]);
+    ranks[run] = subscriptionRanks[records.subscriptionIndexAt(cursors[run])];
+  }
+
+  private void siftDown(int i) {
+    if (heapSize == 0) {
+      return;
+    }
+    final int run = heap[i];
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= heapSize) {
+        break;
+      }
+      if (child + 1 < heapSize && before(heap[child + 1], heap[child])) {
+        child++;
+      }
+      if (!before(heap[child], run)) {
+        break;
+      }
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = run;
+  }
+
+  // Earlier runs hold the records added first, which go first when dates and subscriptions match
+  private boolean before(final int run, final int other) {
+    if (times[run] != times[other]) {
+      return times[run] < times[other];
+    }
+    if (ranks[run] != ranks[other]) {
+      return ranks[run] < ranks[other];
+    }
+    return run < other;
+  }
+}
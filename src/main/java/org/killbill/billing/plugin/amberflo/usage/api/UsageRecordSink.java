@@ -0,0 +1,36 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.api;
+
+import java.util.UUID;
+import org.killbill.billing.plugin.amberflo.usage.client.UsageTrackingIds;
+
+/** Receives the usage records of a call as its rows are converted. */
+interface UsageRecordSink {
+
+  /**
+   * @param amount decimal representation of the amount, as Amberflo sent it
+   * @param trackingId tracking id of the row, see {@link UsageTrackingIds}
+   * @throws NumberFormatException when the amount is not a number, the record is not added then
+   */
+  void add(
+      UUID subscriptionId,
+      String unitType,
+      long sourceTimeInMillis,
+      String amount,
+      long trackingId);
+}
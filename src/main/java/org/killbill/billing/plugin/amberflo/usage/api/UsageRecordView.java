@@ -0,0 +1,63 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.api;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.amberflo.usage.client.UsageTrackingIds;
+import org.killbill.billing.usage.api.RawUsageRecord;
+
+/**
+ * Read-only record of a {@link SpillingRawUsageRecordList}, its values are read from the list each
+ * time a getter is called.
+ */
+final class UsageRecordView implements RawUsageRecord {
+
+  private final SpillingRawUsageRecordList records;
+  private final int index;
+
+  UsageRecordView(final SpillingRawUsageRecordList records, final int index) {
+    this.records = records;
+    this.index = index;
+  }
+
+  @Override
+  public UUID getSubscriptionId() {
+    return records.subscriptionIdAt(index);
+  }
+
+  @Override
+  public DateTime getDate() {
+    return records.dateAt(index);
+  }
+
+  @Override
+  public String getUnitType() {
+    return records.unitTypeAt(index);
+  }
+
+  @Override
+  public BigDecimal getAmount() {
+    return records.amountAt(index);
+  }
+
+  @Override
+  public String getTrackingId() {
+    return UsageTrackingIds.format(records.trackingIdAt(index));
+  }
+}
@@ -1,38 +0,0 @@
-/*
- * Copyright 2023 Wovenware, Inc
- *
- * Wovenware licenses this file to you under the Apache License, version 2.0
- * (the "License"); you may not use this file except in compliance with the
- * License. You may obtain a copy of the License at:
- *
- * http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
- * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
- * License for the specific language governing permissions and limitations
- * under the License.
- */
-
-package org.killbill.billing.plugin.amberflo.usage.api.model;
-
-import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
-import java.util.Map;
-import lombok.Getter;
-import lombok.Setter;
-
-@Getter
-@Setter
-@JsonIgnoreProperties(ignoreUnknown = true)
-public class Query {
-
-  private String customerId;
-  private String eventId;
-  private String meterApiName;
-  private TimeRange timeRange;
-  private Map<String, String> dimensions;
-  private String limit;
-  private String isAscending;
-  private String pageSize;
-  private String nextPageToken;
-}
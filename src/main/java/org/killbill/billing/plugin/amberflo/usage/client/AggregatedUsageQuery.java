@@ -0,0 +1,167 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+
+/**
+ * Asks Amberflo for the totals of one meter of one customer per day or per hour, rather than for
+ * every event. Each bucket of the answer with some usage becomes a single row, dated at the start
+ * of the bucket but never before the start of the query.
+ */
+public class AggregatedUsageQuery implements UsageResponseDecoder {
+
+  private static final ObjectMapper queryMapper = new ObjectMapper();
+
+  private static final String CLIENT_METERS_FIELD = "clientMeters";
+  private static final String VALUES_FIELD = "values";
+  private static final String VALUE_FIELD = "value";
+  private static final String BUCKET_START_FIELD = "secondsSinceEpochUtc";
+
+  /** Size of the buckets Amberflo sums the usage into. */
+  public enum Interval {
+    HOUR,
+    DAY
+  }
+
+  private final String customerId;
+  private final String meterApiName;
+  private final Interval interval;
+  private final long startSeconds;
+  private final long endSeconds;
+
+  public AggregatedUsageQuery(
+      String customerId,
+      String meterApiName,
+      Interval interval,
+      long startSeconds,
+      long endSeconds) {
+    this.customerId = customerId;
+    this.meterApiName = meterApiName;
+    this.interval = interval;
+    this.startSeconds = startSeconds;
+    this.endSeconds = endSeconds;
+  }
+
+  /** Body of the query, as sent to the Amberflo usage endpoint. */
+  public byte[] toJson() throws IOException {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+    try (JsonGenerator generator = queryMapper.getFactory().createGenerator(body)) {
+      generator.writeStartObject();
+      generator.writeStringField("meterApiName", meterApiName);
+      generator.writeStringField("aggregation", "SUM");
+      generator.writeStringField("timeGroupingInterval", interval.name());
+      generator.writeObjectFieldStart("timeRange");
+      generator.writeNumberField("startTimeInSeconds", startSeconds);
+      generator.writeNumberField("endTimeInSeconds", endSeconds);
+      generator.writeEndObject();
+      generator.writeObjectFieldStart("filter");
+      generator.writeArrayFieldStart("customerId");
+      generator.writeString(customerId);
+      generator.writeEndArray();
+      generator.writeEndObject();
+      generator.writeEndObject();
+    }
+    return body.toByteArray();
+  }
+
+  @Override
+  public String decode(InputStream content, UsageRowHandler handler) throws IOException {
+    try (JsonParser parser = queryMapper.getFactory().createParser(content)) {
+      decode(parser, handler);
+    }
+    return null;
+  }
+
+  @Override
+  public String decode(byte[] content, UsageRowHandler handler) throws IOException {
+    try (JsonParser parser = queryMapper.getFactory().createParser(content)) {
+      decode(parser, handler);
+    }
+    return null;
+  }
+
+  private void decode(JsonParser parser, UsageRowHandler handler) throws IOException {
+    if (parser.nextToken() != JsonToken.START_OBJECT) {
+      throw new AmberfloClientException("Unexpected Amberflo response, expected a JSON object");
+    }
+
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String fieldName = parser.getCurrentName();
+      final JsonToken token = parser.nextToken();
+      if (CLIENT_METERS_FIELD.equals(fieldName) && token == JsonToken.START_ARRAY) {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+          decodeClientMeter(parser, handler);
+        }
+      } else {
+        parser.skipChildren();
+      }
+    }
+  }
+
+  private void decodeClientMeter(JsonParser parser, UsageRowHandler handler) throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String fieldName = parser.getCurrentName();
+      final JsonToken token = parser.nextToken();
+      if (VALUES_FIELD.equals(fieldName) && token == JsonToken.START_ARRAY) {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+          decodeBucket(parser, handler);
+        }
+      } else {
+        parser.skipChildren();
+      }
+    }
+  }
+
+  private void decodeBucket(JsonParser parser, UsageRowHandler handler) throws IOException {
+    String value = null;
+    long bucketStartSeconds = -1;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String fieldName = parser.getCurrentName();
+      final JsonToken token = parser.nextToken();
+      if (VALUE_FIELD.equals(fieldName)
+          && (token.isNumeric() || token == JsonToken.VALUE_STRING)) {
+        value = parser.getText();
+      } else if (BUCKET_START_FIELD.equals(fieldName) && token.isNumeric()) {
+        bucketStartSeconds = parser.getLongValue();
+      } else {
+        parser.skipChildren();
+      }
+    }
+
+    if (value == null || bucketStartSeconds < 0) {
+      return;
+    }
+    try {
+      // Amberflo returns every bucket of the range, those without usage are not worth a record
+      if (new BigDecimal(value).signum() == 0) {
+        return;
+      }
+    } catch (NumberFormatException e) {
+      throw new AmberfloClientException("Unexpected Amberflo usage value " + value, e);
+    }
+    handler.onRow(
+        customerId, meterApiName, Math.max(bucketStartSeconds, startSeconds) * 1000, value);
+  }
+}
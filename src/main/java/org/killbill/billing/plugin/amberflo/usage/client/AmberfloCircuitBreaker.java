@@ -0,0 +1,166 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.killbill.billing.plugin.amberflo.usage.core.UsageConfigProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops sending requests to Amberflo for a tenant once too many of its recent requests failed, so
+ * invoice threads fail fast instead of each waiting out its own timeouts and retries.
+ *
+ * <p>The outcomes of the last {@code circuitBreakerWindowSize} requests are kept. Once at least
+ * {@code circuitBreakerMinimumCalls} of them are known and the share of failures reaches {@code
+ * circuitBreakerFailureRateThreshold} percent, the breaker opens for {@code
+ * circuitBreakerOpenMillis}. After that a single trial request is let through: the breaker closes
+ * again if it succeeds and stays open if it fails.
+ */
+public class AmberfloCircuitBreaker {
+
+  private static final Logger logger = LoggerFactory.getLogger(AmberfloCircuitBreaker.class);
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final int minimumCalls;
+  private final int failureRateThreshold;
+  private final long openNanos;
+
+  // Ring buffer of the last outcomes, true for a failure
+  private final boolean[] outcomes;
+  private int position;
+  private int calls;
+  private int failures;
+
+  private State state = State.CLOSED;
+  private long openedAtNanos;
+  private boolean trialInFlight;
+
+  public AmberfloCircuitBreaker(final UsageConfigProperties props) {
+    this.outcomes = new boolean[props.getCircuitBreakerWindowSize()];
+    this.minimumCalls = Math.min(props.getCircuitBreakerMinimumCalls(), outcomes.length);
+    this.failureRateThreshold = props.getCircuitBreakerFailureRateThreshold();
+    this.openNanos = props.getCircuitBreakerOpenMillis() * 1000000L;
+  }
+
+  /**
+   * @throws AmberfloClientException when the breaker is open, or half open with its trial request
+   *     already in flight
+   */
+  public synchronized void acquirePermission() {
+    if (state == State.OPEN) {
+      if (System.nanoTime() - openedAtNanos < openNanos) {
+        throw new AmberfloClientException("Amberflo circuit breaker is open, not sending request");
+      }
+      state = State.HALF_OPEN;
+      trialInFlight = false;
+    }
+
+    if (state == State.HALF_OPEN) {
+      if (trialInFlight) {
+        throw new AmberfloClientException(
+            "Amberflo circuit breaker is half open, waiting on its trial request");
+      }
+      trialInFlight = true;
+    }
+  }
+
+  // Amberflo answered, even if it was to reject the request
+  public synchronized void onSuccess() {
+    if (state == State.HALF_OPEN) {
+      logger.info("Amberflo answered again, closing the circuit breaker");
+      state = State.CLOSED;
+      trialInFlight = false;
+      reset();
+      return;
+    }
+    record(false);
+  }
+
+  // Amberflo could not be reached or kept failing once retries ran out
+  public synchronized void onFailure() {
+    if (state == State.HALF_OPEN) {
+      open();
+      return;
+    }
+
+    record(true);
+    if (state == State.CLOSED
+        && calls >= minimumCalls
+        && failures * 100L >= (long) failureRateThreshold * calls) {
+      open();
+    }
+  }
+
+  // The request was never sent or its outcome is unknown, a half open breaker lets another trial
+  // request through
+  public synchronized void release() {
+    if (state == State.HALF_OPEN) {
+      trialInFlight = false;
+    }
+  }
+
+  public synchronized State getState() {
+    if (state == State.OPEN && System.nanoTime() - openedAtNanos >= openNanos) {
+      return State.HALF_OPEN;
+    }
+    return state;
+  }
+
+  public synchronized Map<String, Object> getDetails() {
+    final Map<String, Object> details = new HashMap<>();
+    details.put("state", getState().name());
+    details.put("recentCalls", calls);
+    details.put("recentFailures", failures);
+    return details;
+  }
+
+  private void record(final boolean failure) {
+    if (calls == outcomes.length) {
+      if (outcomes[position]) {
+        failures--;
+      }
+    } else {
+      calls++;
+    }
+    outcomes[position] = failure;
+    if (failure) {
+      failures++;
+    }
+    position = (position + 1) % outcomes.length;
+  }
+
+  private void open() {
+    logger.warn(
+        "Opening the Amberflo circuit breaker after {} failures in {} calls", failures, calls);
+    state = State.OPEN;
+    openedAtNanos = System.nanoTime();
+    trialInFlight = false;
+  }
+
+  private void reset() {
+    position = 0;
+    calls = 0;
+    failures = 0;
+  }
+}
@@ -16,9 +16,8 @@
 
 package org.killbill.billing.plugin.amberflo.usage.client;
 
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import org.joda.time.DateTime;
-import org.killbill.billing.plugin.amberflo.usage.api.OutputDTO;
 
 public interface AmberfloClient {
 
@@ -31,6 +30,20 @@ public interface AmberfloClient {
    *
    * There are checks in place for these scenarios to ensure proper functionality.
    *
+   * Amberflo splits large results into pages linked by a nextPageToken; the token
+   * is followed until it runs out and every row is handed to the handler as soon
+   * as it has been decoded, so neither the pages nor their rows are accumulated.
+   *
+   * Ranges longer than the configured slice duration are split into slices that
+   * are fetched concurrently. Their rows are then handed over slice by slice, in
+   * chronological order and on the calling thread, each row exactly once.
+   *
+   * An instance holds no per-call state and is shared by every call made for a
+   * tenant, the customer and meter to query are passed with each call.
+   *
+   * @param customerId Amberflo customer, the external key of the Kill Bill account
+   *
+   * @param meterApiName Amberflo meter, the measure_name of the subscription
    *
    * @param startDate Starting value of the range to verify usage of a specified
    * account in the format YYYY-MM-DD
@@ -38,11 +51,80 @@ public interface AmberfloClient {
    * @param endDate Starting value of the range to verify usage of a specified
    * account in the format YYYY-MM-DD
    *
-   * @return Returns a list using the OutputDTO model that contains: customerID,
-   * measureValue, sourceTimeInMillis, and measureName
+   * @param deadline Budget of the whole usage call: waits and HTTP timeouts are
+   * cut to what is left of it and the call fails once it is spent
+   *
+   * @param handler Receives customerId, measureName, sourceTimeInMillis and
+   * measureValue of each row, in the order Amberflo returned them
+   *
+   * @throws AmberfloClientException if any page cannot be fetched or decoded, or
+   * when the deadline passes first
+   */
+
+  void getUsageAccount(
+      String customerId,
+      DateTime startDate,
+      DateTime endDate,
+      Deadline deadline,
+      UsageRowHandler handler);
+
+  void getUsageSubscription(
+      String customerId,
+      String meterApiName,
+      DateTime startDate,
+      DateTime endDate,
+      Deadline deadline,
+      UsageRowHandler handler);
+
+  /*
+   * Non-blocking variants of the methods above. The request is sent right away
+   * and the calling thread is free to do other work; pages are fetched and
+   * decoded on the HTTP client's executor, one after the other, and the handler
+   * is called from that executor.
+   *
+   * @return A future completed once the last row has been handled, or completed
+   * exceptionally with an AmberfloClientException, at the latest once the
+   * deadline passes. Rows decoded after that are not handed over
    */
 
-  List<OutputDTO> getUsageAccount(DateTime startSate, DateTime endDate);
+  CompletableFuture<Void> getUsageAccountAsync(
+      String customerId,
+      DateTime startDate,
+      DateTime endDate,
+      Deadline deadline,
+      UsageRowHandler handler);
 
-  List<OutputDTO> getUsageSubscription(DateTime startSate, DateTime endDate);
+  CompletableFuture<Void> getUsageSubscriptionAsync(
+      String customerId,
+      String meterApiName,
+      DateTime startDate,
+      DateTime endDate,
+      Deadline deadline,
+      UsageRowHandler handler);
+
+  /*
+   * Whether getUsageSubscription returns the totals of the meter per day or per
+   * hour, one row per bucket with some usage, rather than every event. The
+   * buckets are dated at their start, or at the start of the range for the
+   * first one.
+   */
+  boolean isAggregated();
+
+  /*
+   * Time a usage call may take for the tenant of this client, Kill Bill lookups
+   * included, unless the call brings a budget of its own.
+   */
+  long getUsageBudgetMillis();
+
+  /*
+   * Estimated heap size the usage records of a single call may take for the
+   * tenant of this client, the records past it are kept on disk.
+   */
+  long getSpillThresholdBytes();
+
+  /*
+   * How the usage records of the tenant are summed before they are handed to
+   * Kill Bill.
+   */
+  RecordAggregation getRecordAggregation();
 }
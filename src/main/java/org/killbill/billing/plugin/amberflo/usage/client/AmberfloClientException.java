@@ -13,24 +13,19 @@
  * License for the specific language governing permissions and limitations
  * under the License.
  */
-package org.killbill.billing.plugin.amberflo.usage.api.model;
 
-import java.math.BigDecimal;
-import java.util.UUID;
-import lombok.Getter;
-import lombok.NoArgsConstructor;
-import lombok.Setter;
-import org.joda.time.DateTime;
-import org.killbill.billing.usage.api.RawUsageRecord;
+package org.killbill.billing.plugin.amberflo.usage.client;
 
-@Setter
-@Getter
-@NoArgsConstructor
-public class RawUsageRecordImpl implements RawUsageRecord {
+/** Raised when Amberflo cannot be reached or answers with something the plugin cannot decode. */
+public class AmberfloClientException extends RuntimeException {
 
-  private UUID subscriptionId;
-  private DateTime date;
-  private String unitType;
-  private BigDecimal amount;
-  private String trackingId;
+  private static final long serialVersionUID = 1L;
+
+  public AmberfloClientException(final String message) {
+    super(message);
+  }
+
+  public AmberfloClientException(final String message, final Throwable cause) {
+    super(message, cause);
+  }
 }
@@ -16,154 +16,948 @@
 
 package org.killbill.billing.plugin.amberflo.usage.client;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import java.io.IOException;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import org.apache.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.apache.http.Header;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.joda.time.DateTime;
-import org.killbill.billing.plugin.amberflo.usage.api.OutputDTO;
-import org.killbill.billing.plugin.amberflo.usage.api.model.Record;
 import org.killbill.billing.plugin.amberflo.usage.core.UsageConfigProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class AmberfloClientImpl implements AmberfloClient {
-  private static final ObjectMapper recordMapper = new ObjectMapper();
+  private static final UsageRecordDecoder recordDecoder = new UsageRecordDecoder();
   private static final Logger logger = LoggerFactory.getLogger(AmberfloClientImpl.class);
 
   public static final String CUSTOMER_ID_FIELD = "customerId";
-  public static final String MEASURE_VALUE_FIELD = "measure_value::double";
-  public static final String SOURCE_TIME_IN_MILLIS_FIELD = "sourceTimeInMillis";
-  public static final String MEASURE_NAME_FIELD = "measure_name";
   public static final String METER_API_NAME_FIELD = "meterApiName";
+  public static final String PAGE_SIZE_FIELD = "pageSize";
+  public static final String NEXT_PAGE_TOKEN_FIELD = "nextPageToken";
   private static final String START_TIME_FIELD = "startTimeInSeconds";
   private static final String END_TIME_FIELD = "endTimeInSeconds";
+  private static final String RETRY_AFTER_HEADER = "Retry-After";
 
-  private UsageConfigProperties props;
-  private final String accountExternalKey;
-  private String subscription;
-
-  private static final CloseableHttpClient httpclient = HttpClients.createDefault();
+  // Everything below is resolved once from the tenant configuration, a client is then shared by
+  // every call made for the tenant until its configuration changes
+  private final URI baseUri;
+  private final URI aggregatedUri;
+  // Null when the raw events are listed rather than their totals
+  private final AggregatedUsageQuery.Interval aggregationInterval;
+  private final RecordAggregation recordAggregation;
+  private final String apiKey;
+  private final String pageSize;
+  private final int connectTimeoutMillis;
+  private final int socketTimeoutMillis;
+  private final int connectionRequestTimeoutMillis;
+  private final long usageBudgetMillis;
+  private final long spillThresholdBytes;
+  private final long sliceSeconds;
+  private final int maxParallelSlices;
+  private final CloseableHttpClient httpclient;
+  private final HttpClient asyncHttpClient;
+  private final AmberfloCircuitBreaker circuitBreaker;
+  private final AmberfloRateLimiter rateLimiter;
+  private final AmberfloRetryPolicy retryPolicy;
 
   public AmberfloClientImpl(
-      UsageConfigProperties props, String accountExternalKey, String subscription) {
-    this.props = props;
-    this.accountExternalKey = accountExternalKey;
-    this.subscription = subscription;
+      UsageConfigProperties props,
+      CloseableHttpClient httpclient,
+      HttpClient asyncHttpClient,
+      AmberfloCircuitBreaker circuitBreaker,
+      AmberfloRateLimiter rateLimiter) {
+    try {
+      this.baseUri = new URI(props.getURL());
+    } catch (URISyntaxException e) {
+      throw new AmberfloClientException("Invalid Amberflo URL " + props.getURL(), e);
+    }
+    try {
+      this.aggregatedUri = new URI(props.getAggregatedURL());
+    } catch (URISyntaxException e) {
+      throw new AmberfloClientException(
+          "Invalid Amberflo aggregated usage URL " + props.getAggregatedURL(), e);
+    }
+    this.aggregationInterval = toAggregationInterval(props);
+    this.recordAggregation = toRecordAggregation(props);
+    this.apiKey = props.getApiKey();
+    this.pageSize = Integer.toString(props.getPageSize());
+    this.connectTimeoutMillis = props.getConnectTimeoutMillis();
+    this.socketTimeoutMillis = props.getSocketTimeoutMillis();
+    this.connectionRequestTimeoutMillis = props.getConnectionRequestTimeoutMillis();
+    this.usageBudgetMillis = props.getUsageBudgetMillis();
+    this.spillThresholdBytes = props.getSpillThresholdBytes();
+    this.sliceSeconds = props.getSliceDurationHours() * 3600L;
+    this.maxParallelSlices = props.getMaxParallelSlices();
+    this.httpclient = httpclient;
+    this.asyncHttpClient = asyncHttpClient;
+    this.circuitBreaker = circuitBreaker;
+    this.rateLimiter = rateLimiter;
+    this.retryPolicy = new AmberfloRetryPolicy(props);
   }
 
-  public AmberfloClientImpl(UsageConfigProperties props, String accountExternalKey) {
-    super();
-    this.props = props;
-    this.accountExternalKey = accountExternalKey;
+  // Follows nextPageToken until Amberflo stops returning one, each page being decoded straight
+  // into the handler before the next one is requested
+  private void getUsageList(
+      String accountExternalKey,
+      String subscriptionName,
+      String startDate,
+      String endDate,
+      Deadline deadline,
+      UsageRowHandler handler)
+      throws Exception {
+
+    final long[] rows = {0};
+    final UsageRowHandler countingHandler =
+        (customerId, measureName, sourceTimeInMillis, measureValue) -> {
+          rows[0]++;
+          handler.onRow(customerId, measureName, sourceTimeInMillis, measureValue);
+        };
+    final RetriedPageFilter retries = new RetriedPageFilter();
+
+    String nextPageToken = null;
+    int pages = 0;
+    do {
+      final String previousPageToken = nextPageToken;
+      nextPageToken =
+          getUsagePage(
+              accountExternalKey,
+              subscriptionName,
+              startDate,
+              endDate,
+              previousPageToken,
+              deadline,
+              countingHandler,
+              retries);
+      pages++;
+
+      // A token that does not move forward would otherwise keep us looping on the same page
+      if (nextPageToken != null && nextPageToken.equals(previousPageToken)) {
+        throw new AmberfloClientException(
+            "Amberflo returned the same page token twice: " + nextPageToken);
+      }
+    } while (nextPageToken != null && !nextPageToken.isEmpty());
+
+    logger.debug(
+        "Fetched {} rows in {} pages for customer {} from {} to {}",
+        rows[0],
+        pages,
+        accountExternalKey,
+        startDate,
+        endDate);
   }
 
-  private List<OutputDTO> getUsageList(
-      String accountExternalKey, String subscriptionName, String startDate, String endDate)
+  // Returns the token of the next page, null once the last page has been decoded
+  private String getUsagePage(
+      String accountExternalKey,
+      String subscriptionName,
+      String startDate,
+      String endDate,
+      String nextPageToken,
+      Deadline deadline,
+      UsageRowHandler handler,
+      RetriedPageFilter retries)
       throws Exception {
 
-    List<OutputDTO> outputDTOList = new ArrayList<>();
-
-    HttpGet httpget = new HttpGet(props.getURL());
-    URI uri = null;
-    if (subscriptionName == null) {
-      uri =
-          new URIBuilder(httpget.getURI())
-              .addParameter(CUSTOMER_ID_FIELD, accountExternalKey)
-              .addParameter(START_TIME_FIELD, startDate)
-              .addParameter(END_TIME_FIELD, endDate)
-              .build();
-    } else {
+    return execute(
+        new AmberfloRequest(
+            buildPageUri(accountExternalKey, subscriptionName, startDate, endDate, nextPageToken),
+            null,
+            recordDecoder),
+        deadline,
+        handler,
+        retries);
+  }
 
-      uri =
-          new URIBuilder(httpget.getURI())
-              .addParameter(CUSTOMER_ID_FIELD, accountExternalKey)
-              .addParameter(METER_API_NAME_FIELD, subscriptionName)
-              .addParameter(START_TIME_FIELD, startDate)
-              .addParameter(END_TIME_FIELD, endDate)
-              .build();
+  // Sends the request, retrying failures that may be transient. When the connection was lost part
+  // way through the answer, the retry skips the rows that were already handed over
+  private String execute(
+      AmberfloRequest request,
+      Deadline deadline,
+      UsageRowHandler handler,
+      RetriedPageFilter retries)
+      throws Exception {
+    final URI uri = request.uri;
+    retries.startPage();
+    for (int retry = 0; ; retry++) {
+      deadline.check("fetching " + uri.getPath());
+      // The permit is taken first so that a half open breaker never waits on it with its trial
+      rateLimiter.acquire(deadline);
+      circuitBreaker.acquirePermission();
+
+      try {
+        final String pageToken = fetchPage(request, deadline, retries.nextAttempt(handler));
+        circuitBreaker.onSuccess();
+        if (retries.getDropped() > 0) {
+          logger.debug(
+              "Skipped {} rows of {} handed over before it was retried",
+              retries.getDropped(),
+              uri.getPath());
+        }
+        return pageToken;
+      } catch (RetryableAmberfloClientException e) {
+        circuitBreaker.onFailure();
+        final long delayMillis = retryPolicy.getDelayMillis(retry, e.getRetryAfterMillis());
+        if (delayMillis < 0) {
+          throw giveUp(uri, retry, e);
+        }
+        if (delayMillis >= deadline.remainingMillis()) {
+          throw deadline.exceeded("waiting to retry after: " + e.getMessage());
+        }
+        logger.warn("{}, retrying in {} ms", e.getMessage(), delayMillis);
+        sleep(delayMillis);
+      } catch (Exception e) {
+        // Amberflo did answer, it is the request or the response that is wrong
+        circuitBreaker.onSuccess();
+        throw e;
+      } catch (Error e) {
+        circuitBreaker.release();
+        throw e;
+      }
     }
+  }
 
-    httpget.setURI(uri);
+  private String fetchPage(AmberfloRequest request, Deadline deadline, UsageRowHandler handler)
+      throws IOException {
+    final URI uri = request.uri;
+    final HttpRequestBase httpget;
+    if (request.body == null) {
+      httpget = new HttpGet(uri);
+    } else {
+      final HttpPost httppost = new HttpPost(uri);
+      httppost.setEntity(new ByteArrayEntity(request.body, ContentType.APPLICATION_JSON));
+      httpget = httppost;
+    }
     httpget.setHeader("accept", "application/json");
-    httpget.setHeader("x-api-key", props.getApiKey());
-    HttpResponse httpresponse = httpclient.execute(httpget);
+    httpget.setHeader("x-api-key", apiKey);
+    // Replaces the default request config of the client, which only holds these timeouts
+    httpget.setConfig(
+        RequestConfig.custom()
+            .setConnectTimeout(deadline.capTimeoutMillis(connectTimeoutMillis))
+            .setSocketTimeout(deadline.capTimeoutMillis(socketTimeoutMillis))
+            .setConnectionRequestTimeout(deadline.capTimeoutMillis(connectionRequestTimeoutMillis))
+            .build());
 
-    Record clientRecord =
-        recordMapper.readValue(httpresponse.getEntity().getContent(), Record.class);
+    final CloseableHttpResponse httpresponse;
+    try {
+      httpresponse = httpclient.execute(httpget);
+    } catch (IOException e) {
+      throw new RetryableAmberfloClientException("Unable to reach Amberflo at " + uri.getPath(), e);
+    }
+
+    // Closing the response hands the connection back to the client once the page has been read
+    try (CloseableHttpResponse response = httpresponse) {
+      final int statusCode = response.getStatusLine().getStatusCode();
+      if (statusCode < 200 || statusCode >= 300) {
+        EntityUtils.consumeQuietly(response.getEntity());
+        final Header retryAfter = response.getFirstHeader(RETRY_AFTER_HEADER);
+        throw statusException(statusCode, uri, retryAfter == null ? null : retryAfter.getValue());
+      }
 
-    OutputDTO outputDTO = new OutputDTO();
-    String[][] rows = clientRecord.getRows();
-    if (clientRecord.getColumns() == null) {
-      return outputDTOList;
+      try {
+        return request.decoder.decode(response.getEntity().getContent(), handler);
+      } catch (JsonProcessingException e) {
+        throw new AmberfloClientException("Unable to decode Amberflo response", e);
+      } catch (IOException e) {
+        throw new RetryableAmberfloClientException(
+            "Connection to Amberflo lost while reading " + uri.getPath(), e);
+      }
     }
-    final int customerIdCol = findInColumns(clientRecord.getColumns(), CUSTOMER_ID_FIELD);
-    final int measureValueCol = findInColumns(clientRecord.getColumns(), MEASURE_VALUE_FIELD);
-    final int sourceTimeInMillisCol =
-        findInColumns(clientRecord.getColumns(), SOURCE_TIME_IN_MILLIS_FIELD);
-    final int measureNameCol = findInColumns(clientRecord.getColumns(), MEASURE_NAME_FIELD);
+  }
 
-    for (int i = 0; i < clientRecord.getRows().length; i++) {
+  // Same paging loop as getUsageList, but every page is requested from the completion of the
+  // previous one so no thread waits on the network in between
+  private CompletableFuture<Void> getUsageListAsync(
+      String accountExternalKey,
+      String subscriptionName,
+      String startDate,
+      String endDate,
+      String pageToken,
+      Deadline deadline,
+      UsageRowHandler handler) {
 
-      outputDTO.setCustomerID(rows[i][customerIdCol]);
-      outputDTO.setSourceTimeInMillis(rows[i][sourceTimeInMillisCol]);
-      outputDTO.setMeasureName(rows[i][measureNameCol]);
-      outputDTO.setMeasureValue(rows[i][measureValueCol]);
+    return getUsagePageAsync(
+            accountExternalKey, subscriptionName, startDate, endDate, pageToken, deadline, handler)
+        .thenCompose(
+            nextPageToken -> {
+              if (nextPageToken == null || nextPageToken.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+              }
+              if (nextPageToken.equals(pageToken)) {
+                throw new AmberfloClientException(
+                    "Amberflo returned the same page token twice: " + nextPageToken);
+              }
+              return getUsageListAsync(
+                  accountExternalKey,
+                  subscriptionName,
+                  startDate,
+                  endDate,
+                  nextPageToken,
+                  deadline,
+                  handler);
+            });
+  }
 
-      outputDTOList.add(outputDTO);
+  private CompletableFuture<String> getUsagePageAsync(
+      String accountExternalKey,
+      String subscriptionName,
+      String startDate,
+      String endDate,
+      String nextPageToken,
+      Deadline deadline,
+      UsageRowHandler handler) {
+
+    final AmberfloRequest request;
+    try {
+      request =
+          new AmberfloRequest(
+              buildPageUri(accountExternalKey, subscriptionName, startDate, endDate, nextPageToken),
+              null,
+              recordDecoder);
+    } catch (URISyntaxException e) {
+      return CompletableFuture.failedFuture(
+          new AmberfloClientException("Invalid Amberflo URL " + baseUri, e));
     }
+    return fetchPageAsync(request, deadline, handler, 0);
+  }
 
-    return outputDTOList;
+  // The body is only decoded once it has been received in full, so a failed attempt never hands
+  // rows over and can always be retried. Waiting before a retry does not hold any thread
+  private CompletableFuture<String> fetchPageAsync(
+      AmberfloRequest request, Deadline deadline, UsageRowHandler handler, int retry) {
+    if (deadline.isExpired()) {
+      return CompletableFuture.failedFuture(
+          deadline.exceeded("fetching " + request.uri.getPath()));
+    }
+    return rateLimiter
+        .acquireAsync(deadline)
+        .thenCompose(ignored -> sendPageAsync(request, deadline, handler, retry));
   }
 
-  // Finds specific item in array given array and the term to search, returns int
-  // -1 if nothing is found
-  public int findInColumns(String[] columns, String termToFind) {
+  private CompletableFuture<String> sendPageAsync(
+      AmberfloRequest request, Deadline deadline, UsageRowHandler handler, int retry) {
+    final URI uri = request.uri;
+    try {
+      circuitBreaker.acquirePermission();
+    } catch (AmberfloClientException e) {
+      return CompletableFuture.failedFuture(e);
+    }
 
-    for (int i = 0; i < columns.length; i++) {
-      if (termToFind.equals(columns[i])) {
-        return i;
+    // The body is buffered as bytes so that decoding never blocks an executor thread on the
+    // network; at most one page is held at a time
+    final CompletableFuture<HttpResponse<byte[]>> response;
+    try {
+      HttpRequest.Builder builder =
+          HttpRequest.newBuilder(uri)
+              .header("accept", "application/json")
+              .header("x-api-key", apiKey)
+              .timeout(Duration.ofMillis(deadline.capTimeoutMillis(socketTimeoutMillis)));
+      if (request.body == null) {
+        builder.GET();
+      } else {
+        builder
+            .header("content-type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofByteArray(request.body));
       }
+      response =
+          asyncHttpClient.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofByteArray());
+    } catch (RuntimeException e) {
+      // The request could not even be built, such as with a missing or invalid API key
+      circuitBreaker.release();
+      return CompletableFuture.failedFuture(
+          new AmberfloClientException("Unable to send request to " + uri.getPath(), e));
+    } catch (Error e) {
+      circuitBreaker.release();
+      throw e;
     }
 
-    return -1;
+    return response
+        .handle(
+            (httpresponse, throwable) -> {
+              if (throwable != null) {
+                throw new RetryableAmberfloClientException(
+                    "Unable to reach Amberflo at " + uri.getPath(), unwrap(throwable));
+              }
+              final int statusCode = httpresponse.statusCode();
+              if (statusCode < 200 || statusCode >= 300) {
+                throw statusException(
+                    statusCode,
+                    uri,
+                    httpresponse.headers().firstValue(RETRY_AFTER_HEADER).orElse(null));
+              }
+              try {
+                return request.decoder.decode(httpresponse.body(), handler);
+              } catch (IOException e) {
+                throw new AmberfloClientException("Unable to decode Amberflo response", e);
+              }
+            })
+        .handle(
+            (pageToken, throwable) -> {
+              if (throwable == null) {
+                circuitBreaker.onSuccess();
+                return CompletableFuture.completedFuture(pageToken);
+              }
+
+              final Throwable cause = unwrap(throwable);
+              if (!(cause instanceof RetryableAmberfloClientException)) {
+                circuitBreaker.onSuccess();
+                return CompletableFuture.<String>failedFuture(cause);
+              }
+
+              circuitBreaker.onFailure();
+              final long delayMillis =
+                  retryPolicy.getDelayMillis(
+                      retry, ((RetryableAmberfloClientException) cause).getRetryAfterMillis());
+              if (delayMillis < 0) {
+                return CompletableFuture.<String>failedFuture(
+                    giveUp(uri, retry, (RetryableAmberfloClientException) cause));
+              }
+              if (delayMillis >= deadline.remainingMillis()) {
+                return CompletableFuture.<String>failedFuture(
+                    deadline.exceeded("waiting to retry after: " + cause.getMessage()));
+              }
+              logger.warn("{}, retrying in {} ms", cause.getMessage(), delayMillis);
+              return CompletableFuture.runAsync(
+                      () -> {},
+                      CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS))
+                  .thenCompose(ignored -> fetchPageAsync(request, deadline, handler, retry + 1));
+            })
+        .thenCompose(Function.identity());
   }
 
-  @Override
-  public List<OutputDTO> getUsageAccount(DateTime startDate, DateTime endDate) {
+  private static AmberfloClientException statusException(
+      int statusCode, URI uri, String retryAfter) {
+    final String message = "Amberflo answered " + statusCode + " for " + uri.getPath();
+    if (AmberfloRetryPolicy.isRetryableStatus(statusCode)) {
+      return new RetryableAmberfloClientException(
+          message, AmberfloRetryPolicy.parseRetryAfterMillis(retryAfter));
+    }
+    return new AmberfloClientException(message);
+  }
+
+  private static AmberfloClientException giveUp(
+      URI uri, int retry, RetryableAmberfloClientException e) {
+    return new AmberfloClientException(
+        "Giving up on " + uri.getPath() + " after " + (retry + 1) + " attempts: " + e.getMessage(),
+        e);
+  }
+
+  private static Throwable unwrap(Throwable throwable) {
+    return (throwable instanceof CompletionException || throwable instanceof ExecutionException)
+            && throwable.getCause() != null
+        ? throwable.getCause()
+        : throwable;
+  }
+
+  private static void sleep(long millis) {
     try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AmberfloClientException("Interrupted while waiting to retry Amberflo", e);
+    }
+  }
 
-      return getUsageList(
+  private URI buildPageUri(
+      String accountExternalKey,
+      String subscriptionName,
+      String startDate,
+      String endDate,
+      String nextPageToken)
+      throws URISyntaxException {
+
+    URIBuilder uriBuilder =
+        new URIBuilder(baseUri).addParameter(CUSTOMER_ID_FIELD, accountExternalKey);
+    if (subscriptionName != null) {
+      uriBuilder.addParameter(METER_API_NAME_FIELD, subscriptionName);
+    }
+    uriBuilder
+        .addParameter(START_TIME_FIELD, startDate)
+        .addParameter(END_TIME_FIELD, endDate)
+        .addParameter(PAGE_SIZE_FIELD, pageSize);
+    if (nextPageToken != null) {
+      uriBuilder.addParameter(NEXT_PAGE_TOKEN_FIELD, nextPageToken);
+    }
+    return uriBuilder.build();
+  }
+
+  // Splits [startSeconds, endSeconds] into slices and starts fetching them, never more than
+  // maxParallelSlices at a time. The returned slices are in chronological order, the rows of each
+  // one have to be drained with Slice.drainTo for its lane to fetch the next one
+  private List<Slice> fetchSlices(
+      String accountExternalKey,
+      String subscriptionName,
+      long startSeconds,
+      long endSeconds,
+      Deadline deadline) {
+
+    final int sliceCount = (int) ((endSeconds - startSeconds + sliceSeconds - 1) / sliceSeconds);
+    final List<Slice> slices = new ArrayList<>(sliceCount);
+    for (int i = 0; i < sliceCount; i++) {
+      slices.add(new Slice());
+    }
+
+    // Every lane fetches one slice after the other until none are left, and only moves on once the
+    // rows of its slice were handed over, so no more than one slice per lane is ever buffered
+    final AtomicInteger nextSlice = new AtomicInteger();
+    final int lanes = Math.min(maxParallelSlices, sliceCount);
+    for (int lane = 0; lane < lanes; lane++) {
+      fetchNextSlice(
           accountExternalKey,
-          null,
-          Long.toString(startDate.getMillis() / 1000),
-          Long.toString(endDate.getMillis() / 1000));
-    } catch (Exception e) {
-      logger.error("{}", e.getMessage(), e);
-      return Collections.emptyList();
+          subscriptionName,
+          startSeconds,
+          endSeconds,
+          deadline,
+          slices,
+          nextSlice);
+    }
+
+    logger.debug(
+        "Fetching usage for customer {} in {} slices of {}s, {} at a time",
+        accountExternalKey,
+        sliceCount,
+        sliceSeconds,
+        lanes);
+    return slices;
+  }
+
+  private void fetchNextSlice(
+      String accountExternalKey,
+      String subscriptionName,
+      long startSeconds,
+      long endSeconds,
+      Deadline deadline,
+      List<Slice> slices,
+      AtomicInteger nextSlice) {
+
+    final int index = nextSlice.getAndIncrement();
+    if (index >= slices.size()) {
+      return;
+    }
+
+    final long sliceStart = startSeconds + index * sliceSeconds;
+    final long sliceEnd = Math.min(sliceStart + sliceSeconds, endSeconds);
+
+    // A row sitting exactly on a boundary may be returned for both neighbouring slices, so it is
+    // only kept by the slice whose [start, end) holds its source time. The outer bounds of the
+    // range are applied to every row by the caller
+    final long lowerMillis = index == 0 ? Long.MIN_VALUE : sliceStart * 1000;
+    final long upperMillis = index == slices.size() - 1 ? Long.MAX_VALUE : sliceEnd * 1000;
+
+    final UsageRowBuffer buffer = new UsageRowBuffer();
+    final Slice slice = slices.get(index);
+    // The call gave up on its slices, the lane stops here
+    if (slice.rows.isCancelled()) {
+      return;
+    }
+    getUsageListAsync(
+            accountExternalKey,
+            subscriptionName,
+            Long.toString(sliceStart),
+            Long.toString(sliceEnd),
+            null,
+            deadline,
+            (customerId, measureName, sourceTimeInMillis, measureValue) -> {
+              // Stops decoding the page, and so requesting the next ones
+              if (slice.rows.isCancelled()) {
+                throw new CancellationException("Time slice no longer needed");
+              }
+              if (sourceTimeInMillis >= lowerMillis && sourceTimeInMillis < upperMillis) {
+                buffer.onRow(customerId, measureName, sourceTimeInMillis, measureValue);
+              }
+            })
+        .whenComplete(
+            (ignored, throwable) -> {
+              if (throwable == null) {
+                slice.rows.complete(buffer);
+                slice.drained.thenRun(
+                    () ->
+                        fetchNextSlice(
+                            accountExternalKey,
+                            subscriptionName,
+                            startSeconds,
+                            endSeconds,
+                            deadline,
+                            slices,
+                            nextSlice));
+                return;
+              }
+
+              // Rows after a failed slice can never be handed over, so stop fetching them
+              slice.rows.completeExceptionally(throwable);
+              for (int i = nextSlice.getAndSet(slices.size()); i < slices.size(); i++) {
+                slices.get(i).rows.completeExceptionally(throwable);
+              }
+            });
+  }
+
+  // A time slice: its rows once fetched, then whether they were handed over
+  private static final class Slice {
+
+    private final CompletableFuture<UsageRowBuffer> rows = new CompletableFuture<>();
+    private final CompletableFuture<Void> drained = new CompletableFuture<>();
+
+    // The requests of the slice are cut to the budget, but not the time it takes to read their
+    // bodies or for a lane to get to the slice
+    private UsageRowBuffer awaitRows(Deadline deadline) throws ExecutionException {
+      try {
+        return rows.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        throw deadline.exceeded("waiting for a time slice");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new AmberfloClientException("Interrupted while waiting for a time slice", e);
+      }
+    }
+
+    // Lets the lane of the slice fetch its next one
+    private void drainTo(UsageRowBuffer buffer, UsageRowHandler handler) {
+      buffer.drainTo(handler);
+      drained.complete(null);
+    }
+  }
+
+  // Slices that were not handed over yet are no longer fetched, once the call failed or gave up
+  private static void cancel(List<Slice> slices) {
+    for (Slice slice : slices) {
+      slice.rows.cancel(false);
     }
   }
 
   @Override
-  public List<OutputDTO> getUsageSubscription(DateTime startDate, DateTime endDate) {
-    List<OutputDTO> outputDTOList;
+  public boolean isAggregated() {
+    return aggregationInterval != null;
+  }
+
+  @Override
+  public long getUsageBudgetMillis() {
+    return usageBudgetMillis;
+  }
+
+  @Override
+  public long getSpillThresholdBytes() {
+    return spillThresholdBytes;
+  }
+
+  @Override
+  public RecordAggregation getRecordAggregation() {
+    return recordAggregation;
+  }
+
+  @Override
+  public void getUsageAccount(
+      String customerId,
+      DateTime startDate,
+      DateTime endDate,
+      Deadline deadline,
+      UsageRowHandler handler) {
+    getUsage(customerId, null, startDate, endDate, deadline, handler);
+  }
+
+  @Override
+  public void getUsageSubscription(
+      String customerId,
+      String meterApiName,
+      DateTime startDate,
+      DateTime endDate,
+      Deadline deadline,
+      UsageRowHandler handler) {
+    if (aggregationInterval != null) {
+      getAggregatedUsage(customerId, meterApiName, startDate, endDate, deadline, handler);
+      return;
+    }
+    getUsage(customerId, meterApiName, startDate, endDate, deadline, handler);
+  }
+
+  private void getUsage(
+      String accountExternalKey,
+      String subscriptionName,
+      DateTime startDate,
+      DateTime endDate,
+      Deadline deadline,
+      UsageRowHandler rowHandler) {
+    // Amberflo is queried with the whole seconds around the range, inRange then cuts it exactly
+    final long startSeconds = Math.floorDiv(startDate.getMillis(), 1000L);
+    final long endSeconds = Math.floorDiv(endDate.getMillis() + 999L, 1000L);
+    final UsageRowHandler handler = inRange(startDate, endDate, rowHandler);
+
     try {
-      outputDTOList =
-          getUsageList(
+      if (endSeconds - startSeconds <= sliceSeconds) {
+        getUsageList(
+            accountExternalKey,
+            subscriptionName,
+            Long.toString(startSeconds),
+            Long.toString(endSeconds),
+            deadline,
+            handler);
+        return;
+      }
+
+      // Slices are fetched concurrently but handed over here, on the calling thread, in order
+      final List<Slice> slices =
+          fetchSlices(accountExternalKey, subscriptionName, startSeconds, endSeconds, deadline);
+      try {
+        for (Slice slice : slices) {
+          slice.drainTo(slice.awaitRows(deadline), handler);
+        }
+      } finally {
+        cancel(slices);
+      }
+    } catch (AmberfloClientException e) {
+      throw e;
+    } catch (Exception e) {
+      throw toClientException(accountExternalKey, e);
+    }
+  }
+
+  @Override
+  public CompletableFuture<Void> getUsageAccountAsync(
+      String customerId,
+      DateTime startDate,
+      DateTime endDate,
+      Deadline deadline,
+      UsageRowHandler handler) {
+    return getUsageAsync(customerId, null, startDate, endDate, deadline, handler);
+  }
+
+  @Override
+  public CompletableFuture<Void> getUsageSubscriptionAsync(
+      String customerId,
+      String meterApiName,
+      DateTime startDate,
+      DateTime endDate,
+      Deadline deadline,
+      UsageRowHandler handler) {
+    if (aggregationInterval != null) {
+      return getAggregatedUsageAsync(
+          customerId, meterApiName, startDate, endDate, deadline, handler);
+    }
+    return getUsageAsync(customerId, meterApiName, startDate, endDate, deadline, handler);
+  }
+
+  private CompletableFuture<Void> getUsageAsync(
+      String accountExternalKey,
+      String subscriptionName,
+      DateTime startDate,
+      DateTime endDate,
+      Deadline deadline,
+      UsageRowHandler rowHandler) {
+    // Amberflo is queried with the whole seconds around the range, inRange then cuts it exactly
+    final long startSeconds = Math.floorDiv(startDate.getMillis(), 1000L);
+    final long endSeconds = Math.floorDiv(endDate.getMillis() + 999L, 1000L);
+    final CompletableFuture<Void> call = new CompletableFuture<>();
+    final UsageRowHandler handler = untilDone(call, inRange(startDate, endDate, rowHandler));
+
+    if (endSeconds - startSeconds <= sliceSeconds) {
+      completeWith(
+          call,
+          getUsageListAsync(
               accountExternalKey,
-              subscription,
-              Long.toString(startDate.getMillis() / 1000),
-              Long.toString(endDate.getMillis() / 1000));
-      return outputDTOList;
+              subscriptionName,
+              Long.toString(startSeconds),
+              Long.toString(endSeconds),
+              null,
+              deadline,
+              handler));
+    } else {
+      // Each slice is handed over once the previous one has been, whichever finished first
+      final List<Slice> slices =
+          fetchSlices(accountExternalKey, subscriptionName, startSeconds, endSeconds, deadline);
+      CompletableFuture<Void> usage = CompletableFuture.completedFuture(null);
+      for (Slice slice : slices) {
+        usage =
+            usage
+                .thenCompose(ignored -> slice.rows)
+                .thenAccept(buffer -> slice.drainTo(buffer, handler));
+      }
+      completeWith(call, usage);
+      call.whenComplete((ignored, throwable) -> cancel(slices));
+    }
+
+    return withinBudget(call, deadline, accountExternalKey);
+  }
+
+  // Rows decoded once the call completed, because its budget was spent, are not handed over
+  private static UsageRowHandler untilDone(CompletableFuture<Void> call, UsageRowHandler handler) {
+    return (customerId, measureName, sourceTimeInMillis, measureValue) -> {
+      if (!call.isDone()) {
+        handler.onRow(customerId, measureName, sourceTimeInMillis, measureValue);
+      }
+    };
+  }
+
+  private static void completeWith(CompletableFuture<Void> call, CompletableFuture<Void> usage) {
+    usage.whenComplete(
+        (ignored, throwable) -> {
+          if (throwable == null) {
+            call.complete(null);
+          } else {
+            call.completeExceptionally(unwrap(throwable));
+          }
+        });
+  }
+
+  // The requests are cut to the budget, but not the time it takes to read their bodies or for a
+  // lane to get to a slice, so the call as a whole is bounded too
+  private static CompletableFuture<Void> withinBudget(
+      CompletableFuture<Void> call, Deadline deadline, String accountExternalKey) {
+    final long remainingNanos = deadline.remainingNanos();
+    if (remainingNanos != Long.MAX_VALUE) {
+      call.orTimeout(remainingNanos, TimeUnit.NANOSECONDS);
+    }
+    return call.handle(
+        (ignored, throwable) -> {
+          if (throwable == null) {
+            return null;
+          }
+          if (unwrap(throwable) instanceof TimeoutException) {
+            throw deadline.exceeded("waiting for the usage of customer " + accountExternalKey);
+          }
+          // Callers see the same exception type as with the blocking methods
+          throw toClientException(accountExternalKey, throwable);
+        });
+  }
+
+  // Usage ranges are [start, end), whereas Amberflo also returns the rows sitting on the end, and
+  // is queried with seconds
+  private static UsageRowHandler inRange(
+      DateTime startDate, DateTime endDate, UsageRowHandler handler) {
+    final long startMillis = startDate.getMillis();
+    final long endMillis = endDate.getMillis();
+    return (customerId, measureName, sourceTimeInMillis, measureValue) -> {
+      if (sourceTimeInMillis >= startMillis && sourceTimeInMillis < endMillis) {
+        handler.onRow(customerId, measureName, sourceTimeInMillis, measureValue);
+      }
+    };
+  }
+
+  // The totals are small enough to come back in one answer, they are neither sliced nor paged
+  private void getAggregatedUsage(
+      String accountExternalKey,
+      String subscriptionName,
+      DateTime startDate,
+      DateTime endDate,
+      Deadline deadline,
+      UsageRowHandler handler) {
+    try {
+      execute(
+          aggregatedRequest(accountExternalKey, subscriptionName, startDate, endDate),
+          deadline,
+          handler,
+          new RetriedPageFilter());
+    } catch (AmberfloClientException e) {
+      throw e;
     } catch (Exception e) {
-      logger.error("{}", e.getMessage(), e);
-      return Collections.emptyList();
+      throw toClientException(accountExternalKey, e);
+    }
+  }
+
+  private CompletableFuture<Void> getAggregatedUsageAsync(
+      String accountExternalKey,
+      String subscriptionName,
+      DateTime startDate,
+      DateTime endDate,
+      Deadline deadline,
+      UsageRowHandler handler) {
+    final AmberfloRequest request;
+    try {
+      request = aggregatedRequest(accountExternalKey, subscriptionName, startDate, endDate);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(toClientException(accountExternalKey, e));
+    }
+    final CompletableFuture<Void> call = new CompletableFuture<>();
+    completeWith(
+        call,
+        fetchPageAsync(request, deadline, untilDone(call, handler), 0).thenApply(ignored -> null));
+    return withinBudget(call, deadline, accountExternalKey);
+  }
+
+  private AmberfloRequest aggregatedRequest(
+      String accountExternalKey, String subscriptionName, DateTime startDate, DateTime endDate)
+      throws IOException {
+    final AggregatedUsageQuery query =
+        new AggregatedUsageQuery(
+            accountExternalKey,
+            subscriptionName,
+            aggregationInterval,
+            startDate.getMillis() / 1000,
+            endDate.getMillis() / 1000);
+    return new AmberfloRequest(aggregatedUri, query.toJson(), query);
+  }
+
+  private static AggregatedUsageQuery.Interval toAggregationInterval(UsageConfigProperties props) {
+    if (!UsageConfigProperties.AGGREGATED_QUERY_MODE.equalsIgnoreCase(props.getQueryMode())) {
+      return null;
+    }
+    try {
+      return AggregatedUsageQuery.Interval.valueOf(
+          props.getAggregationInterval().trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      logger.warn(
+          "Unknown aggregation interval {}, using {}",
+          props.getAggregationInterval(),
+          AggregatedUsageQuery.Interval.DAY);
+      return AggregatedUsageQuery.Interval.DAY;
+    }
+  }
+
+  private static RecordAggregation toRecordAggregation(UsageConfigProperties props) {
+    try {
+      return RecordAggregation.valueOf(props.getRecordAggregation().trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      logger.warn(
+          "Unknown record aggregation {}, using {}",
+          props.getRecordAggregation(),
+          RecordAggregation.NONE);
+      return RecordAggregation.NONE;
+    }
+  }
+
+  private static AmberfloClientException toClientException(
+      String accountExternalKey, Throwable throwable) {
+    final Throwable cause = unwrap(throwable);
+    if (cause instanceof AmberfloClientException) {
+      return (AmberfloClientException) cause;
+    }
+    return new AmberfloClientException(
+        "Unable to fetch usage for customer " + accountExternalKey, cause);
+  }
+
+  // One request to Amberflo and the decoder of its answer, sent again as is when it is retried
+  private static final class AmberfloRequest {
+
+    private final URI uri;
+    // Null for a GET
+    private final byte[] body;
+    private final UsageResponseDecoder decoder;
+
+    private AmberfloRequest(URI uri, byte[] body, UsageResponseDecoder decoder) {
+      this.uri = uri;
+      this.body = body;
+      this.decoder = decoder;
     }
   }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+import org.killbill.billing.plugin.amberflo.usage.dao.AmberfloUsageDao;
+import org.killbill.billing.plugin.amberflo.usage.core.UsageConfigProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps one {@link AmberfloClient} per tenant, built from the tenant configuration the first time
+ * the tenant needs it and reused by every call after that. When the configuration of a tenant is
+ * reloaded its client is replaced in one step, callers see either the old or the new client.
+ */
+public class AmberfloClientRegistry {
+
+  private static final Logger logger = LoggerFactory.getLogger(AmberfloClientRegistry.class);
+
+  // ConcurrentHashMap does not accept null keys, requests without a tenant share this entry
+  private static final UUID DEFAULT_TENANT_KEY = new UUID(0L, 0L);
+
+  private final Function<UUID, UsageConfigProperties> configurations;
+  private final AmberfloHttpClientManager httpClientManager;
+  @Nullable private final DataSource dataSource;
+  @Nullable private volatile AmberfloUsageDao usageDao;
+  private final Map<UUID, AmberfloClient> clients = new ConcurrentHashMap<>();
+
+  /**
+   * @param configurations resolves the configuration of a tenant, null standing for the global one
+   */
+  public AmberfloClientRegistry(
+      final Function<UUID, UsageConfigProperties> configurations,
+      final AmberfloHttpClientManager httpClientManager) {
+    this(configurations, httpClientManager, null);
+  }
+
+  /**
+   * @param dataSource database of the tenants that keep their usage in the plugin tables, null when
+   *     the plugin tables are not available. It is not used until a tenant enables the usage store.
+   */
+  public AmberfloClientRegistry(
+      final Function<UUID, UsageConfigProperties> configurations,
+      final AmberfloHttpClientManager httpClientManager,
+      @Nullable final DataSource dataSource) {
+    this.configurations = configurations;
+    this.httpClientManager = httpClientManager;
+    this.dataSource = dataSource;
+  }
+
+  public AmberfloClient getClient(@Nullable final UUID tenantId) {
+    final UUID key = tenantId == null ? DEFAULT_TENANT_KEY : tenantId;
+    final AmberfloClient client = clients.get(key);
+    if (client != null) {
+      return client;
+    }
+    return clients.computeIfAbsent(key, ignored -> createClient(tenantId));
+  }
+
+  /**
+   * To be called once the configuration of a tenant has been reloaded, with a null tenant when the
+   * global configuration changed since every tenant may inherit from it.
+   */
+  public void onConfigurationChange(@Nullable final UUID tenantId) {
+    if (tenantId == null) {
+      clients.replaceAll((key, client) -> createClient(toTenantId(key)));
+    } else {
+      clients.computeIfPresent(tenantId, (key, client) -> createClient(tenantId));
+    }
+  }
+
+  private AmberfloClient createClient(@Nullable final UUID tenantId) {
+    final UsageConfigProperties config = configurations.apply(tenantId);
+    logger.info("Creating Amberflo client for tenant {}", tenantId);
+    AmberfloClient client =
+        new AmberfloClientImpl(
+            config,
+            httpClientManager.getHttpClient(tenantId, config),
+            httpClientManager.getAsyncHttpClient(tenantId, config),
+            httpClientManager.getCircuitBreaker(tenantId, config),
+            httpClientManager.getRateLimiter(config));
+    final AmberfloUsageDao dao = config.isUsageStoreEnabled() ? getUsageDao() : null;
+    if (dao != null) {
+      client =
+          new PersistentAmberfloClient(
+              client,
+              dao,
+              tenantId,
+              config.getUsageStoreBucketHours() * 3600L * 1000L,
+              config.getLateArrivalHorizonSeconds() * 1000L);
+    }
+    if (!config.isUsageCacheEnabled()) {
+      return client;
+    }
+    // The cache goes away with the client, a new configuration starts from an empty one
+    return new CachingAmberfloClient(
+        client,
+        new UsageIntervalCache(
+            config.getUsageCacheMaxBytes(),
+            config.getUsageCacheMaxRecords(),
+            config.getUsageCacheTtlSeconds() * 1000L,
+            config.getLateArrivalHorizonSeconds() * 1000L));
+  }
+
+  // Opened by the first tenant enabling the store, a failure is retried by the next client created
+  @Nullable
+  private AmberfloUsageDao getUsageDao() {
+    if (usageDao == null && dataSource != null) {
+      synchronized (this) {
+        if (usageDao == null) {
+          try {
+            usageDao = new AmberfloUsageDao(dataSource);
+          } catch (SQLException e) {
+            logger.warn("Unable to open the usage store: {}", e.getMessage());
+          }
+        }
+      }
+    }
+    return usageDao;
+  }
+
+  /**
+   * @return the usage cache of the client of the tenant, null when the tenant has no client yet
+   *     or does not cache its usage
+   */
+  @Nullable
+  public UsageIntervalCache getUsageCache(@Nullable final UUID tenantId) {
+    final AmberfloClient client = clients.get(tenantId == null ? DEFAULT_TENANT_KEY : tenantId);
+    return client instanceof CachingAmberfloClient
+        ? ((CachingAmberfloClient) client).getCache()
+        : null;
+  }
+
+  @Nullable
+  private static UUID toTenantId(final UUID key) {
+    return DEFAULT_TENANT_KEY.equals(key) ? null : key;
+  }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.killbill.billing.plugin.amberflo.usage.core.UsageConfigProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Owns one pooled HTTP client per tenant, sized and tuned from that tenant's configuration. A
+ * client is rebuilt when the tenant configuration changes; the one it replaces is closed once it
+ * has no leased connections left so in-flight requests are not cut off. Retired clients are
+ * checked every second until then, whether or not another client gets created.
+ *
+ * <p>Each tenant also gets a non-blocking {@link HttpClient} for the async API, with a small
+ * executor of its own that only decodes responses, so no thread is parked while a request is in
+ * flight. The threads of an idle executor time out, and a retired client is only closed, its
+ * executor shut down, once it has no request in flight either.
+ *
+ * <p>The {@link AmberfloCircuitBreaker} of a tenant lives with its clients and starts closed again
+ * when the tenant configuration changes. {@link AmberfloRateLimiter}s are kept per API key instead,
+ * since that is what Amberflo throttles on.
+ */
+public class AmberfloHttpClientManager implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(AmberfloHttpClientManager.class);
+
+  // ConcurrentHashMap does not accept null keys, requests without a tenant share this entry
+  private static final UUID DEFAULT_TENANT_KEY = new UUID(0L, 0L);
+  private static final long RETIRED_CLIENT_CHECK_MILLIS = 1000;
+  private static final long ASYNC_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+  private final Map<UUID, PooledHttpClient> clients = new ConcurrentHashMap<>();
+  private final List<PooledHttpClient> retiredClients = new ArrayList<>();
+  private final Map<String, AmberfloRateLimiter> rateLimiters = new ConcurrentHashMap<>();
+  private final AtomicInteger asyncThreadCount = new AtomicInteger();
+  private final ScheduledExecutorService retiredClientCloser;
+  // Guarded by this, set while a check of the retired clients is scheduled
+  private boolean retiredClientCheckScheduled;
+  private volatile boolean closed;
+
+  public AmberfloHttpClientManager() {
+    this.retiredClientCloser =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              final Thread thread = new Thread(runnable, "amberflo-pool-closer");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  public CloseableHttpClient getHttpClient(
+      @Nullable final UUID tenantId, final UsageConfigProperties props) {
+    return getPooledHttpClient(tenantId, props).httpClient;
+  }
+
+  public HttpClient getAsyncHttpClient(
+      @Nullable final UUID tenantId, final UsageConfigProperties props) {
+    return getPooledHttpClient(tenantId, props).asyncHttpClient;
+  }
+
+  public AmberfloCircuitBreaker getCircuitBreaker(
+      @Nullable final UUID tenantId, final UsageConfigProperties props) {
+    return getPooledHttpClient(tenantId, props).circuitBreaker;
+  }
+
+  /**
+   * @return the circuit breaker currently used for the tenant, null when the tenant has not called
+   *     Amberflo yet
+   */
+  @Nullable
+  public AmberfloCircuitBreaker getCircuitBreaker(@Nullable final UUID tenantId) {
+    final PooledHttpClient current = clients.get(tenantId == null ? DEFAULT_TENANT_KEY : tenantId);
+    return current == null ? null : current.circuitBreaker;
+  }
+
+  // Tenants sharing an API key share its limiter; should their rate settings differ, the limiter
+  // follows the configuration it was last asked for
+  public AmberfloRateLimiter getRateLimiter(final UsageConfigProperties props) {
+    final AmberfloRateLimiter current = rateLimiters.get(props.getApiKey());
+    if (current != null && current.hasSameSettings(props)) {
+      return current;
+    }
+    return rateLimiters.compute(
+        props.getApiKey(),
+        (apiKey, existing) ->
+            existing != null && existing.hasSameSettings(props)
+                ? existing
+                : new AmberfloRateLimiter(props));
+  }
+
+  /**
+   * @return the rate limiter of the API key the tenant currently uses, null when the tenant has not
+   *     called Amberflo yet
+   */
+  @Nullable
+  public AmberfloRateLimiter getRateLimiter(@Nullable final UUID tenantId) {
+    final PooledHttpClient current = clients.get(tenantId == null ? DEFAULT_TENANT_KEY : tenantId);
+    return current == null ? null : rateLimiters.get(current.props.getApiKey());
+  }
+
+  private PooledHttpClient getPooledHttpClient(
+      @Nullable final UUID tenantId, final UsageConfigProperties props) {
+    final UUID key = tenantId == null ? DEFAULT_TENANT_KEY : tenantId;
+
+    // The configuration handler hands out a new properties instance whenever the tenant
+    // configuration changes, so identity is enough to detect a stale pool
+    final PooledHttpClient current = clients.get(key);
+    if (current != null && current.props == props) {
+      return current;
+    }
+
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("The Amberflo HTTP client manager has been closed");
+      }
+
+      final PooledHttpClient existing = clients.get(key);
+      if (existing != null && existing.props == props) {
+        return existing;
+      }
+
+      final PooledHttpClient created = new PooledHttpClient(props, newAsyncExecutor());
+      clients.put(key, created);
+      if (existing != null) {
+        retiredClients.add(existing);
+      }
+      closeIdleRetiredClients();
+      scheduleRetiredClientCheck();
+
+      logger.info(
+          "Created Amberflo connection pool for tenant {} (maxTotal={}, maxPerRoute={})",
+          tenantId,
+          props.getMaxConnectionsTotal(),
+          props.getMaxConnectionsPerRoute());
+      return created;
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    retiredClientCloser.shutdownNow();
+    for (final PooledHttpClient client : clients.values()) {
+      client.close();
+    }
+    clients.clear();
+    for (final PooledHttpClient client : retiredClients) {
+      client.close();
+    }
+    retiredClients.clear();
+    rateLimiters.clear();
+  }
+
+  // Called with the lock held
+  private void scheduleRetiredClientCheck() {
+    if (retiredClients.isEmpty() || retiredClientCheckScheduled || closed) {
+      return;
+    }
+    retiredClientCheckScheduled = true;
+    retiredClientCloser.schedule(
+        this::checkRetiredClients, RETIRED_CLIENT_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void checkRetiredClients() {
+    retiredClientCheckScheduled = false;
+    closeIdleRetiredClients();
+    scheduleRetiredClientCheck();
+  }
+
+  private void closeIdleRetiredClients() {
+    final Iterator<PooledHttpClient> iterator = retiredClients.iterator();
+    while (iterator.hasNext()) {
+      final PooledHttpClient retired = iterator.next();
+      if (retired.connectionManager.getTotalStats().getLeased() == 0
+          && retired.asyncHttpClient.getInFlight() == 0) {
+        retired.close();
+        iterator.remove();
+      }
+    }
+  }
+
+  // Decodes the responses of the non-blocking client of one pool, its threads go away when idle
+  private ExecutorService newAsyncExecutor() {
+    final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    final ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            ASYNC_THREAD_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> {
+              final Thread thread =
+                  new Thread(runnable, "amberflo-async-" + asyncThreadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private static final class PooledHttpClient {
+
+    private final UsageConfigProperties props;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final InFlightHttpClient asyncHttpClient;
+    private final ExecutorService asyncExecutor;
+    private final AmberfloCircuitBreaker circuitBreaker;
+
+    private PooledHttpClient(
+        final UsageConfigProperties props, final ExecutorService asyncExecutor) {
+      this.props = props;
+      this.asyncExecutor = asyncExecutor;
+
+      connectionManager = new PoolingHttpClientConnectionManager();
+      connectionManager.setMaxTotal(props.getMaxConnectionsTotal());
+      connectionManager.setDefaultMaxPerRoute(props.getMaxConnectionsPerRoute());
+
+      final RequestConfig requestConfig =
+          RequestConfig.custom()
+              .setConnectTimeout(props.getConnectTimeoutMillis())
+              .setSocketTimeout(props.getSocketTimeoutMillis())
+              .setConnectionRequestTimeout(props.getConnectionRequestTimeoutMillis())
+              .build();
+
+      // Honour the Keep-Alive header sent by Amberflo but never keep a connection longer than
+      // configured, and fall back to the configured value when the server does not say
+      final long keepAliveMillis = props.getKeepAliveMillis();
+      final ConnectionKeepAliveStrategy keepAliveStrategy =
+          (response, context) -> {
+            final long serverKeepAlive =
+                DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(
+                    response, context);
+            return serverKeepAlive > 0
+                ? Math.min(serverKeepAlive, keepAliveMillis)
+                : keepAliveMillis;
+          };
+
+      // The idle evictor thread is owned by the client and stops when the client is closed
+      httpClient =
+          HttpClients.custom()
+              .setConnectionManager(connectionManager)
+              .setDefaultRequestConfig(requestConfig)
+              .setKeepAliveStrategy(keepAliveStrategy)
+              .evictExpiredConnections()
+              .evictIdleConnections(props.getIdleConnectionTimeoutMillis(), TimeUnit.MILLISECONDS)
+              .build();
+
+      // The JDK client keeps its own connection pool; request timeouts are set per request
+      asyncHttpClient =
+          new InFlightHttpClient(
+              HttpClient.newBuilder()
+                  .connectTimeout(Duration.ofMillis(props.getConnectTimeoutMillis()))
+                  .executor(asyncExecutor)
+                  .build());
+
+      circuitBreaker = new AmberfloCircuitBreaker(props);
+    }
+
+    private void close() {
+      try {
+        httpClient.close();
+      } catch (IOException e) {
+        logger.warn("Unable to close Amberflo HTTP client", e);
+      }
+      // The JDK client has nothing to close on Java 11, its selector thread ends once it is
+      // unreachable
+      asyncExecutor.shutdown();
+    }
+  }
+}
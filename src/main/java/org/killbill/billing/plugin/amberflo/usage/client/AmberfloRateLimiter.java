@@ -0,0 +1,150 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.killbill.billing.plugin.amberflo.usage.core.UsageConfigProperties;
+
+/**
+ * Token bucket shared by every request sent with the same Amberflo API key. Permits are added at
+ * {@code rateLimitPermitsPerSecond} and up to {@code rateLimitBurst} of them can be saved while the
+ * key is idle, so short bursts go out at once and long runs are smoothed to the configured rate.
+ *
+ * <p>A caller that has to wait for a permit waits at most {@code rateLimitMaxWaitMillis}; if the
+ * next permit is further away than that the request fails instead.
+ */
+public class AmberfloRateLimiter {
+
+  private final double permitsPerSecond;
+  private final int burst;
+  private final long maxWaitNanos;
+  private final double intervalNanos;
+
+  private double storedPermits;
+  private long nextFreeNanos;
+
+  // Metrics, guarded by this
+  private long grantedPermits;
+  private long delayedPermits;
+  private long rejectedPermits;
+  private long totalWaitNanos;
+  private long maxObservedWaitNanos;
+
+  public AmberfloRateLimiter(final UsageConfigProperties props) {
+    this.permitsPerSecond = props.getRateLimitPermitsPerSecond();
+    this.burst = props.getRateLimitBurst();
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(props.getRateLimitMaxWaitMillis());
+    this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+    this.storedPermits = burst;
+    this.nextFreeNanos = System.nanoTime();
+  }
+
+  /**
+   * Takes a permit, waiting for it if needed but never past the deadline.
+   *
+   * @throws AmberfloClientException when the permit would not be available in time
+   */
+  public void acquire(final Deadline deadline) {
+    final long waitNanos = reserve(deadline);
+    if (waitNanos > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new AmberfloClientException("Interrupted while waiting for an Amberflo permit", e);
+      }
+    }
+  }
+
+  /**
+   * Same as {@link #acquire(Deadline)} without holding the calling thread while waiting.
+   *
+   * @return a future completed once the permit may be used
+   */
+  public CompletableFuture<Void> acquireAsync(final Deadline deadline) {
+    final long waitNanos;
+    try {
+      waitNanos = reserve(deadline);
+    } catch (AmberfloClientException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    if (waitNanos == 0) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return CompletableFuture.runAsync(
+        () -> {}, CompletableFuture.delayedExecutor(waitNanos, TimeUnit.NANOSECONDS));
+  }
+
+  // Hands out the next permit and returns how long to wait before using it. Permits saved while
+  // idle are used first, after that every permit starts one interval after the previous one
+  private synchronized long reserve(final Deadline deadline) {
+    final long now = System.nanoTime();
+    if (now > nextFreeNanos) {
+      storedPermits = Math.min(burst, storedPermits + (now - nextFreeNanos) / intervalNanos);
+      nextFreeNanos = now;
+    }
+
+    final long waitNanos = nextFreeNanos - now;
+    if (waitNanos > maxWaitNanos) {
+      rejectedPermits++;
+      throw new AmberfloClientException(
+          "Amberflo rate limit of "
+              + permitsPerSecond
+              + " requests per second reached, the next permit is "
+              + TimeUnit.NANOSECONDS.toMillis(waitNanos)
+              + " ms away");
+    }
+    if (waitNanos > deadline.remainingNanos()) {
+      rejectedPermits++;
+      throw deadline.exceeded("waiting for an Amberflo rate limit permit");
+    }
+
+    final double fromStored = Math.min(1, storedPermits);
+    storedPermits -= fromStored;
+    nextFreeNanos += (long) ((1 - fromStored) * intervalNanos);
+
+    grantedPermits++;
+    if (waitNanos > 0) {
+      delayedPermits++;
+      totalWaitNanos += waitNanos;
+      maxObservedWaitNanos = Math.max(maxObservedWaitNanos, waitNanos);
+    }
+    return waitNanos;
+  }
+
+  public synchronized Map<String, Object> getDetails() {
+    final Map<String, Object> details = new HashMap<>();
+    details.put("rateLimitPermitsPerSecond", permitsPerSecond);
+    details.put("rateLimitBurst", burst);
+    details.put("rateLimitGrantedPermits", grantedPermits);
+    details.put("rateLimitDelayedPermits", delayedPermits);
+    details.put("rateLimitRejectedPermits", rejectedPermits);
+    details.put("rateLimitTotalWaitMillis", TimeUnit.NANOSECONDS.toMillis(totalWaitNanos));
+    details.put("rateLimitMaxWaitMillis", TimeUnit.NANOSECONDS.toMillis(maxObservedWaitNanos));
+    return details;
+  }
+
+  // Whether the limiter still matches the rate settings of the configuration
+  boolean hasSameSettings(final UsageConfigProperties props) {
+    return permitsPerSecond == props.getRateLimitPermitsPerSecond()
+        && burst == props.getRateLimitBurst()
+        && maxWaitNanos == TimeUnit.MILLISECONDS.toNanos(props.getRateLimitMaxWaitMillis());
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+import org.killbill.billing.plugin.amberflo.usage.core.UsageConfigProperties;
+
+/**
+ * Decides whether and when a failed Amberflo request is sent again. Delays grow exponentially from
+ * the base delay and are jittered so that invoice threads failing together do not retry together.
+ * A Retry-After sent with a 429 or 503 takes precedence over the computed delay.
+ */
+class AmberfloRetryPolicy {
+
+  private final int maxRetries;
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+
+  AmberfloRetryPolicy(final UsageConfigProperties props) {
+    this.maxRetries = props.getMaxRetries();
+    this.baseDelayMillis = props.getRetryBaseDelayMillis();
+    this.maxDelayMillis = Math.max(props.getRetryMaxDelayMillis(), props.getRetryBaseDelayMillis());
+  }
+
+  /**
+   * @param retry number of retries already made for this request
+   * @param retryAfterMillis the delay asked for by Amberflo, -1 when it did not ask for one
+   * @return how long to wait before the next attempt, -1 to give up
+   */
+  long getDelayMillis(final int retry, final long retryAfterMillis) {
+    if (retry >= maxRetries) {
+      return -1;
+    }
+
+    // Waiting longer than we would ever back off for ourselves would only pin the caller
+    if (retryAfterMillis >= 0) {
+      return retryAfterMillis <= maxDelayMillis ? retryAfterMillis : -1;
+    }
+
+    final long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(retry, 20));
+    return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+  }
+
+  // Throttling and server side failures, a 501 will not go away by asking again
+  static boolean isRetryableStatus(final int statusCode) {
+    return statusCode == 429 || (statusCode >= 500 && statusCode != 501);
+  }
+
+  // Retry-After is either a number of seconds or an HTTP date
+  static long parseRetryAfterMillis(final String retryAfter) {
+    if (retryAfter == null || retryAfter.trim().isEmpty()) {
+      return -1;
+    }
+
+    final String value = retryAfter.trim();
+    try {
+      return Math.max(0, Long.parseLong(value) * 1000);
+    } catch (NumberFormatException e) {
+      // Not a number of seconds, try a date
+    }
+
+    try {
+      final ZonedDateTime retryAt =
+          ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+      return Math.max(0, retryAt.toInstant().toEpochMilli() - System.currentTimeMillis());
+    } catch (DateTimeParseException e) {
+      return -1;
+    }
+  }
+}
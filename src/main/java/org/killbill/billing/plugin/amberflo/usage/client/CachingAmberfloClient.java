@@ -0,0 +1,163 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+import java.util.concurrent.CompletableFuture;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * Serves the usage of a tenant from a {@link UsageIntervalCache}, fetching from the underlying
+ * client only the parts of a range it has not seen recently. Ranges are cached as [start, end)
+ * widened to whole seconds, the precision Amberflo is queried with, the way time slices are
+ * split. The rows handed over are those of the exact range, as without the cache.
+ *
+ * <p>Aggregated queries and the non-blocking variants go straight to the underlying client: the
+ * totals of a bucket cannot be stitched from the totals of its parts, and the non-blocking calls
+ * would otherwise wait on the cache lock.
+ */
+public class CachingAmberfloClient implements AmberfloClient {
+
+  private final AmberfloClient delegate;
+  private final UsageIntervalCache cache;
+
+  public CachingAmberfloClient(final AmberfloClient delegate, final UsageIntervalCache cache) {
+    this.delegate = delegate;
+    this.cache = cache;
+  }
+
+  public UsageIntervalCache getCache() {
+    return cache;
+  }
+
+  @Override
+  public void getUsageAccount(
+      final String customerId,
+      final DateTime startDate,
+      final DateTime endDate,
+      final Deadline deadline,
+      final UsageRowHandler handler) {
+    cache.fetch(
+        customerId,
+        null,
+        floorSecond(startDate),
+        ceilSecond(endDate),
+        deadline,
+        (startMillis, endMillis, rows) ->
+            delegate.getUsageAccount(
+                customerId, toDateTime(startMillis), toDateTime(endMillis), deadline, rows),
+        inRange(startDate, endDate, handler));
+  }
+
+  @Override
+  public void getUsageSubscription(
+      final String customerId,
+      final String meterApiName,
+      final DateTime startDate,
+      final DateTime endDate,
+      final Deadline deadline,
+      final UsageRowHandler handler) {
+    if (delegate.isAggregated()) {
+      delegate.getUsageSubscription(
+          customerId, meterApiName, startDate, endDate, deadline, handler);
+      return;
+    }
+    cache.fetch(
+        customerId,
+        meterApiName,
+        floorSecond(startDate),
+        ceilSecond(endDate),
+        deadline,
+        (startMillis, endMillis, rows) ->
+            delegate.getUsageSubscription(
+                customerId,
+                meterApiName,
+                toDateTime(startMillis),
+                toDateTime(endMillis),
+                deadline,
+                rows),
+        inRange(startDate, endDate, handler));
+  }
+
+  // Not cached: filling the gaps of a range takes the lock of its customer and meter, which a
+  // non-blocking call would have to wait on
+  @Override
+  public CompletableFuture<Void> getUsageAccountAsync(
+      final String customerId,
+      final DateTime startDate,
+      final DateTime endDate,
+      final Deadline deadline,
+      final UsageRowHandler handler) {
+    return delegate.getUsageAccountAsync(customerId, startDate, endDate, deadline, handler);
+  }
+
+  @Override
+  public CompletableFuture<Void> getUsageSubscriptionAsync(
+      final String customerId,
+      final String meterApiName,
+      final DateTime startDate,
+      final DateTime endDate,
+      final Deadline deadline,
+      final UsageRowHandler handler) {
+    return delegate.getUsageSubscriptionAsync(
+        customerId, meterApiName, startDate, endDate, deadline, handler);
+  }
+
+  @Override
+  public boolean isAggregated() {
+    return delegate.isAggregated();
+  }
+
+  @Override
+  public long getUsageBudgetMillis() {
+    return delegate.getUsageBudgetMillis();
+  }
+
+  @Override
+  public long getSpillThresholdBytes() {
+    return delegate.getSpillThresholdBytes();
+  }
+
+  @Override
+  public RecordAggregation getRecordAggregation() {
+    return delegate.getRecordAggregation();
+  }
+
+  private static long floorSecond(final DateTime date) {
+    return Math.floorDiv(date.getMillis(), 1000L) * 1000L;
+  }
+
+  private static long ceilSecond(final DateTime date) {
+    return Math.floorDiv(date.getMillis() + 999L, 1000L) * 1000L;
+  }
+
+  // Drops the rows of the whole seconds around the range that are outside of it
+  private static UsageRowHandler inRange(
+      final DateTime startDate, final DateTime endDate, final UsageRowHandler handler) {
+    final long startMillis = startDate.getMillis();
+    final long endMillis = endDate.getMillis();
+    return (customerId, measureName, sourceTimeInMillis, measureValue) -> {
+      if (sourceTimeInMillis >= startMillis && sourceTimeInMillis < endMillis) {
+        handler.onRow(customerId, measureName, sourceTimeInMillis, measureValue);
+      }
+    };
+  }
+
+  private static DateTime toDateTime(final long millis) {
+    return new DateTime(millis, DateTimeZone.UTC);
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time budget of a single usage call. Every stage of the call, from the Kill Bill lookups to the
+ * last Amberflo page, draws from the same budget: waits and HTTP timeouts are cut to what is left
+ * of it and the call fails with an {@link AmberfloClientException} once it is spent.
+ */
+public final class Deadline {
+
+  private static final Deadline NEVER = new Deadline(-1, 0);
+
+  private final long budgetMillis;
+  private final long expiresAtNanos;
+
+  private Deadline(final long budgetMillis, final long expiresAtNanos) {
+    this.budgetMillis = budgetMillis;
+    this.expiresAtNanos = expiresAtNanos;
+  }
+
+  /** Starts a budget of the given length now. */
+  public static Deadline after(final long budgetMillis) {
+    return new Deadline(
+        budgetMillis, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis));
+  }
+
+  /** A budget that is never spent, for callers that do not bound their calls. */
+  public static Deadline never() {
+    return NEVER;
+  }
+
+  public long remainingNanos() {
+    if (this == NEVER) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, expiresAtNanos - System.nanoTime());
+  }
+
+  public long remainingMillis() {
+    final long remainingNanos = remainingNanos();
+    return remainingNanos == Long.MAX_VALUE
+        ? Long.MAX_VALUE
+        : TimeUnit.NANOSECONDS.toMillis(remainingNanos + 999_999);
+  }
+
+  public boolean isExpired() {
+    return remainingNanos() == 0;
+  }
+
+  /**
+   * @return the configured timeout, shortened to what is left of the budget but never below 1 ms
+   *     since a timeout of 0 means no timeout at all to the HTTP clients
+   */
+  public int capTimeoutMillis(final int timeoutMillis) {
+    return (int) Math.max(1, Math.min(timeoutMillis, remainingMillis()));
+  }
+
+  /**
+   * @param stage what the call was doing, for the error message
+   * @throws AmberfloClientException when the budget is spent
+   */
+  public void check(final String stage) {
+    if (isExpired()) {
+      throw exceeded(stage);
+    }
+  }
+
+  public AmberfloClientException exceeded(final String stage) {
+    return new AmberfloClientException(
+        "Usage call ran out of its " + budgetMillis + " ms budget while " + stage);
+  }
+}
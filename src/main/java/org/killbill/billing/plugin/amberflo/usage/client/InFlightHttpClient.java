@@ -0,0 +1,131 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+import java.io.IOException;
+import java.net.Authenticator;
+import java.net.CookieHandler;
+import java.net.ProxySelector;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * Counts the requests a JDK {@link HttpClient} has in flight. The client has no close method on
+ * Java 11, and shutting its executor down while a request is in flight leaves that request hanging
+ * forever, so the executor of a retired client may only go once this count is back to zero.
+ */
+final class InFlightHttpClient extends HttpClient {
+
+  private final HttpClient delegate;
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  InFlightHttpClient(final HttpClient delegate) {
+    this.delegate = delegate;
+  }
+
+  int getInFlight() {
+    return inFlight.get();
+  }
+
+  @Override
+  public <T> HttpResponse<T> send(
+      final HttpRequest request, final HttpResponse.BodyHandler<T> responseBodyHandler)
+      throws IOException, InterruptedException {
+    inFlight.incrementAndGet();
+    try {
+      return delegate.send(request, responseBodyHandler);
+    } finally {
+      inFlight.decrementAndGet();
+    }
+  }
+
+  @Override
+  public <T> CompletableFuture<HttpResponse<T>> sendAsync(
+      final HttpRequest request, final HttpResponse.BodyHandler<T> responseBodyHandler) {
+    return sendAsync(request, responseBodyHandler, null);
+  }
+
+  @Override
+  public <T> CompletableFuture<HttpResponse<T>> sendAsync(
+      final HttpRequest request,
+      final HttpResponse.BodyHandler<T> responseBodyHandler,
+      final HttpResponse.PushPromiseHandler<T> pushPromiseHandler) {
+    inFlight.incrementAndGet();
+    final CompletableFuture<HttpResponse<T>> response;
+    try {
+      response = delegate.sendAsync(request, responseBodyHandler, pushPromiseHandler);
+    } catch (RuntimeException | Error e) {
+      inFlight.decrementAndGet();
+      throw e;
+    }
+    response.whenComplete((ignored, throwable) -> inFlight.decrementAndGet());
+    return response;
+  }
+
+  @Override
+  public Optional<CookieHandler> cookieHandler() {
+    return delegate.cookieHandler();
+  }
+
+  @Override
+  public Optional<Duration> connectTimeout() {
+    return delegate.connectTimeout();
+  }
+
+  @Override
+  public Redirect followRedirects() {
+    return delegate.followRedirects();
+  }
+
+  @Override
+  public Optional<ProxySelector> proxy() {
+    return delegate.proxy();
+  }
+
+  @Override
+  public SSLContext sslContext() {
+    return delegate.sslContext();
+  }
+
+  @Override
+  public SSLParameters sslParameters() {
+    return delegate.sslParameters();
+  }
+
+  @Override
+  public Optional<Authenticator> authenticator() {
+    return delegate.authenticator();
+  }
+
+  @Override
+  public Version version() {
+    return delegate.version();
+  }
+
+  @Override
+  public Optional<Executor> executor() {
+    return delegate.executor();
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+import java.util.Arrays;
+
+/**
+ * Counts of longs kept in two arrays with open addressing and linear probing, so that counting one
+ * boxes nothing. Meant for keys that are already hashes, such as row hashes: their low bits pick
+ * the slot as is.
+ */
+final class LongCountMap {
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  // Zero marks a free slot, the count of zero itself is kept aside
+  private long[] keys = new long[INITIAL_CAPACITY];
+  private int[] counts = new int[INITIAL_CAPACITY];
+  private int zeroCount;
+  private int size;
+
+  /** Counts the key once more, and returns how many times it was counted before. */
+  int increment(final long key) {
+    if (key == 0) {
+      if (zeroCount == 0) {
+        size++;
+      }
+      return zeroCount++;
+    }
+    final int mask = keys.length - 1;
+    int slot = slotOf(key, mask);
+    while (keys[slot] != 0) {
+      if (keys[slot] == key) {
+        return counts[slot]++;
+      }
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    counts[slot] = 1;
+    size++;
+    // Probes stay short while at most two thirds of the slots are taken
+    if (size * 3L > keys.length * 2L) {
+      grow();
+    }
+    return 0;
+  }
+
+  /** How many times the key was counted. */
+  int get(final long key) {
+    if (key == 0) {
+      return zeroCount;
+    }
+    final int mask = keys.length - 1;
+    int slot = slotOf(key, mask);
+    while (keys[slot] != 0) {
+      if (keys[slot] == key) {
+        return counts[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return 0;
+  }
+
+  /** Number of distinct keys counted. */
+  int size() {
+    return size;
+  }
+
+  /** Forgets every count, keeping the arrays for the next ones. */
+  void clear() {
+    if (size > 0) {
+      Arrays.fill(keys, 0L);
+      zeroCount = 0;
+      size = 0;
+    }
+  }
+
+  private void grow() {
+    final long[] previousKeys = keys;
+    final int[] previousCounts = counts;
+    keys = new long[previousKeys.length * 2];
+    counts = new int[previousKeys.length * 2];
+    final int mask = keys.length - 1;
+    for (int i = 0; i < previousKeys.length; i++) {
+      if (previousKeys[i] != 0) {
+        int slot = slotOf(previousKeys[i], mask);
+        while (keys[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = previousKeys[i];
+        counts[slot] = previousCounts[i];
+      }
+    }
+  }
+
+  private static int slotOf(final long key, final int mask) {
+    return (int) (key ^ (key >>> 32)) & mask;
+  }
+}
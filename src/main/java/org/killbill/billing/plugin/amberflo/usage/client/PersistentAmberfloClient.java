@@ -0,0 +1,329 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import javax.annotation.Nullable;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.jooq.exception.DataAccessException;
+import org.killbill.billing.plugin.amberflo.usage.dao.AmberfloUsageDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers usage queries from the plugin database where it can, as a read-through cache in front
+ * of Amberflo that survives restarts. Ranges are split in fixed time buckets: the buckets that
+ * were settled, older than the late-arrival horizon, are read from the database or fetched once
+ * and stored, while the partial buckets at both ends and the recent tail always go to Amberflo.
+ *
+ * <p>The database only speeds calls up: when it cannot be read or written the usage is fetched
+ * from Amberflo as if there were no store. Aggregated queries and the non-blocking variants go
+ * straight to the underlying client.
+ */
+public class PersistentAmberfloClient implements AmberfloClient {
+
+  private static final Logger logger = LoggerFactory.getLogger(PersistentAmberfloClient.class);
+
+  // The tables do not accept a null tenant, usage fetched without one is stored under this one
+  private static final UUID DEFAULT_TENANT_ID = new UUID(0L, 0L);
+
+  private final AmberfloClient delegate;
+  private final AmberfloUsageDao dao;
+  private final UUID tenantId;
+  private final long bucketMillis;
+  private final long horizonMillis;
+
+  public PersistentAmberfloClient(
+      final AmberfloClient delegate,
+      final AmberfloUsageDao dao,
+      @Nullable final UUID tenantId,
+      final long bucketMillis,
+      final long horizonMillis) {
+    this.delegate = delegate;
+    this.dao = dao;
+    this.tenantId = tenantId == null ? DEFAULT_TENANT_ID : tenantId;
+    this.bucketMillis = bucketMillis;
+    this.horizonMillis = horizonMillis;
+  }
+
+  @Override
+  public void getUsageAccount(
+      final String customerId,
+      final DateTime startDate,
+      final DateTime endDate,
+      final Deadline deadline,
+      final UsageRowHandler handler) {
+    fetch(
+        customerId,
+        null,
+        startDate.getMillis(),
+        endDate.getMillis(),
+        deadline,
+        (startMillis, endMillis, rows) ->
+            delegate.getUsageAccount(
+                customerId, toDateTime(startMillis), toDateTime(endMillis), deadline, rows),
+        handler);
+  }
+
+  @Override
+  public void getUsageSubscription(
+      final String customerId,
+      final String meterApiName,
+      final DateTime startDate,
+      final DateTime endDate,
+      final Deadline deadline,
+      final UsageRowHandler handler) {
+    if (delegate.isAggregated()) {
+      delegate.getUsageSubscription(
+          customerId, meterApiName, startDate, endDate, deadline, handler);
+      return;
+    }
+    fetch(
+        customerId,
+        meterApiName,
+        startDate.getMillis(),
+        endDate.getMillis(),
+        deadline,
+        (startMillis, endMillis, rows) ->
+            delegate.getUsageSubscription(
+                customerId,
+                meterApiName,
+                toDateTime(startMillis),
+                toDateTime(endMillis),
+                deadline,
+                rows),
+        handler);
+  }
+
+  private void fetch(
+      final String customerId,
+      @Nullable final String meterApiName,
+      final long startMillis,
+      final long endMillis,
+      final Deadline deadline,
+      final UsageIntervalCache.GapFetcher fetcher,
+      final UsageRowHandler handler) {
+    // Whole buckets of the range that were settled by now
+    final long firstBucket = Math.floorDiv(startMillis + bucketMillis - 1, bucketMillis);
+    final long settledEnd = Math.min(endMillis, System.currentTimeMillis() - horizonMillis);
+    final long lastBucket = Math.floorDiv(settledEnd, bucketMillis);
+    if (firstBucket >= lastBucket) {
+      fetcher.fetch(startMillis, endMillis, handler);
+      return;
+    }
+    final long storedFrom = firstBucket * bucketMillis;
+    final long storedTo = lastBucket * bucketMillis;
+
+    deadline.check("looking up the stored usage of customer " + customerId);
+    final Set<Long> stored = getStoredBuckets(customerId, meterApiName, storedFrom, storedTo);
+
+    if (startMillis < storedFrom) {
+      fetcher.fetch(startMillis, storedFrom, inRange(startMillis, storedFrom, handler));
+    }
+    long bucket = storedFrom;
+    while (bucket < storedTo) {
+      if (stored.contains(bucket) && readBucket(customerId, meterApiName, bucket, handler)) {
+        bucket += bucketMillis;
+        continue;
+      }
+      // Consecutive missing buckets are fetched with a single query, then stored one by one
+      long missingTo = bucket + bucketMillis;
+      while (missingTo < storedTo && !stored.contains(missingTo)) {
+        missingTo += bucketMillis;
+      }
+      fetchAndStore(customerId, meterApiName, bucket, missingTo, fetcher, handler);
+      bucket = missingTo;
+    }
+    if (storedTo < endMillis) {
+      fetcher.fetch(storedTo, endMillis, inRange(storedTo, endMillis, handler));
+    }
+  }
+
+  private void fetchAndStore(
+      final String customerId,
+      @Nullable final String meterApiName,
+      final long fromMillis,
+      final long toMillis,
+      final UsageIntervalCache.GapFetcher fetcher,
+      final UsageRowHandler handler) {
+    final BucketWriter writer = new BucketWriter(customerId, meterApiName, fromMillis);
+    fetcher.fetch(
+        fromMillis,
+        toMillis,
+        (rowCustomerId, measureName, sourceTimeInMillis, measureValue) -> {
+          if (sourceTimeInMillis >= fromMillis && sourceTimeInMillis < toMillis) {
+            handler.onRow(rowCustomerId, measureName, sourceTimeInMillis, measureValue);
+            writer.onRow(rowCustomerId, measureName, sourceTimeInMillis, measureValue);
+          }
+        });
+    writer.storeUntil(toMillis);
+  }
+
+  private Set<Long> getStoredBuckets(
+      final String customerId,
+      @Nullable final String meterApiName,
+      final long fromMillis,
+      final long toMillis) {
+    try {
+      return dao.getStoredBuckets(
+          tenantId, customerId, meterApiName, fromMillis, toMillis, bucketMillis);
+    } catch (SQLException | DataAccessException e) {
+      logger.warn("Unable to read the stored usage of customer {}: {}", customerId, e.getMessage());
+      return Collections.emptySet();
+    }
+  }
+
+  // False when the bucket could not be read, before any of its rows was handed over
+  private boolean readBucket(
+      final String customerId,
+      @Nullable final String meterApiName,
+      final long bucketStart,
+      final UsageRowHandler handler) {
+    final UsageRowBuffer rows = new UsageRowBuffer();
+    try {
+      dao.getUsage(
+          tenantId, customerId, meterApiName, bucketStart, bucketStart + bucketMillis, rows);
+    } catch (SQLException | DataAccessException e) {
+      logger.warn("Unable to read the stored usage of customer {}: {}", customerId, e.getMessage());
+      return false;
+    }
+    rows.drainTo(handler);
+    return true;
+  }
+
+  // Drops the rows the fetch returned outside of [fromMillis, toMillis)
+  private static UsageRowHandler inRange(
+      final long fromMillis, final long toMillis, final UsageRowHandler handler) {
+    return (customerId, measureName, sourceTimeInMillis, measureValue) -> {
+      if (sourceTimeInMillis >= fromMillis && sourceTimeInMillis < toMillis) {
+        handler.onRow(customerId, measureName, sourceTimeInMillis, measureValue);
+      }
+    };
+  }
+
+  // Not stored: reading and writing the database would block the thread of a non-blocking call
+  @Override
+  public CompletableFuture<Void> getUsageAccountAsync(
+      final String customerId,
+      final DateTime startDate,
+      final DateTime endDate,
+      final Deadline deadline,
+      final UsageRowHandler handler) {
+    return delegate.getUsageAccountAsync(customerId, startDate, endDate, deadline, handler);
+  }
+
+  @Override
+  public CompletableFuture<Void> getUsageSubscriptionAsync(
+      final String customerId,
+      final String meterApiName,
+      final DateTime startDate,
+      final DateTime endDate,
+      final Deadline deadline,
+      final UsageRowHandler handler) {
+    return delegate.getUsageSubscriptionAsync(
+        customerId, meterApiName, startDate, endDate, deadline, handler);
+  }
+
+  @Override
+  public boolean isAggregated() {
+    return delegate.isAggregated();
+  }
+
+  @Override
+  public long getUsageBudgetMillis() {
+    return delegate.getUsageBudgetMillis();
+  }
+
+  @Override
+  public long getSpillThresholdBytes() {
+    return delegate.getSpillThresholdBytes();
+  }
+
+  @Override
+  public RecordAggregation getRecordAggregation() {
+    return delegate.getRecordAggregation();
+  }
+
+  // Stores the rows of consecutive buckets as they are fetched. Rows come in chronological order,
+  // so a bucket is complete and stored as soon as a row of a later one shows up, and only the rows
+  // of the bucket in flight are held
+  private final class BucketWriter implements UsageRowHandler {
+
+    private final String customerId;
+    @Nullable private final String meterApiName;
+    private long bucketStart;
+    private UsageRowBuffer rows = new UsageRowBuffer();
+
+    private BucketWriter(
+        final String customerId, @Nullable final String meterApiName, final long fromMillis) {
+      this.customerId = customerId;
+      this.meterApiName = meterApiName;
+      this.bucketStart = fromMillis;
+    }
+
+    @Override
+    public void onRow(
+        final String rowCustomerId,
+        final String measureName,
+        final long sourceTimeInMillis,
+        final String measureValue) {
+      if (rows == null) {
+        return;
+      }
+      if (sourceTimeInMillis < bucketStart) {
+        logger.warn("Not storing the usage of customer {}, rows out of order", customerId);
+        rows = null;
+        return;
+      }
+      storeUntil(sourceTimeInMillis - (sourceTimeInMillis - bucketStart) % bucketMillis);
+      if (rows != null) {
+        rows.onRow(rowCustomerId, measureName, sourceTimeInMillis, measureValue);
+      }
+    }
+
+    // Stores the buckets before the given one, empty ones included
+    private void storeUntil(final long endMillis) {
+      while (rows != null && bucketStart < endMillis) {
+        final UsageRowBuffer bucketRows = rows;
+        try {
+          dao.addBucket(
+              tenantId,
+              customerId,
+              meterApiName,
+              bucketStart,
+              bucketStart + bucketMillis,
+              bucketRows::replayTo);
+        } catch (SQLException | DataAccessException e) {
+          logger.warn("Unable to store the usage of customer {}: {}", customerId, e.getMessage());
+          rows = null;
+          return;
+        }
+        bucketStart += bucketMillis;
+        rows = new UsageRowBuffer();
+      }
+    }
+  }
+
+  private static DateTime toDateTime(final long millis) {
+    return new DateTime(millis, DateTimeZone.UTC);
+  }
+}
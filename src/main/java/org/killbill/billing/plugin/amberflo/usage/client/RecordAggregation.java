@@ -14,17 +14,16 @@
  * under the License.
  */
 
-package org.killbill.billing.plugin.amberflo.usage.api;
+package org.killbill.billing.plugin.amberflo.usage.client;
 
-import lombok.Getter;
-import lombok.Setter;
-
-@Getter
-@Setter
-public class OutputDTO {
-
-  private String customerID;
-  private String measureValue;
-  private String sourceTimeInMillis;
-  private String measureName;
+/**
+ * How the usage records handed to Kill Bill are summed by the plugin, per subscription, unit type
+ * and bucket. Hours and days start in the time zone of the account, a period is the whole range
+ * Kill Bill asked for.
+ */
+public enum RecordAggregation {
+  NONE,
+  HOUR,
+  DAY,
+  PERIOD
 }
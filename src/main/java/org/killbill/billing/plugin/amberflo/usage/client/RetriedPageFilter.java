@@ -0,0 +1,68 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+/**
+ * Drops the rows a retried request hands over again after an earlier attempt at the same page
+ * failed part way through its body. A row of the retry is only dropped while the earlier attempts
+ * handed over more rows identical to it than the retry did so far, so identical events of the page
+ * are all kept. Only the rows of the page in flight are counted, and the counts are kept from one
+ * page to the next.
+ */
+final class RetriedPageFilter {
+
+  private final UsageRowHash rowHash = new UsageRowHash();
+  // Rows of the page handed over by any attempt so far
+  private final LongCountMap handedOver = new LongCountMap();
+  private final LongCountMap retried = new LongCountMap();
+  private int attempts;
+  private long dropped;
+
+  /** To be called before the first attempt at each page. */
+  void startPage() {
+    handedOver.clear();
+    attempts = 0;
+    dropped = 0;
+  }
+
+  /** Handler of the rows of the next attempt at the page. */
+  UsageRowHandler nextAttempt(final UsageRowHandler handler) {
+    if (attempts++ == 0) {
+      return (customerId, measureName, sourceTimeInMillis, measureValue) -> {
+        handedOver.increment(
+            rowHash.next(customerId, measureName, sourceTimeInMillis, measureValue));
+        handler.onRow(customerId, measureName, sourceTimeInMillis, measureValue);
+      };
+    }
+
+    retried.clear();
+    return (customerId, measureName, sourceTimeInMillis, measureValue) -> {
+      final long hash = rowHash.next(customerId, measureName, sourceTimeInMillis, measureValue);
+      if (retried.increment(hash) < handedOver.get(hash)) {
+        dropped++;
+        return;
+      }
+      handedOver.increment(hash);
+      handler.onRow(customerId, measureName, sourceTimeInMillis, measureValue);
+    };
+  }
+
+  /** Rows of the page dropped because an earlier attempt handed them over. */
+  long getDropped() {
+    return dropped;
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+/**
+ * A failure that may go away on its own: Amberflo could not be reached, or answered 429 or a 5xx.
+ * It never leaves the client, the request is retried or the failure is wrapped.
+ */
+class RetryableAmberfloClientException extends AmberfloClientException {
+
+  private static final long serialVersionUID = 1L;
+
+  // How long Amberflo asked us to wait through Retry-After, -1 when it did not say
+  private final long retryAfterMillis;
+
+  RetryableAmberfloClientException(final String message, final long retryAfterMillis) {
+    super(message);
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  RetryableAmberfloClientException(final String message, final Throwable cause) {
+    super(message, cause);
+    this.retryAfterMillis = -1;
+  }
+
+  long getRetryAfterMillis() {
+    return retryAfterMillis;
+  }
+}
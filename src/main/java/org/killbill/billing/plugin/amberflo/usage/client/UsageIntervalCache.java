@@ -0,0 +1,447 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Usage rows already fetched from Amberflo, per customer and meter, indexed by the time intervals
+ * they cover. A query is answered from the intervals that are still fresh and only the gaps
+ * between them are fetched. The rows of a gap are handed over as they arrive and kept for the next
+ * query.
+ *
+ * <p>Amberflo keeps accepting events for some time after they happened. Rows older than the
+ * late-arrival horizon when they were fetched are considered settled and kept until evicted, the
+ * more recent tail is fetched again once it is older than the ttl. Rows showing up in a tail that
+ * was fetched before are counted as late arrivals, so that the horizon can be tuned from how late
+ * they actually were.
+ *
+ * <p>The cache is bounded by an estimate of the heap its rows take and by their number; past
+ * either ceiling the least recently used customer and meter pairs are dropped as a whole. A gap
+ * whose rows alone pass a ceiling is not kept at all.
+ */
+public class UsageIntervalCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(UsageIntervalCache.class);
+
+  /** Fetches the rows of [startMillis, endMillis) from Amberflo. */
+  public interface GapFetcher {
+
+    void fetch(long startMillis, long endMillis, UsageRowHandler handler);
+  }
+
+  private final long maxBytes;
+  private final long maxRecords;
+  private final long ttlNanos;
+  private final long horizonMillis;
+
+  // Access ordered so that the eldest entry is the least recently used one, guarded by itself
+  private final LinkedHashMap<EntryKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes;
+  private long totalRecords;
+  // Rows missing from a tail when it was first fetched, guarded by the map of entries
+  private long lateRows;
+  private long maxObservedLatenessMillis;
+
+  /**
+   * @param ttlMillis how long rows more recent than the horizon are served before they are fetched
+   *     again
+   * @param horizonMillis how late Amberflo may still receive events, rows older than that are
+   *     never fetched again
+   */
+  public UsageIntervalCache(
+      final long maxBytes, final long maxRecords, final long ttlMillis, final long horizonMillis) {
+    this.maxBytes = maxBytes;
+    this.maxRecords = maxRecords;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    this.horizonMillis = horizonMillis;
+  }
+
+  /**
+   * Hands the rows of [startMillis, endMillis) to the handler in chronological order, fetching
+   * what the cache does not hold. Queries for the same customer and meter run one at a time.
+   *
+   * @throws AmberfloClientException when a gap cannot be fetched or the deadline passes first
+   */
+  public void fetch(
+      final String customerId,
+      @Nullable final String meterApiName,
+      final long startMillis,
+      final long endMillis,
+      final Deadline deadline,
+      final GapFetcher fetcher,
+      final UsageRowHandler handler) {
+    final EntryKey key = new EntryKey(customerId, meterApiName);
+    final Entry entry;
+    synchronized (entries) {
+      entry = entries.computeIfAbsent(key, ignored -> new Entry());
+    }
+
+    try {
+      if (!entry.lock.tryLock(deadline.remainingNanos(), TimeUnit.NANOSECONDS)) {
+        throw deadline.exceeded("waiting for the cached usage of " + key);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AmberfloClientException("Interrupted while waiting for " + key, e);
+    }
+
+    try {
+      final long now = System.nanoTime();
+      final long nowMillis = System.currentTimeMillis();
+      final List<Interval> stale = dropStale(entry, startMillis, endMillis, now);
+
+      final List<long[]> gaps = entry.gaps(startMillis, endMillis);
+      logger.debug(
+          "Fetching {} gaps of {} from {} to {}", gaps.size(), key, startMillis, endMillis);
+      // Cached rows and the rows of the gaps are handed over as they come, in chronological order
+      long cursor = startMillis;
+      for (long[] gap : gaps) {
+        if (gap[0] > cursor) {
+          entry.replay(cursor, gap[0], handler);
+        }
+        fillGap(key, entry, stale, gap[0], gap[1], now, nowMillis, fetcher, handler);
+        cursor = gap[1];
+      }
+      if (cursor < endMillis) {
+        entry.replay(cursor, endMillis, handler);
+      }
+    } finally {
+      entry.lock.unlock();
+    }
+
+    evict();
+  }
+
+  private void fillGap(
+      final EntryKey key,
+      final Entry entry,
+      final List<Interval> stale,
+      final long gapStart,
+      final long gapEnd,
+      final long now,
+      final long nowMillis,
+      final GapFetcher fetcher,
+      final UsageRowHandler handler) {
+    // A gap straddling the horizon is fetched once and kept as a settled and a tail interval
+    final long settledEnd = Math.max(gapStart, Math.min(gapEnd, nowMillis - horizonMillis));
+    final GapRows rows = new GapRows(settledEnd);
+    fetcher.fetch(
+        gapStart,
+        gapEnd,
+        (rowCustomerId, measureName, sourceTimeInMillis, measureValue) -> {
+          // Amberflo may include the row sitting on the end of the range, it belongs to the
+          // interval that starts there
+          if (sourceTimeInMillis >= gapStart && sourceTimeInMillis < gapEnd) {
+            rows.onRow(rowCustomerId, measureName, sourceTimeInMillis, measureValue);
+            handler.onRow(rowCustomerId, measureName, sourceTimeInMillis, measureValue);
+          }
+        });
+    if (rows.settled == null) {
+      logger.debug("Not caching the usage of {} from {} to {}, too large", key, gapStart, gapEnd);
+      return;
+    }
+
+    if (!stale.isEmpty()) {
+      countLateRows(stale, rows.settled, rows.tail);
+    }
+    if (settledEnd > gapStart) {
+      entry.intervals.put(
+          gapStart, new Interval(gapStart, settledEnd, true, now, nowMillis, rows.settled));
+      addWeight(entry, rows.settled.estimatedBytes(), rows.settled.size());
+    }
+    if (gapEnd > settledEnd) {
+      entry.intervals.put(
+          settledEnd, new Interval(settledEnd, gapEnd, false, now, nowMillis, rows.tail));
+      addWeight(entry, rows.tail.estimatedBytes(), rows.tail.size());
+    }
+  }
+
+  // Drops the tail intervals overlapping the query that have been kept for longer than the ttl
+  private List<Interval> dropStale(
+      final Entry entry, final long startMillis, final long endMillis, final long now) {
+    final List<Interval> stale = new ArrayList<>();
+    final Iterator<Interval> overlapping = entry.overlapping(startMillis, endMillis).iterator();
+    while (overlapping.hasNext()) {
+      final Interval interval = overlapping.next();
+      if (!interval.settled && now - interval.fetchedAtNanos > ttlNanos) {
+        overlapping.remove();
+        addWeight(entry, -interval.rows.estimatedBytes(), -interval.rows.size());
+        stale.add(interval);
+      }
+    }
+    return stale;
+  }
+
+  // Rows fetched again that a stale interval did not have were received by Amberflo after that
+  // interval was fetched, so at least that long after they happened
+  private void countLateRows(final List<Interval> stale, final UsageRowBuffer... fresh) {
+    final Map<Long, Integer> knownRows = new HashMap<>();
+    for (Interval interval : stale) {
+      interval.rows.replayTo(
+          (customerId, measureName, sourceTimeInMillis, measureValue) ->
+              knownRows.merge(sourceTimeInMillis, 1, Integer::sum));
+    }
+
+    final long[] late = {0, 0};
+    final UsageRowHandler counter =
+        (customerId, measureName, sourceTimeInMillis, measureValue) -> {
+          final Integer known = knownRows.get(sourceTimeInMillis);
+          if (known != null && known > 0) {
+            knownRows.put(sourceTimeInMillis, known - 1);
+            return;
+          }
+          for (Interval interval : stale) {
+            if (sourceTimeInMillis >= interval.startMillis
+                && sourceTimeInMillis < interval.endMillis) {
+              late[0]++;
+              late[1] = Math.max(late[1], interval.fetchedAtMillis - sourceTimeInMillis);
+              return;
+            }
+          }
+        };
+    for (UsageRowBuffer rows : fresh) {
+      rows.replayTo(counter);
+    }
+
+    if (late[0] > 0) {
+      logger.info("Amberflo received {} usage rows up to {} ms late", late[0], late[1]);
+      synchronized (entries) {
+        lateRows += late[0];
+        maxObservedLatenessMillis = Math.max(maxObservedLatenessMillis, late[1]);
+      }
+    }
+  }
+
+  private void addWeight(final Entry entry, final long bytes, final long records) {
+    synchronized (entries) {
+      // An evicted entry no longer counts, its rows go away with the query using it
+      if (entry.evicted) {
+        return;
+      }
+      entry.bytes += bytes;
+      entry.records += records;
+      totalBytes += bytes;
+      totalRecords += records;
+    }
+  }
+
+  private void evict() {
+    synchronized (entries) {
+      final Iterator<Map.Entry<EntryKey, Entry>> eldest = entries.entrySet().iterator();
+      while ((totalBytes > maxBytes || totalRecords > maxRecords) && eldest.hasNext()) {
+        final Map.Entry<EntryKey, Entry> evicted = eldest.next();
+        eldest.remove();
+        evicted.getValue().evicted = true;
+        totalBytes -= evicted.getValue().bytes;
+        totalRecords -= evicted.getValue().records;
+        logger.debug("Evicted the cached usage of {}", evicted.getKey());
+      }
+    }
+  }
+
+  public long getEstimatedBytes() {
+    synchronized (entries) {
+      return totalBytes;
+    }
+  }
+
+  public long getRecordCount() {
+    synchronized (entries) {
+      return totalRecords;
+    }
+  }
+
+  public long getLateRows() {
+    synchronized (entries) {
+      return lateRows;
+    }
+  }
+
+  public long getMaxObservedLatenessMillis() {
+    synchronized (entries) {
+      return maxObservedLatenessMillis;
+    }
+  }
+
+  public Map<String, Object> getDetails() {
+    final Map<String, Object> details = new HashMap<>();
+    synchronized (entries) {
+      details.put("usageCacheRecords", totalRecords);
+      details.put("usageCacheEstimatedBytes", totalBytes);
+      details.put("usageCacheLateRows", lateRows);
+      details.put("usageCacheMaxObservedLatenessMillis", maxObservedLatenessMillis);
+    }
+    details.put("lateArrivalHorizonMillis", horizonMillis);
+    return details;
+  }
+
+  private static final class Entry {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Non overlapping intervals by start, guarded by lock
+    private final NavigableMap<Long, Interval> intervals = new TreeMap<>();
+    // Guarded by the map of entries
+    private long bytes;
+    private long records;
+    private boolean evicted;
+
+    private Iterable<Interval> overlapping(final long startMillis, final long endMillis) {
+      final Long first = intervals.floorKey(startMillis);
+      final NavigableMap<Long, Interval> candidates =
+          intervals.subMap(first == null ? startMillis : first, true, endMillis, false);
+      if (first != null && intervals.get(first).endMillis <= startMillis) {
+        return candidates.tailMap(first, false).values();
+      }
+      return candidates.values();
+    }
+
+    // The parts of [startMillis, endMillis) no interval covers, in chronological order
+    private List<long[]> gaps(final long startMillis, final long endMillis) {
+      final List<long[]> gaps = new ArrayList<>();
+      long cursor = startMillis;
+      for (Interval interval : overlapping(startMillis, endMillis)) {
+        if (interval.startMillis > cursor) {
+          gaps.add(new long[] {cursor, interval.startMillis});
+        }
+        cursor = Math.max(cursor, interval.endMillis);
+      }
+      if (cursor < endMillis) {
+        gaps.add(new long[] {cursor, endMillis});
+      }
+      return gaps;
+    }
+
+    private void replay(
+        final long startMillis, final long endMillis, final UsageRowHandler handler) {
+      final UsageRowHandler inRange =
+          (customerId, measureName, sourceTimeInMillis, measureValue) -> {
+            if (sourceTimeInMillis >= startMillis && sourceTimeInMillis < endMillis) {
+              handler.onRow(customerId, measureName, sourceTimeInMillis, measureValue);
+            }
+          };
+      for (Interval interval : overlapping(startMillis, endMillis)) {
+        interval.rows.replayTo(inRange);
+      }
+    }
+  }
+
+  // Rows of a gap on either side of the horizon. Rows that alone pass a ceiling of the cache could
+  // not be kept anyway, they are let go of as soon as they do instead of being held to the end
+  private final class GapRows implements UsageRowHandler {
+
+    private final long settledEnd;
+    private UsageRowBuffer settled = new UsageRowBuffer();
+    private UsageRowBuffer tail = new UsageRowBuffer();
+
+    private GapRows(final long settledEnd) {
+      this.settledEnd = settledEnd;
+    }
+
+    @Override
+    public void onRow(
+        final String customerId,
+        final String measureName,
+        final long sourceTimeInMillis,
+        final String measureValue) {
+      if (settled == null) {
+        return;
+      }
+      (sourceTimeInMillis < settledEnd ? settled : tail)
+          .onRow(customerId, measureName, sourceTimeInMillis, measureValue);
+      if (settled.estimatedBytes() + tail.estimatedBytes() > maxBytes
+          || settled.size() + tail.size() > maxRecords) {
+        settled = null;
+        tail = null;
+      }
+    }
+  }
+
+  // Rows of [startMillis, endMillis) as fetched at fetchedAtNanos, settled when the whole
+  // interval was older than the horizon by then
+  private static final class Interval {
+
+    private final long startMillis;
+    private final long endMillis;
+    private final boolean settled;
+    private final long fetchedAtNanos;
+    private final long fetchedAtMillis;
+    private final UsageRowBuffer rows;
+
+    private Interval(
+        final long startMillis,
+        final long endMillis,
+        final boolean settled,
+        final long fetchedAtNanos,
+        final long fetchedAtMillis,
+        final UsageRowBuffer rows) {
+      this.startMillis = startMillis;
+      this.endMillis = endMillis;
+      this.settled = settled;
+      this.fetchedAtNanos = fetchedAtNanos;
+      this.fetchedAtMillis = fetchedAtMillis;
+      this.rows = rows;
+    }
+  }
+
+  private static final class EntryKey {
+
+    private final String customerId;
+    private final String meterApiName;
+
+    private EntryKey(final String customerId, @Nullable final String meterApiName) {
+      this.customerId = customerId;
+      this.meterApiName = meterApiName;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof EntryKey)) {
+        return false;
+      }
+      final EntryKey other = (EntryKey) o;
+      return Objects.equals(customerId, other.customerId)
+          && Objects.equals(meterApiName, other.meterApiName);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(customerId, meterApiName);
+    }
+
+    @Override
+    public String toString() {
+      return "customer " + customerId + (meterApiName == null ? "" : " meter " + meterApiName);
+    }
+  }
+}
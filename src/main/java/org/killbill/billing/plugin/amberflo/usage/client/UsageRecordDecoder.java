@@ -0,0 +1,269 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.InputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decodes one page of an Amberflo usage events response, an object with {@code columns}, {@code
+ * rows} and {@code nextPageToken}, token by token. Column positions are resolved once from {@code
+ * columns}, then every row is handed to the {@link UsageRowHandler} as soon as it has been read:
+ * the row arrays are never materialised. Customer ids and meter names are interned per page, the
+ * rows carrying the same value share one String.
+ */
+public class UsageRecordDecoder implements UsageResponseDecoder {
+
+  private static final ObjectMapper recordMapper = new ObjectMapper();
+  private static final Logger logger = LoggerFactory.getLogger(UsageRecordDecoder.class);
+
+  public static final String CUSTOMER_ID_FIELD = "customerId";
+  public static final String MEASURE_VALUE_FIELD = "measure_value::double";
+  public static final String SOURCE_TIME_IN_MILLIS_FIELD = "sourceTimeInMillis";
+  public static final String MEASURE_NAME_FIELD = "measure_name";
+
+  private static final String COLUMNS_FIELD = "columns";
+  private static final String ROWS_FIELD = "rows";
+  private static final String NEXT_PAGE_TOKEN_FIELD = "nextPageToken";
+
+  /**
+   * @return the token of the next page, or null when this was the last one
+   */
+  @Override
+  public String decode(InputStream content, UsageRowHandler handler) throws IOException {
+    try (JsonParser parser = recordMapper.getFactory().createParser(content)) {
+      return decode(parser, handler);
+    }
+  }
+
+  @Override
+  public String decode(byte[] content, UsageRowHandler handler) throws IOException {
+    try (JsonParser parser = recordMapper.getFactory().createParser(content)) {
+      return decode(parser, handler);
+    }
+  }
+
+  private String decode(JsonParser parser, UsageRowHandler handler) throws IOException {
+    if (parser.nextToken() != JsonToken.START_OBJECT) {
+      throw new AmberfloClientException("Unexpected Amberflo response, expected a JSON object");
+    }
+
+    ColumnPositions columns = null;
+    String[][] pendingRows = null;
+    String nextPageToken = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String fieldName = parser.getCurrentName();
+      final JsonToken token = parser.nextToken();
+
+      if (COLUMNS_FIELD.equals(fieldName) && token == JsonToken.START_ARRAY) {
+        columns = readColumns(parser);
+      } else if (ROWS_FIELD.equals(fieldName) && token == JsonToken.START_ARRAY) {
+        if (columns != null) {
+          decodeRows(parser, columns, new UsageSymbolTable(), handler);
+        } else {
+          // Amberflo sends the columns first; if it ever does not, fall back to buffering the
+          // rows of this page until the positions are known
+          pendingRows = parser.readValueAs(String[][].class);
+        }
+      } else if (NEXT_PAGE_TOKEN_FIELD.equals(fieldName)) {
+        nextPageToken = token == JsonToken.VALUE_STRING ? parser.getText() : null;
+      } else {
+        parser.skipChildren();
+      }
+    }
+
+    if (pendingRows != null && pendingRows.length > 0) {
+      if (columns == null) {
+        throw new AmberfloClientException("Amberflo response has rows but no columns");
+      }
+      for (String[] row : pendingRows) {
+        replayRow(row, columns, handler);
+      }
+    }
+
+    return nextPageToken;
+  }
+
+  private ColumnPositions readColumns(JsonParser parser) throws IOException {
+    final ColumnPositions columns = new ColumnPositions();
+    int position = 0;
+    JsonToken token;
+    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+      if (token == JsonToken.VALUE_STRING) {
+        columns.resolve(parser.getText(), position);
+      } else {
+        parser.skipChildren();
+      }
+      position++;
+    }
+    return columns;
+  }
+
+  private void decodeRows(
+      JsonParser parser,
+      ColumnPositions columns,
+      UsageSymbolTable symbols,
+      UsageRowHandler handler)
+      throws IOException {
+    JsonToken token;
+    while ((token = parser.nextToken()) == JsonToken.START_ARRAY) {
+      columns.checkComplete();
+
+      String customerId = null;
+      String measureName = null;
+      String sourceTimeInMillis = null;
+      long sourceTime = 0;
+      boolean hasSourceTime = false;
+      String measureValue = null;
+
+      int position = 0;
+      while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+        if (token == JsonToken.START_ARRAY || token == JsonToken.START_OBJECT) {
+          parser.skipChildren();
+        } else if (token != JsonToken.VALUE_NULL) {
+          if (position == columns.customerId) {
+            customerId = symbolText(parser, token, symbols);
+          } else if (position == columns.measureName) {
+            measureName = symbolText(parser, token, symbols);
+          } else if (position == columns.sourceTimeInMillis) {
+            if (token == JsonToken.VALUE_NUMBER_INT) {
+              sourceTime = parser.getLongValue();
+              hasSourceTime = true;
+            } else {
+              sourceTimeInMillis = parser.getText();
+            }
+          } else if (position == columns.measureValue) {
+            measureValue = parser.getText();
+          }
+        }
+        position++;
+      }
+
+      if (!hasSourceTime && sourceTimeInMillis != null) {
+        try {
+          sourceTime = Long.parseLong(sourceTimeInMillis);
+          hasSourceTime = true;
+        } catch (NumberFormatException e) {
+          logger.warn(
+              "Skipping usage row with invalid {} {}",
+              SOURCE_TIME_IN_MILLIS_FIELD,
+              sourceTimeInMillis);
+        }
+      }
+      emit(handler, customerId, measureName, hasSourceTime, sourceTime, measureValue);
+    }
+
+    if (token != JsonToken.END_ARRAY) {
+      throw new AmberfloClientException("Unexpected Amberflo response, malformed rows");
+    }
+  }
+
+  private static String symbolText(JsonParser parser, JsonToken token, UsageSymbolTable symbols)
+      throws IOException {
+    if (token != JsonToken.VALUE_STRING) {
+      return parser.getText();
+    }
+    return symbols.intern(
+        parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+  }
+
+  private void replayRow(String[] row, ColumnPositions columns, UsageRowHandler handler) {
+    columns.checkComplete();
+    if (row == null) {
+      return;
+    }
+
+    long sourceTime = 0;
+    boolean hasSourceTime = false;
+    final String sourceTimeInMillis = valueAt(row, columns.sourceTimeInMillis);
+    if (sourceTimeInMillis != null) {
+      try {
+        sourceTime = Long.parseLong(sourceTimeInMillis);
+        hasSourceTime = true;
+      } catch (NumberFormatException e) {
+        logger.warn(
+            "Skipping usage row with invalid {} {}",
+            SOURCE_TIME_IN_MILLIS_FIELD,
+            sourceTimeInMillis);
+      }
+    }
+    emit(
+        handler,
+        valueAt(row, columns.customerId),
+        valueAt(row, columns.measureName),
+        hasSourceTime,
+        sourceTime,
+        valueAt(row, columns.measureValue));
+  }
+
+  private static String valueAt(String[] row, int position) {
+    return position >= 0 && position < row.length ? row[position] : null;
+  }
+
+  private static void emit(
+      UsageRowHandler handler,
+      String customerId,
+      String measureName,
+      boolean hasSourceTime,
+      long sourceTime,
+      String measureValue) {
+    if (!hasSourceTime || measureValue == null) {
+      logger.warn(
+          "Skipping usage row without {} or {}", SOURCE_TIME_IN_MILLIS_FIELD, MEASURE_VALUE_FIELD);
+      return;
+    }
+    handler.onRow(customerId, measureName, sourceTime, measureValue);
+  }
+
+  // Positions of the columns the plugin reads, -1 when the column is absent
+  private static final class ColumnPositions {
+
+    private int customerId = -1;
+    private int measureName = -1;
+    private int sourceTimeInMillis = -1;
+    private int measureValue = -1;
+
+    private void resolve(String column, int position) {
+      if (CUSTOMER_ID_FIELD.equals(column)) {
+        customerId = position;
+      } else if (MEASURE_NAME_FIELD.equals(column)) {
+        measureName = position;
+      } else if (SOURCE_TIME_IN_MILLIS_FIELD.equals(column)) {
+        sourceTimeInMillis = position;
+      } else if (MEASURE_VALUE_FIELD.equals(column)) {
+        measureValue = position;
+      }
+    }
+
+    private void checkComplete() {
+      if (measureName < 0 || sourceTimeInMillis < 0 || measureValue < 0) {
+        throw new AmberfloClientException(
+            "Amberflo response is missing one of the columns "
+                + MEASURE_NAME_FIELD
+                + ", "
+                + SOURCE_TIME_IN_MILLIS_FIELD
+                + ", "
+                + MEASURE_VALUE_FIELD);
+      }
+    }
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lets identical usage queries that run at the same time share a single Amberflo fetch. The first
+ * caller for a key fetches the rows on its own thread and streams them to its handler; callers
+ * arriving before its first row wait for it and are handed the same rows, or the same failure.
+ * The rows are only copied while somebody joined, and callers arriving once rows went by fetch on
+ * their own. Nothing is kept once the fetch is over, this is not a cache.
+ */
+public class UsageRequestCoalescer {
+
+  private static final Logger logger = LoggerFactory.getLogger(UsageRequestCoalescer.class);
+
+  private final Map<Key, SharedFetch> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * @param deadline bounds the wait of a caller joining a running fetch, the fetch itself is
+   *     bounded by the deadline of the caller that started it
+   * @param fetcher fetches the rows of the query into the handler it is given, only called when
+   *     no identical query can be joined
+   * @param handler receives the rows, whoever fetched them
+   * @throws AmberfloClientException when the shared fetch failed or the deadline passed first
+   */
+  public void fetch(
+      final Key key,
+      final Deadline deadline,
+      final Consumer<UsageRowHandler> fetcher,
+      final UsageRowHandler handler) {
+    final SharedFetch leader = new SharedFetch();
+    final SharedFetch running = inFlight.putIfAbsent(key, leader);
+
+    if (running != null) {
+      if (!running.join()) {
+        // Too late to be handed every row, this caller fetches them itself
+        logger.debug("Amberflo fetch for {} already streaming, fetching separately", key);
+        fetcher.accept(handler);
+        return;
+      }
+      logger.debug("Joining the Amberflo fetch already running for {}", key);
+      final UsageRowBuffer rows;
+      try {
+        rows = running.rows.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof AmberfloClientException) {
+          throw (AmberfloClientException) e.getCause();
+        }
+        throw new AmberfloClientException("Shared Amberflo fetch failed for " + key, e.getCause());
+      } catch (TimeoutException e) {
+        throw deadline.exceeded("waiting for the Amberflo fetch already running for " + key);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new AmberfloClientException("Interrupted while waiting for " + key, e);
+      }
+      rows.replayTo(handler);
+      return;
+    }
+
+    try {
+      fetcher.accept(
+          (customerId, measureName, sourceTimeInMillis, measureValue) -> {
+            leader.copy(customerId, measureName, sourceTimeInMillis, measureValue);
+            handler.onRow(customerId, measureName, sourceTimeInMillis, measureValue);
+          });
+      leader.rows.complete(leader.close());
+    } catch (Throwable e) {
+      leader.rows.completeExceptionally(e);
+      throw e;
+    } finally {
+      // Callers arriving from now on start a fetch of their own
+      inFlight.remove(key, leader);
+    }
+  }
+
+  /**
+   * A running fetch. Until its first row, callers may join it, which makes it copy its rows for
+   * them; once a row went by without anybody joined, it streams them and can no longer be joined.
+   */
+  private static final class SharedFetch {
+
+    private static final Object STREAMING = new Object();
+
+    private final CompletableFuture<UsageRowBuffer> rows = new CompletableFuture<>();
+    // Null until the first row, the first caller joining or the end of the fetch, then STREAMING
+    // or the rows of the callers that joined
+    private final AtomicReference<Object> state = new AtomicReference<>();
+    // Only used by the thread fetching the rows
+    private boolean started;
+    private UsageRowBuffer copiedRows;
+
+    // False when rows already went by
+    private boolean join() {
+      final Object current = state.get();
+      if (current == STREAMING) {
+        return false;
+      }
+      return current != null
+          || state.compareAndSet(null, new UsageRowBuffer())
+          || state.get() != STREAMING;
+    }
+
+    private void copy(
+        String customerId, String measureName, long sourceTimeInMillis, String measureValue) {
+      if (!started) {
+        started = true;
+        if (!state.compareAndSet(null, STREAMING)) {
+          copiedRows = (UsageRowBuffer) state.get();
+        }
+      }
+      if (copiedRows != null) {
+        copiedRows.onRow(customerId, measureName, sourceTimeInMillis, measureValue);
+      }
+    }
+
+    // Stops callers from joining, returns the rows of those that did or null when nobody did
+    private UsageRowBuffer close() {
+      if (state.compareAndSet(null, STREAMING)) {
+        return null;
+      }
+      final Object current = state.get();
+      return current instanceof UsageRowBuffer ? (UsageRowBuffer) current : null;
+    }
+  }
+
+  /** Identifies a query by what it sends to Amberflo. */
+  public static final class Key {
+
+    private final UUID tenantId;
+    private final String customerId;
+    private final String meterApiName;
+    private final long startSeconds;
+    private final long endSeconds;
+
+    public Key(
+        @Nullable final UUID tenantId,
+        final String customerId,
+        @Nullable final String meterApiName,
+        final DateTime startDate,
+        final DateTime endDate) {
+      this.tenantId = tenantId;
+      this.customerId = customerId;
+      this.meterApiName = meterApiName;
+      // Amberflo is queried with seconds, so are the keys
+      this.startSeconds = startDate.getMillis() / 1000;
+      this.endSeconds = endDate.getMillis() / 1000;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) o;
+      return startSeconds == other.startSeconds
+          && endSeconds == other.endSeconds
+          && Objects.equals(tenantId, other.tenantId)
+          && Objects.equals(customerId, other.customerId)
+          && Objects.equals(meterApiName, other.meterApiName);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(tenantId, customerId, meterApiName, startSeconds, endSeconds);
+    }
+
+    @Override
+    public String toString() {
+      return "customer "
+          + customerId
+          + (meterApiName == null ? "" : " meter " + meterApiName)
+          + " from "
+          + startSeconds
+          + " to "
+          + endSeconds;
+    }
+  }
+}
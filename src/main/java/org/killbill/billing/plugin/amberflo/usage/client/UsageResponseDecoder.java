@@ -14,19 +14,18 @@
  * under the License.
  */
 
-package org.killbill.billing.plugin.amberflo.usage.api.model;
+package org.killbill.billing.plugin.amberflo.usage.client;
 
-import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
-import lombok.Getter;
-import lombok.Setter;
+import java.io.IOException;
+import java.io.InputStream;
 
-@Getter
-@Setter
-@JsonIgnoreProperties(ignoreUnknown = true)
-public class Record {
+/** Turns the body of an Amberflo usage response into rows. */
+interface UsageResponseDecoder {
 
-  private String[] columns;
-  private String[][] rows;
-  private String nextPageToken;
-  private Query query;
+  /**
+   * @return the token of the next page, or null when there is none
+   */
+  String decode(InputStream content, UsageRowHandler handler) throws IOException;
+
+  String decode(byte[] content, UsageRowHandler handler) throws IOException;
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+import java.util.Arrays;
+
+/**
+ * Keeps usage rows column by column, for instance those of a time slice until every earlier slice
+ * has been handed to the caller. Rows are replayed in the order they were received.
+ */
+final class UsageRowBuffer implements UsageRowHandler {
+
+  private static final int INITIAL_CAPACITY = 256;
+  // Rough heap size of the slots of a row in the four columns, and of an empty string
+  private static final int ROW_BYTES = 8 + 3 * 8;
+  private static final int STRING_BYTES = 40;
+
+  private String[] customerIds = new String[INITIAL_CAPACITY];
+  private String[] measureNames = new String[INITIAL_CAPACITY];
+  private long[] sourceTimesInMillis = new long[INITIAL_CAPACITY];
+  private String[] measureValues = new String[INITIAL_CAPACITY];
+  private int size;
+  private long estimatedBytes;
+
+  @Override
+  public void onRow(
+      String customerId, String measureName, long sourceTimeInMillis, String measureValue) {
+    if (size == sourceTimesInMillis.length) {
+      final int capacity = size + (size >> 1);
+      customerIds = Arrays.copyOf(customerIds, capacity);
+      measureNames = Arrays.copyOf(measureNames, capacity);
+      sourceTimesInMillis = Arrays.copyOf(sourceTimesInMillis, capacity);
+      measureValues = Arrays.copyOf(measureValues, capacity);
+    }
+
+    // Consecutive rows nearly always share the customer and the meter, keep a single copy
+    if (size > 0 && customerId != null && customerId.equals(customerIds[size - 1])) {
+      customerId = customerIds[size - 1];
+    } else {
+      estimatedBytes += sizeOf(customerId);
+    }
+    if (size > 0 && measureName != null && measureName.equals(measureNames[size - 1])) {
+      measureName = measureNames[size - 1];
+    } else {
+      estimatedBytes += sizeOf(measureName);
+    }
+    estimatedBytes += ROW_BYTES + sizeOf(measureValue);
+
+    customerIds[size] = customerId;
+    measureNames[size] = measureName;
+    sourceTimesInMillis[size] = sourceTimeInMillis;
+    measureValues[size] = measureValue;
+    size++;
+  }
+
+  private static long sizeOf(String value) {
+    return value == null ? 0 : STRING_BYTES + value.length();
+  }
+
+  int size() {
+    return size;
+  }
+
+  long estimatedBytes() {
+    return estimatedBytes;
+  }
+
+  // Hands every row to the handler, the buffer can be replayed again afterwards
+  void replayTo(UsageRowHandler handler) {
+    for (int i = 0; i < size; i++) {
+      handler.onRow(customerIds[i], measureNames[i], sourceTimesInMillis[i], measureValues[i]);
+    }
+  }
+
+  // Hands every row to the handler and lets go of them, a buffer is only drained once
+  void drainTo(UsageRowHandler handler) {
+    replayTo(handler);
+    customerIds = null;
+    measureNames = null;
+    sourceTimesInMillis = null;
+    measureValues = null;
+    size = 0;
+    estimatedBytes = 0;
+  }
+}
@@ -14,16 +14,14 @@
  * under the License.
  */
 
-package org.killbill.billing.plugin.amberflo.usage.api.model;
+package org.killbill.billing.plugin.amberflo.usage.client;
 
-import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
-import lombok.Getter;
-import lombok.Setter;
+/**
+ * Receives the rows of an Amberflo usage response one at a time, straight from the decoder. Only
+ * the columns the plugin needs are decoded; values are handed over as they appear in the payload.
+ */
+@FunctionalInterface
+public interface UsageRowHandler {
 
-@Getter
-@Setter
-@JsonIgnoreProperties(ignoreUnknown = true)
-public class TimeRange {
-  private String startTimeInSeconds;
-  private String endTimeInSeconds;
+  void onRow(String customerId, String measureName, long sourceTimeInMillis, String measureValue);
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+/**
+ * 64 bit hashes of the customer, meter, source time and value of usage rows. The decoder interns
+ * customers and meters, so the hash of the pair is only computed again when either one changes.
+ */
+final class UsageRowHash {
+
+  // 64 bit FNV-1a
+  private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long PRIME = 0x100000001b3L;
+
+  private boolean started;
+  private String lastCustomerId;
+  private String lastMeasureName;
+  private long lastKeyHash;
+
+  /** Hash of the next row. */
+  long next(
+      final String customerId,
+      final String measureName,
+      final long sourceTimeInMillis,
+      final String measureValue) {
+    if (!started || customerId != lastCustomerId || measureName != lastMeasureName) {
+      lastKeyHash = keyHash(customerId, measureName);
+      lastCustomerId = customerId;
+      lastMeasureName = measureName;
+      started = true;
+    }
+    return rowHash(lastKeyHash, sourceTimeInMillis, measureValue);
+  }
+
+  /** Hash of a pair of strings, such as a customer and a meter. */
+  static long keyHash(final String first, final String second) {
+    return hash(hash(OFFSET_BASIS, first), second);
+  }
+
+  // Finalizer of MurmurHash3, spreads every input bit over the whole hash
+  static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb93e2e2f9e1bL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  private static long rowHash(
+      final long keyHash, final long sourceTimeInMillis, final String measureValue) {
+    return hash(mix(keyHash ^ sourceTimeInMillis), measureValue);
+  }
+
+  // The length ends each value, so that "ab" then "c" does not hash as "a" then "bc"
+  private static long hash(long hash, final String value) {
+    if (value == null) {
+      return (hash ^ -1L) * PRIME;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      hash = (hash ^ value.charAt(i)) * PRIME;
+    }
+    return (hash ^ value.length()) * PRIME;
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+/**
+ * Interns the customer ids and meter names of a usage response as they are decoded. The characters
+ * are looked up straight from the parser buffer, so a value seen before costs no allocation and
+ * every row carrying it shares the same String instance.
+ */
+final class UsageSymbolTable {
+
+  private static final int INITIAL_CAPACITY = 16;
+  // A response holds a handful of distinct values, past this many they are no longer interned
+  private static final int MAX_SYMBOLS = 4096;
+
+  private String[] symbols = new String[INITIAL_CAPACITY];
+  private int[] hashes = new int[INITIAL_CAPACITY];
+  private int size;
+
+  String intern(final char[] chars, final int offset, final int length) {
+    int hash = 0;
+    for (int i = offset; i < offset + length; i++) {
+      hash = 31 * hash + chars[i];
+    }
+
+    int mask = symbols.length - 1;
+    int slot = spread(hash) & mask;
+    String symbol;
+    while ((symbol = symbols[slot]) != null) {
+      if (hashes[slot] == hash && matches(symbol, chars, offset, length)) {
+        return symbol;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    symbol = new String(chars, offset, length);
+    if (size == MAX_SYMBOLS) {
+      return symbol;
+    }
+    if ((size + 1) * 2 > symbols.length) {
+      grow();
+      mask = symbols.length - 1;
+      slot = spread(hash) & mask;
+      while (symbols[slot] != null) {
+        slot = (slot + 1) & mask;
+      }
+    }
+    symbols[slot] = symbol;
+    hashes[slot] = hash;
+    size++;
+    return symbol;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private void grow() {
+    final String[] oldSymbols = symbols;
+    final int[] oldHashes = hashes;
+    symbols = new String[oldSymbols.length * 2];
+    hashes = new int[oldSymbols.length * 2];
+    final int mask = symbols.length - 1;
+    for (int i = 0; i < oldSymbols.length; i++) {
+      if (oldSymbols[i] != null) {
+        int slot = spread(oldHashes[i]) & mask;
+        while (symbols[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        symbols[slot] = oldSymbols[i];
+        hashes[slot] = oldHashes[i];
+      }
+    }
+  }
+
+  private static int spread(final int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static boolean matches(
+      final String symbol, final char[] chars, final int offset, final int length) {
+    if (symbol.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (symbol.charAt(i) != chars[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.client;
+
+/**
+ * Tracking ids of the usage rows of a call, 64 bit hashes of the customer, meter, source time and
+ * value of a row and of its ordinal among the identical rows right before it. Identical events
+ * Amberflo returns one after the other, within a page or across a page boundary, keep distinct
+ * tracking ids, and the same usage always gets the same ones. Only the row before is kept, so
+ * tracking ids cost no memory per row.
+ */
+public final class UsageTrackingIds {
+
+  private final UsageRowHash rowHash = new UsageRowHash();
+  private boolean started;
+  private long lastHash;
+  private int ordinal;
+
+  /** Tracking id of the next row of the call. */
+  public long next(
+      final String customerId,
+      final String measureName,
+      final long sourceTimeInMillis,
+      final String measureValue) {
+    final long hash = rowHash.next(customerId, measureName, sourceTimeInMillis, measureValue);
+    ordinal = started && hash == lastHash ? ordinal + 1 : 0;
+    lastHash = hash;
+    started = true;
+    return UsageRowHash.mix(hash + ordinal);
+  }
+
+  /** Tracking id of the total of a subscription and unit type dated at the given time. */
+  public static long ofTotal(
+      final String subscriptionId, final String unitType, final long dateMillis) {
+    return UsageRowHash.mix(UsageRowHash.keyHash(subscriptionId, unitType) ^ dateMillis);
+  }
+
+  /** How Kill Bill sees a tracking id. */
+  public static String format(final long trackingId) {
+    return Long.toHexString(trackingId);
+  }
+}
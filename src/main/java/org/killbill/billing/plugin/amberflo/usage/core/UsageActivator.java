@@ -17,10 +17,15 @@
 package org.killbill.billing.plugin.amberflo.usage.core;
 
 import java.util.Hashtable;
+import java.util.Map;
+import java.util.UUID;
 import org.killbill.billing.osgi.api.Healthcheck;
 import org.killbill.billing.osgi.api.OSGIPluginProperties;
 import org.killbill.billing.osgi.libs.killbill.KillbillActivatorBase;
+import org.killbill.billing.plugin.amberflo.usage.api.AccountCache;
 import org.killbill.billing.plugin.amberflo.usage.api.UsagePluginApiImpl;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClientRegistry;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloHttpClientManager;
 import org.killbill.billing.plugin.api.notification.PluginConfigurationEventHandler;
 import org.killbill.billing.plugin.core.config.PluginEnvironmentConfig;
 import org.killbill.billing.usage.plugin.api.UsagePluginApi;
@@ -35,6 +40,8 @@ public class UsageActivator extends KillbillActivatorBase {
   public static final String PLUGIN_NAME = "amberflo-usage-plugin";
 
   private UsageConfigurationHandler usageConfigurationHandler;
+  private AmberfloHttpClientManager httpClientManager;
+  private UsagePluginApiImpl usagePluginApi;
 
   @Override
   public void start(final BundleContext context) throws Exception {
@@ -51,23 +58,59 @@ public class UsageActivator extends KillbillActivatorBase {
         usageConfigurationHandler.createConfigurable(configProperties.getProperties());
     usageConfigurationHandler.setDefaultConfigurable(globalConfiguration);
 
+    // Pooled connections to Amberflo, one pool per tenant, released when the plugin stops
+    httpClientManager = new AmberfloHttpClientManager();
+
+    // One client per tenant, replaced whenever the tenant configuration is reloaded. Settled usage
+    // of the tenants enabling it is kept in the plugin tables, see ddl.sql
+    final AmberfloClientRegistry clientRegistry =
+        new AmberfloClientRegistry(
+            usageConfigurationHandler::getConfigurable,
+            httpClientManager,
+            dataSource.getDataSource());
+    usageConfigurationHandler.addConfigurationListener(clientRegistry::onConfigurationChange);
+
+    // Account lookups cached until a bus event reports a change, see registerHandlers
+    final AccountCache<String> externalKeys = new AccountCache<>(AccountCache.DEFAULT_MAX_ENTRIES);
+    final AccountCache<Map<String, UUID>> measureNames =
+        new AccountCache<>(AccountCache.DEFAULT_MAX_ENTRIES);
+
     logger.info("Registering an APIs");
-    final UsagePluginApi paymentPluginApi =
-        new UsagePluginApiImpl(usageConfigurationHandler, killbillAPI);
-    registerUsagePluginApi(context, paymentPluginApi);
+    usagePluginApi =
+        new UsagePluginApiImpl(
+            killbillAPI,
+            clientRegistry,
+            externalKeys,
+            measureNames,
+            globalConfiguration.getLookupThreads());
+    registerUsagePluginApi(context, usagePluginApi);
 
     // Expose a healthcheck (optional), so other plugins can check on the plugin status
     logger.info("Registering healthcheck");
-    final Healthcheck healthcheck = new UsageHealthcheck();
+    final Healthcheck healthcheck = new UsageHealthcheck(httpClientManager, clientRegistry);
     registerHealthcheck(context, healthcheck);
 
-    registerHandlers();
+    registerHandlers(new UsageEventHandler(externalKeys, measureNames));
+  }
+
+  @Override
+  public void stop(final BundleContext context) throws Exception {
+    logger.info(" stopping plugin {}", PLUGIN_NAME);
+    if (usagePluginApi != null) {
+      usagePluginApi.close();
+      usagePluginApi = null;
+    }
+    if (httpClientManager != null) {
+      httpClientManager.close();
+      httpClientManager = null;
+    }
+    super.stop(context);
   }
 
-  private void registerHandlers() {
+  private void registerHandlers(final UsageEventHandler usageEventHandler) {
     final PluginConfigurationEventHandler configHandler =
         new PluginConfigurationEventHandler(usageConfigurationHandler);
-    dispatcher.registerEventHandlers(configHandler);
+    dispatcher.registerEventHandlers(configHandler, usageEventHandler);
   }
 
   private void registerUsagePluginApi(final BundleContext context, final UsagePluginApi api) {
@@ -39,6 +39,64 @@ public class UsageConfigProperties {
 
   public static final String DEFAULT_APIKEY = "";
 
+  public static final int DEFAULT_PAGE_SIZE = 10000;
+
+  // Connection pool and timeouts used for the Amberflo HTTP client
+  public static final int DEFAULT_MAX_CONNECTIONS_TOTAL = 50;
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+  public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+  public static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 60000;
+  public static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS = 5000;
+  public static final int DEFAULT_KEEP_ALIVE_MILLIS = 30000;
+  public static final int DEFAULT_IDLE_CONNECTION_TIMEOUT_MILLIS = 60000;
+
+  // Long ranges are fetched as slices of this many hours, several at a time
+  public static final int DEFAULT_SLICE_DURATION_HOURS = 24;
+  public static final int DEFAULT_MAX_PARALLEL_SLICES = 4;
+
+  // Retries of failed Amberflo requests and the per-tenant circuit breaker
+  public static final int DEFAULT_MAX_RETRIES = 3;
+  public static final int DEFAULT_RETRY_BASE_DELAY_MILLIS = 200;
+  public static final int DEFAULT_RETRY_MAX_DELAY_MILLIS = 10000;
+  public static final int DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE = 20;
+  public static final int DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS = 10;
+  public static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD = 50;
+  public static final int DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS = 30000;
+
+  // Client side rate limit, shared by every tenant using the same API key
+  public static final int DEFAULT_RATE_LIMIT_PERMITS_PER_SECOND = 50;
+  public static final int DEFAULT_RATE_LIMIT_BURST = 100;
+  public static final int DEFAULT_RATE_LIMIT_MAX_WAIT_MILLIS = 30000;
+
+  // Time a whole usage call may take, Kill Bill lookups and Amberflo requests included
+  public static final int DEFAULT_USAGE_BUDGET_MILLIS = 120000;
+
+  // Estimated heap size of the usage records of a call past which they are written to disk
+  public static final int DEFAULT_SPILL_THRESHOLD_BYTES = 64 * 1024 * 1024;
+
+  // Either every event is listed, or Amberflo is asked for their totals per day or hour
+  public static final String EVENTS_QUERY_MODE = "events";
+  public static final String AGGREGATED_QUERY_MODE = "aggregated";
+  public static final String DEFAULT_AGGREGATION_INTERVAL = "DAY";
+  private static final String EVENTS_PATH = "/events";
+
+  // Usage fetched from Amberflo kept per customer and meter, off unless enabled
+  public static final int DEFAULT_USAGE_CACHE_MAX_BYTES = 64 * 1024 * 1024;
+  public static final int DEFAULT_USAGE_CACHE_MAX_RECORDS = 1000000;
+  public static final int DEFAULT_USAGE_CACHE_TTL_SECONDS = 300;
+
+  // How late Amberflo may still receive events, older usage is cached until evicted
+  public static final int DEFAULT_LATE_ARRIVAL_HORIZON_SECONDS = 24 * 3600;
+
+  // Usage records are handed to Kill Bill one per event unless summed by HOUR, DAY or PERIOD
+  public static final String DEFAULT_RECORD_AGGREGATION = "NONE";
+
+  // Settled usage stored in the plugin database by buckets of this many hours, off unless enabled
+  public static final int DEFAULT_USAGE_STORE_BUCKET_HOURS = 24;
+
+  // Threads looking up subscriptions while Amberflo is queried, shared by every tenant
+  public static final int DEFAULT_LOOKUP_THREADS = 8;
+
   // Properties
   private String apiKey;
   private String ingestionFrequencySeconds;
@@ -46,11 +104,52 @@ public class UsageConfigProperties {
   private String ingestionBatchSize;
   private String isDebug;
   private String url;
+  private String aggregatedUrl;
+  private String queryMode;
+  private String aggregationInterval;
+  private String recordAggregation;
+  private int pageSize;
+  private int maxConnectionsTotal;
+  private int maxConnectionsPerRoute;
+  private int connectTimeoutMillis;
+  private int socketTimeoutMillis;
+  private int connectionRequestTimeoutMillis;
+  private int keepAliveMillis;
+  private int idleConnectionTimeoutMillis;
+  private int sliceDurationHours;
+  private int maxParallelSlices;
+  private int maxRetries;
+  private int retryBaseDelayMillis;
+  private int retryMaxDelayMillis;
+  private int circuitBreakerWindowSize;
+  private int circuitBreakerMinimumCalls;
+  private int circuitBreakerFailureRateThreshold;
+  private int circuitBreakerOpenMillis;
+  private int rateLimitPermitsPerSecond;
+  private int rateLimitBurst;
+  private int rateLimitMaxWaitMillis;
+  private int usageBudgetMillis;
+  private int spillThresholdBytes;
+  private boolean usageCacheEnabled;
+  private int usageCacheMaxBytes;
+  private int usageCacheMaxRecords;
+  private int usageCacheTtlSeconds;
+  private int lateArrivalHorizonSeconds;
+  private boolean usageStoreEnabled;
+  private int usageStoreBucketHours;
+  private int lookupThreads;
 
   public UsageConfigProperties(final Properties properties, final String killBillRegion) {
     this.region = killBillRegion;
 
     this.url = properties.getProperty(PROPERTY_PREFIX + "url");
+    this.aggregatedUrl = properties.getProperty(PROPERTY_PREFIX + "aggregatedUrl");
+    this.queryMode = properties.getProperty(PROPERTY_PREFIX + "queryMode", EVENTS_QUERY_MODE);
+    this.aggregationInterval =
+        properties.getProperty(
+            PROPERTY_PREFIX + "aggregationInterval", DEFAULT_AGGREGATION_INTERVAL);
+    this.recordAggregation =
+        properties.getProperty(PROPERTY_PREFIX + "recordAggregation", DEFAULT_RECORD_AGGREGATION);
     this.username = properties.getProperty(PROPERTY_PREFIX + "username");
     this.password = properties.getProperty(PROPERTY_PREFIX + "password");
     this.apiKey = properties.getProperty(PROPERTY_PREFIX + "apiKey");
@@ -59,6 +158,77 @@ public class UsageConfigProperties {
     this.domain = properties.getProperty(PROPERTY_PREFIX + "Domain");
     this.ingestionBatchSize = properties.getProperty(PROPERTY_PREFIX + "ingestionBatchSize");
     this.isDebug = properties.getProperty(PROPERTY_PREFIX + "isDebug");
+    this.pageSize = getIntProperty(properties, "pageSize", DEFAULT_PAGE_SIZE);
+    this.maxConnectionsTotal =
+        getIntProperty(properties, "maxConnectionsTotal", DEFAULT_MAX_CONNECTIONS_TOTAL);
+    this.maxConnectionsPerRoute =
+        getIntProperty(properties, "maxConnectionsPerRoute", DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+    this.connectTimeoutMillis =
+        getIntProperty(properties, "connectTimeoutMillis", DEFAULT_CONNECT_TIMEOUT_MILLIS);
+    this.socketTimeoutMillis =
+        getIntProperty(properties, "socketTimeoutMillis", DEFAULT_SOCKET_TIMEOUT_MILLIS);
+    this.connectionRequestTimeoutMillis =
+        getIntProperty(
+            properties,
+            "connectionRequestTimeoutMillis",
+            DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS);
+    this.keepAliveMillis =
+        getIntProperty(properties, "keepAliveMillis", DEFAULT_KEEP_ALIVE_MILLIS);
+    this.idleConnectionTimeoutMillis =
+        getIntProperty(
+            properties, "idleConnectionTimeoutMillis", DEFAULT_IDLE_CONNECTION_TIMEOUT_MILLIS);
+    this.sliceDurationHours =
+        getIntProperty(properties, "sliceDurationHours", DEFAULT_SLICE_DURATION_HOURS);
+    this.maxParallelSlices =
+        getIntProperty(properties, "maxParallelSlices", DEFAULT_MAX_PARALLEL_SLICES);
+    // 0 turns retries off
+    this.maxRetries = getIntProperty(properties, "maxRetries", DEFAULT_MAX_RETRIES, 0);
+    this.retryBaseDelayMillis =
+        getIntProperty(properties, "retryBaseDelayMillis", DEFAULT_RETRY_BASE_DELAY_MILLIS);
+    this.retryMaxDelayMillis =
+        getIntProperty(properties, "retryMaxDelayMillis", DEFAULT_RETRY_MAX_DELAY_MILLIS);
+    this.circuitBreakerWindowSize =
+        getIntProperty(
+            properties, "circuitBreakerWindowSize", DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE);
+    this.circuitBreakerMinimumCalls =
+        getIntProperty(
+            properties, "circuitBreakerMinimumCalls", DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS);
+    this.circuitBreakerFailureRateThreshold =
+        Math.min(
+            100,
+            getIntProperty(
+                properties,
+                "circuitBreakerFailureRateThreshold",
+                DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD));
+    this.circuitBreakerOpenMillis =
+        getIntProperty(properties, "circuitBreakerOpenMillis", DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS);
+    this.rateLimitPermitsPerSecond =
+        getIntProperty(
+            properties, "rateLimitPermitsPerSecond", DEFAULT_RATE_LIMIT_PERMITS_PER_SECOND);
+    this.rateLimitBurst = getIntProperty(properties, "rateLimitBurst", DEFAULT_RATE_LIMIT_BURST);
+    this.rateLimitMaxWaitMillis =
+        getIntProperty(properties, "rateLimitMaxWaitMillis", DEFAULT_RATE_LIMIT_MAX_WAIT_MILLIS);
+    this.usageBudgetMillis =
+        getIntProperty(properties, "usageBudgetMillis", DEFAULT_USAGE_BUDGET_MILLIS);
+    this.spillThresholdBytes =
+        getIntProperty(properties, "spillThresholdBytes", DEFAULT_SPILL_THRESHOLD_BYTES);
+    this.usageCacheEnabled =
+        Boolean.parseBoolean(properties.getProperty(PROPERTY_PREFIX + "usageCacheEnabled"));
+    this.usageCacheMaxBytes =
+        getIntProperty(properties, "usageCacheMaxBytes", DEFAULT_USAGE_CACHE_MAX_BYTES);
+    this.usageCacheMaxRecords =
+        getIntProperty(properties, "usageCacheMaxRecords", DEFAULT_USAGE_CACHE_MAX_RECORDS);
+    // 0 only lets concurrent queries of the same range share their rows
+    this.usageCacheTtlSeconds =
+        getIntProperty(properties, "usageCacheTtlSeconds", DEFAULT_USAGE_CACHE_TTL_SECONDS, 0);
+    this.lateArrivalHorizonSeconds =
+        getIntProperty(
+            properties, "lateArrivalHorizonSeconds", DEFAULT_LATE_ARRIVAL_HORIZON_SECONDS, 0);
+    this.usageStoreEnabled =
+        Boolean.parseBoolean(properties.getProperty(PROPERTY_PREFIX + "usageStoreEnabled"));
+    this.usageStoreBucketHours =
+        getIntProperty(properties, "usageStoreBucketHours", DEFAULT_USAGE_STORE_BUCKET_HOURS);
+    this.lookupThreads = getIntProperty(properties, "lookupThreads", DEFAULT_LOOKUP_THREADS);
   }
 
   public String getURL() {
@@ -69,6 +239,17 @@ public class UsageConfigProperties {
     return url;
   }
 
+  // The aggregated usage endpoint sits next to the events one unless configured otherwise
+  public String getAggregatedURL() {
+    if (aggregatedUrl == null || aggregatedUrl.isEmpty()) {
+      final String eventsUrl = getURL();
+      return eventsUrl.endsWith(EVENTS_PATH)
+          ? eventsUrl.substring(0, eventsUrl.length() - EVENTS_PATH.length())
+          : eventsUrl;
+    }
+    return aggregatedUrl;
+  }
+
   public String getApiKey() {
     if (apiKey == null || apiKey.isEmpty()) {
       return getEnvironmentVariable(AMBERFLO_KB_APIKEY, DEFAULT_APIKEY);
@@ -76,6 +257,28 @@ public class UsageConfigProperties {
     return apiKey;
   }
 
+  // Reads a positive integer property, falling back to the default when the value is missing or
+  // cannot be parsed
+  private static int getIntProperty(
+      final Properties properties, final String name, final int defaultValue) {
+    return getIntProperty(properties, name, defaultValue, 1);
+  }
+
+  private static int getIntProperty(
+      final Properties properties, final String name, final int defaultValue, final int minimum) {
+    final String value = properties.getProperty(PROPERTY_PREFIX + name);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+
+    try {
+      final int parsed = Integer.parseInt(value.trim());
+      return parsed >= minimum ? parsed : defaultValue;
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
   private String getEnvironmentVariable(String envKey, String defaultValue) {
     Map<String, String> env = System.getenv();
 
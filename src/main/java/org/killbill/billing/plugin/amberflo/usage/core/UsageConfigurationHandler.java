@@ -16,7 +16,12 @@
 
 package org.killbill.billing.plugin.amberflo.usage.core;
 
+import java.util.List;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.plugin.api.notification.PluginTenantConfigurableConfigurationHandler;
 
@@ -28,6 +33,7 @@ public class UsageConfigurationHandler
     extends PluginTenantConfigurableConfigurationHandler<UsageConfigProperties> {
 
   private final String region;
+  private final List<Consumer<UUID>> configurationListeners = new CopyOnWriteArrayList<>();
 
   public UsageConfigurationHandler(
       final String region, final String pluginName, final OSGIKillbillAPI osgiKillbillAPI) {
@@ -35,6 +41,19 @@ public class UsageConfigurationHandler
     this.region = region;
   }
 
+  /** Registers a listener told about the tenant, null for the global one, once it is reloaded. */
+  public void addConfigurationListener(final Consumer<UUID> listener) {
+    configurationListeners.add(listener);
+  }
+
+  @Override
+  protected void configure(@Nullable final UUID kbTenantId) {
+    super.configure(kbTenantId);
+    for (final Consumer<UUID> listener : configurationListeners) {
+      listener.accept(kbTenantId);
+    }
+  }
+
   @Override
   protected UsageConfigProperties createConfigurable(final Properties properties) {
     return new UsageConfigProperties(properties, region);
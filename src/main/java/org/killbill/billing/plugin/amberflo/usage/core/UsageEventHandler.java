@@ -0,0 +1,71 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.core;
+
+import java.util.Map;
+import java.util.UUID;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillEventDispatcher.OSGIKillbillEventHandler;
+import org.killbill.billing.plugin.amberflo.usage.api.AccountCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drops what the plugin cached about an account when Kill Bill reports it changed: its external
+ * key on account changes, its subscriptions by measure_name when a custom field or a subscription
+ * of the account is created or removed.
+ */
+public class UsageEventHandler implements OSGIKillbillEventHandler {
+
+  private static final Logger logger = LoggerFactory.getLogger(UsageEventHandler.class);
+
+  private final AccountCache<String> externalKeys;
+  private final AccountCache<Map<String, UUID>> measureNames;
+
+  public UsageEventHandler(
+      final AccountCache<String> externalKeys,
+      final AccountCache<Map<String, UUID>> measureNames) {
+    this.externalKeys = externalKeys;
+    this.measureNames = measureNames;
+  }
+
+  @Override
+  public void handleKillbillEvent(final ExtBusEvent event) {
+    if (event.getAccountId() == null) {
+      return;
+    }
+
+    switch (event.getEventType()) {
+      case ACCOUNT_CHANGE:
+        logger.debug("Account {} changed", event.getAccountId());
+        externalKeys.invalidate(event.getAccountId());
+        break;
+      case CUSTOM_FIELD_CREATION:
+      case CUSTOM_FIELD_DELETION:
+      case SUBSCRIPTION_CREATION:
+      case SUBSCRIPTION_CANCEL:
+        logger.debug(
+            "Subscriptions of account {} changed: {}",
+            event.getAccountId(),
+            event.getEventType());
+        measureNames.invalidate(event.getAccountId());
+        break;
+      default:
+        break;
+    }
+  }
+}
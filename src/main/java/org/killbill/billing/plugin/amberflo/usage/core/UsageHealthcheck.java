@@ -17,8 +17,14 @@
 package org.killbill.billing.plugin.amberflo.usage.core;
 
 import java.util.Map;
+import java.util.UUID;
 import javax.annotation.Nullable;
 import org.killbill.billing.osgi.api.Healthcheck;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloCircuitBreaker;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClientRegistry;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloHttpClientManager;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloRateLimiter;
+import org.killbill.billing.plugin.amberflo.usage.client.UsageIntervalCache;
 import org.killbill.billing.tenant.api.Tenant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,6 +32,16 @@ import org.slf4j.LoggerFactory;
 public class UsageHealthcheck implements Healthcheck {
   private static final Logger logger = LoggerFactory.getLogger(UsageHealthcheck.class);
 
+  private final AmberfloHttpClientManager httpClientManager;
+  private final AmberfloClientRegistry clientRegistry;
+
+  public UsageHealthcheck(
+      final AmberfloHttpClientManager httpClientManager,
+      final AmberfloClientRegistry clientRegistry) {
+    this.httpClientManager = httpClientManager;
+    this.clientRegistry = clientRegistry;
+  }
+
   @Override
   public HealthStatus getHealthStatus(
       @Nullable final Tenant tenant, @Nullable final Map properties) {
@@ -35,15 +51,33 @@ public class UsageHealthcheck implements Healthcheck {
     } else {
       // Specifying the tenant lets you also validate the tenant configuration
 
-      return pingGatewayService();
+      return pingGatewayService(tenant.getId());
     }
   }
 
-  private HealthStatus pingGatewayService() {
+  private HealthStatus pingGatewayService(final UUID tenantId) {
 
     try {
+      // The circuit breaker knows how Amberflo answered the latest requests of the tenant
+      final AmberfloCircuitBreaker circuitBreaker = httpClientManager.getCircuitBreaker(tenantId);
+      if (circuitBreaker == null) {
+        return HealthStatus.healthy("Usage OK");
+      }
 
-      return HealthStatus.healthy("Usage OK");
+      final Map<String, Object> details = circuitBreaker.getDetails();
+      final AmberfloRateLimiter rateLimiter = httpClientManager.getRateLimiter(tenantId);
+      if (rateLimiter != null) {
+        details.putAll(rateLimiter.getDetails());
+      }
+      // How late the usage fetched again arrived, to tune the late-arrival horizon
+      final UsageIntervalCache usageCache = clientRegistry.getUsageCache(tenantId);
+      if (usageCache != null) {
+        details.putAll(usageCache.getDetails());
+      }
+      if (circuitBreaker.getState() == AmberfloCircuitBreaker.State.OPEN) {
+        return HealthStatus.unHealthy("Usage error: Amberflo circuit breaker is open", details);
+      }
+      return HealthStatus.healthy("Usage OK", details);
     } catch (final Exception e) {
       logger.warn("Usage error", e);
       return HealthStatus.unHealthy("Usage error: " + e.getMessage());
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage.dao;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import javax.sql.DataSource;
+import org.jooq.BatchBindStep;
+import org.jooq.Cursor;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import org.killbill.billing.plugin.amberflo.usage.client.UsageRowHandler;
+import org.killbill.billing.plugin.dao.PluginDao;
+
+/**
+ * Settled Amberflo usage kept in the plugin tables of {@code ddl.sql}, by tenant, customer, meter
+ * and time bucket. A bucket is stored with all of its rows at once, so that a bucket listed in
+ * {@code amberflo_usage_buckets} can be answered from {@code amberflo_usage_rows} alone.
+ */
+public class AmberfloUsageDao extends PluginDao {
+
+  private static final Table<Record> USAGE_ROWS = DSL.table(DSL.name("amberflo_usage_rows"));
+  private static final Table<Record> USAGE_BUCKETS = DSL.table(DSL.name("amberflo_usage_buckets"));
+
+  private static final Field<String> KB_TENANT_ID =
+      DSL.field(DSL.name("kb_tenant_id"), String.class);
+  private static final Field<String> CUSTOMER_ID = DSL.field(DSL.name("customer_id"), String.class);
+  private static final Field<String> METER_API_NAME =
+      DSL.field(DSL.name("meter_api_name"), String.class);
+  private static final Field<Long> BUCKET_START = DSL.field(DSL.name("bucket_start"), Long.class);
+  private static final Field<Long> BUCKET_END = DSL.field(DSL.name("bucket_end"), Long.class);
+  private static final Field<Long> RECORD_ID = DSL.field(DSL.name("record_id"), Long.class);
+  private static final Field<Long> SOURCE_TIME_MILLIS =
+      DSL.field(DSL.name("source_time_millis"), Long.class);
+  private static final Field<String> MEASURE_NAME =
+      DSL.field(DSL.name("measure_name"), String.class);
+  private static final Field<String> MEASURE_VALUE =
+      DSL.field(DSL.name("measure_value"), String.class);
+  private static final Field<Integer> ROW_COUNT = DSL.field(DSL.name("row_count"), Integer.class);
+  private static final Field<Timestamp> CREATED_DATE =
+      DSL.field(DSL.name("created_date"), Timestamp.class);
+
+  // The meter of the usage of a whole account, the column is not nullable
+  private static final String ALL_METERS = "";
+
+  public AmberfloUsageDao(final DataSource dataSource) throws SQLException {
+    super(dataSource);
+  }
+
+  /**
+   * @return the start of the buckets of [fromMillis, toMillis) that are stored with the given
+   *     length
+   */
+  public Set<Long> getStoredBuckets(
+      final UUID kbTenantId,
+      final String customerId,
+      final String meterApiName,
+      final long fromMillis,
+      final long toMillis,
+      final long bucketMillis)
+      throws SQLException {
+    return execute(
+        dataSource.getConnection(),
+        conn -> {
+          final Set<Long> buckets = new HashSet<>();
+          for (Record bucket :
+              DSL.using(conn, dialect, settings)
+                  .select(BUCKET_START, BUCKET_END)
+                  .from(USAGE_BUCKETS)
+                  .where(KB_TENANT_ID.eq(kbTenantId.toString()))
+                  .and(CUSTOMER_ID.eq(customerId))
+                  .and(METER_API_NAME.eq(toColumn(meterApiName)))
+                  .and(BUCKET_START.ge(fromMillis))
+                  .and(BUCKET_START.lt(toMillis))
+                  .fetch()) {
+            final long start = bucket.get(BUCKET_START);
+            if (bucket.get(BUCKET_END) == start + bucketMillis) {
+              buckets.add(start);
+            }
+          }
+          return buckets;
+        });
+  }
+
+  /**
+   * Hands the rows of the stored bucket [bucketStart, bucketEnd) to the handler in chronological
+   * order, none when the bucket is not stored with that length.
+   */
+  public void getUsage(
+      final UUID kbTenantId,
+      final String customerId,
+      final String meterApiName,
+      final long bucketStart,
+      final long bucketEnd,
+      final UsageRowHandler handler)
+      throws SQLException {
+    final String tenantId = kbTenantId.toString();
+    final String meter = toColumn(meterApiName);
+    execute(
+        dataSource.getConnection(),
+        conn -> {
+          final DSLContext context = DSL.using(conn, dialect, settings);
+          try (Cursor<? extends Record> rows =
+              context
+                  .select(SOURCE_TIME_MILLIS, MEASURE_NAME, MEASURE_VALUE)
+                  .from(USAGE_ROWS)
+                  .where(KB_TENANT_ID.eq(tenantId))
+                  .and(CUSTOMER_ID.eq(customerId))
+                  .and(METER_API_NAME.eq(meter))
+                  .and(BUCKET_START.eq(bucketStart))
+                  .andExists(
+                      context
+                          .selectOne()
+                          .from(USAGE_BUCKETS)
+                          .where(KB_TENANT_ID.eq(tenantId))
+                          .and(CUSTOMER_ID.eq(customerId))
+                          .and(METER_API_NAME.eq(meter))
+                          .and(BUCKET_START.eq(bucketStart))
+                          .and(BUCKET_END.eq(bucketEnd)))
+                  .orderBy(SOURCE_TIME_MILLIS.asc(), RECORD_ID.asc())
+                  .fetchLazy()) {
+            for (Record row : rows) {
+              handler.onRow(
+                  customerId,
+                  row.get(MEASURE_NAME),
+                  row.get(SOURCE_TIME_MILLIS),
+                  row.get(MEASURE_VALUE));
+            }
+          }
+          return null;
+        });
+  }
+
+  /**
+   * Stores the rows of the bucket [bucketStart, bucketEnd) in one transaction, replacing what a
+   * concurrent fetch of the same bucket may have stored first.
+   *
+   * @param rows replays the rows of the bucket to the handler it is given
+   */
+  public void addBucket(
+      final UUID kbTenantId,
+      final String customerId,
+      final String meterApiName,
+      final long bucketStart,
+      final long bucketEnd,
+      final Consumer<UsageRowHandler> rows)
+      throws SQLException {
+    final String tenantId = kbTenantId.toString();
+    final String meter = toColumn(meterApiName);
+    execute(
+        dataSource.getConnection(),
+        conn -> {
+          DSL.using(conn, dialect, settings)
+              .transaction(
+                  configuration -> {
+                    final DSLContext transaction = DSL.using(configuration);
+                    transaction
+                        .deleteFrom(USAGE_ROWS)
+                        .where(KB_TENANT_ID.eq(tenantId))
+                        .and(CUSTOMER_ID.eq(customerId))
+                        .and(METER_API_NAME.eq(meter))
+                        .and(BUCKET_START.eq(bucketStart))
+                        .execute();
+                    transaction
+                        .deleteFrom(USAGE_BUCKETS)
+                        .where(KB_TENANT_ID.eq(tenantId))
+                        .and(CUSTOMER_ID.eq(customerId))
+                        .and(METER_API_NAME.eq(meter))
+                        .and(BUCKET_START.eq(bucketStart))
+                        .execute();
+
+                    final BatchBindStep batch =
+                        transaction.batch(
+                            transaction
+                                .insertInto(
+                                    USAGE_ROWS,
+                                    KB_TENANT_ID,
+                                    CUSTOMER_ID,
+                                    METER_API_NAME,
+                                    BUCKET_START,
+                                    SOURCE_TIME_MILLIS,
+                                    MEASURE_NAME,
+                                    MEASURE_VALUE)
+                                .values(
+                                    (String) null,
+                                    (String) null,
+                                    (String) null,
+                                    (Long) null,
+                                    (Long) null,
+                                    (String) null,
+                                    (String) null));
+                    rows.accept(
+                        (rowCustomerId, measureName, sourceTimeInMillis, measureValue) ->
+                            batch.bind(
+                                tenantId,
+                                customerId,
+                                meter,
+                                bucketStart,
+                                sourceTimeInMillis,
+                                measureName,
+                                measureValue));
+                    if (batch.size() > 0) {
+                      batch.execute();
+                    }
+
+                    transaction
+                        .insertInto(
+                            USAGE_BUCKETS,
+                            KB_TENANT_ID,
+                            CUSTOMER_ID,
+                            METER_API_NAME,
+                            BUCKET_START,
+                            BUCKET_END,
+                            ROW_COUNT,
+                            CREATED_DATE)
+                        .values(
+                            tenantId,
+                            customerId,
+                            meter,
+                            bucketStart,
+                            bucketEnd,
+                            batch.size(),
+                            new Timestamp(System.currentTimeMillis()))
+                        .execute();
+                  });
+          return null;
+        });
+  }
+
+  private static String toColumn(final String meterApiName) {
+    return meterApiName == null ? ALL_METERS : meterApiName;
+  }
+}
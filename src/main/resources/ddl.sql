@@ -0,0 +1,51 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+-- MySQL and MariaDB only: the usage store is not available on other Kill Bill databases
+
+/*! SET default_storage_engine=INNODB */;
+
+-- Settled usage fetched from Amberflo, one row per event (or per aggregated bucket). The meter is
+-- the one queried, empty for the usage of a whole account.
+drop table if exists amberflo_usage_rows;
+create table amberflo_usage_rows (
+  record_id serial
+, kb_tenant_id char(36) not null
+, customer_id varchar(255) not null
+, meter_api_name varchar(128) not null
+, bucket_start bigint not null
+, source_time_millis bigint not null
+, measure_name varchar(128) default null
+, measure_value varchar(64) not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+-- Covers the reads, rows of a bucket in time order without touching the table, and the deletes
+create index amberflo_usage_rows_bucket on amberflo_usage_rows(kb_tenant_id, customer_id, meter_api_name, bucket_start, source_time_millis, measure_name, measure_value);
+
+-- Time buckets whose rows are all in amberflo_usage_rows, a bucket without usage has no rows
+drop table if exists amberflo_usage_buckets;
+create table amberflo_usage_buckets (
+  record_id serial
+, kb_tenant_id char(36) not null
+, customer_id varchar(255) not null
+, meter_api_name varchar(128) not null
+, bucket_start bigint not null
+, bucket_end bigint not null
+, row_count int not null
+, created_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index amberflo_usage_buckets_customer_meter_bucket on amberflo_usage_buckets(kb_tenant_id, customer_id, meter_api_name, bucket_start);
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.plugin.amberflo.usage.api.AccountCache;
+import org.killbill.billing.plugin.amberflo.usage.core.UsageEventHandler;
+import org.mockito.Mockito;
+import org.testng.Assert;
+
+public class AccountCacheTest {
+
+  private final UUID accountId = UUID.randomUUID();
+  private final AtomicInteger lookups = new AtomicInteger();
+  private final AccountCache<String> externalKeys = new AccountCache<>(2);
+  private final AccountCache<Map<String, UUID>> measureNames = new AccountCache<>(2);
+  private final UsageEventHandler eventHandler = new UsageEventHandler(externalKeys, measureNames);
+
+  @Test
+  public void testExternalKeyIsLookedUpUntilTheAccountChanges() {
+    Assert.assertEquals(getExternalKey(accountId), "test");
+    Assert.assertEquals(getExternalKey(accountId), "test");
+    Assert.assertEquals(lookups.get(), 1);
+
+    // Events about other accounts or other objects keep the entry
+    eventHandler.handleKillbillEvent(event(ExtBusEventType.ACCOUNT_CHANGE, UUID.randomUUID()));
+    eventHandler.handleKillbillEvent(event(ExtBusEventType.SUBSCRIPTION_CREATION, accountId));
+    Assert.assertEquals(getExternalKey(accountId), "test");
+    Assert.assertEquals(lookups.get(), 1);
+
+    eventHandler.handleKillbillEvent(event(ExtBusEventType.ACCOUNT_CHANGE, accountId));
+    Assert.assertEquals(getExternalKey(accountId), "test");
+    Assert.assertEquals(lookups.get(), 2);
+  }
+
+  @Test
+  public void testMeasureNamesAreDroppedWhenSubscriptionsChange() {
+    for (ExtBusEventType type :
+        new ExtBusEventType[] {
+          ExtBusEventType.CUSTOM_FIELD_CREATION,
+          ExtBusEventType.CUSTOM_FIELD_DELETION,
+          ExtBusEventType.SUBSCRIPTION_CREATION,
+          ExtBusEventType.SUBSCRIPTION_CANCEL
+        }) {
+      measureNames.get(accountId, () -> Collections.singletonMap("test", UUID.randomUUID()));
+      Assert.assertEquals(measureNames.size(), 1);
+      eventHandler.handleKillbillEvent(event(type, accountId));
+      Assert.assertEquals(measureNames.size(), 0);
+    }
+
+    // The external key does not depend on the subscriptions
+    getExternalKey(accountId);
+    eventHandler.handleKillbillEvent(event(ExtBusEventType.SUBSCRIPTION_CREATION, accountId));
+    Assert.assertEquals(externalKeys.size(), 1);
+  }
+
+  @Test
+  public void testChangeDuringLookupIsNotCached() {
+    externalKeys.get(
+        accountId,
+        () -> {
+          // The account changes while Kill Bill is being asked for it
+          eventHandler.handleKillbillEvent(event(ExtBusEventType.ACCOUNT_CHANGE, accountId));
+          return "stale";
+        });
+
+    Assert.assertEquals(getExternalKey(accountId), "test");
+    Assert.assertEquals(lookups.get(), 1);
+  }
+
+  @Test
+  public void testLeastRecentlyUsedAccountIsEvicted() {
+    UUID secondAccountId = UUID.randomUUID();
+    getExternalKey(accountId);
+    getExternalKey(secondAccountId);
+    getExternalKey(accountId);
+    getExternalKey(UUID.randomUUID());
+    Assert.assertEquals(externalKeys.size(), 2);
+
+    lookups.set(0);
+    getExternalKey(accountId);
+    Assert.assertEquals(lookups.get(), 0);
+    getExternalKey(secondAccountId);
+    Assert.assertEquals(lookups.get(), 1);
+  }
+
+  private String getExternalKey(UUID id) {
+    return externalKeys.get(
+        id,
+        () -> {
+          lookups.incrementAndGet();
+          return "test";
+        });
+  }
+
+  private static ExtBusEvent event(ExtBusEventType type, UUID accountId) {
+    ExtBusEvent event = Mockito.mock(ExtBusEvent.class);
+    Mockito.when(event.getEventType()).thenReturn(type);
+    Mockito.when(event.getAccountId()).thenReturn(accountId);
+    return event;
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.matchingJsonPath;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClientImpl;
+import org.killbill.billing.plugin.amberflo.usage.client.Deadline;
+import org.killbill.billing.plugin.amberflo.usage.client.UsageRowHandler;
+import org.killbill.billing.plugin.amberflo.usage.core.UsageConfigProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+
+public class AmberfloClientAggregatedTest extends TestBase {
+
+  private static final Logger logger = LoggerFactory.getLogger(AmberfloClientAggregatedTest.class);
+
+  private static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.amberflo.usage.";
+  private static final String AGGREGATED_PATH = "/usage";
+  private static final String AGGREGATED_CUSTOMER_ID = "aggregated-customer";
+  private static final String METER_API_NAME = "BulletsAPI";
+
+  // The range starts in the middle of the first day, which Amberflo still returns as a bucket
+  private static final DateTime START = new DateTime(2023, 4, 1, 6, 0, DateTimeZone.UTC);
+  private static final DateTime END = START.plusDays(3);
+
+  @Test
+  public void testDailyTotalsBecomeOneRowPerBucket() {
+    logger.info("[usage-plugin] testDailyTotalsBecomeOneRowPerBucket");
+    stubTotals();
+
+    List<String> rows = new ArrayList<>();
+    newClient()
+        .getUsageSubscription(
+            AGGREGATED_CUSTOMER_ID,
+            METER_API_NAME,
+            START,
+            END,
+            Deadline.never(),
+            collectInto(rows));
+
+    assertTotals(rows);
+    verify(
+        1,
+        postRequestedFor(urlPathEqualTo(AGGREGATED_PATH))
+            .withRequestBody(matchingJsonPath("$.meterApiName", equalTo(METER_API_NAME)))
+            .withRequestBody(matchingJsonPath("$.timeGroupingInterval", equalTo("DAY")))
+            .withRequestBody(
+                matchingJsonPath("$.filter.customerId[0]", equalTo(AGGREGATED_CUSTOMER_ID)))
+            .withRequestBody(
+                matchingJsonPath(
+                    "$.timeRange.startTimeInSeconds",
+                    equalTo(Long.toString(START.getMillis() / 1000)))));
+  }
+
+  @Test
+  public void testAsyncDailyTotalsBecomeOneRowPerBucket() {
+    logger.info("[usage-plugin] testAsyncDailyTotalsBecomeOneRowPerBucket");
+    stubTotals();
+
+    List<String> rows = new ArrayList<>();
+    newClient()
+        .getUsageSubscriptionAsync(
+            AGGREGATED_CUSTOMER_ID,
+            METER_API_NAME,
+            START,
+            END,
+            Deadline.never(),
+            collectInto(rows))
+        .join();
+
+    assertTotals(rows);
+  }
+
+  private void stubTotals() {
+    long firstDay = START.withTimeAtStartOfDay().getMillis() / 1000;
+    String body =
+        "{\"metadata\":{\"meterApiName\":\""
+            + METER_API_NAME
+            + "\"},\"secondsSinceEpochIntervals\":["
+            + firstDay
+            + ","
+            + (firstDay + 86400)
+            + ","
+            + (firstDay + 2 * 86400)
+            + "],\"clientMeters\":[{\"groupInfo\":null,\"values\":["
+            + bucket(firstDay, "12.5")
+            + ","
+            + bucket(firstDay + 86400, "0.0")
+            + ","
+            + bucket(firstDay + 2 * 86400, "30.0")
+            + "],\"groupValue\":42.5}]}";
+    stubFor(
+        post(urlPathEqualTo(AGGREGATED_PATH))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader(CONTENT_TYPE, "application/json")
+                    .withBody(body)));
+  }
+
+  private static void assertTotals(List<String> rows) {
+    long firstDay = START.withTimeAtStartOfDay().getMillis();
+    // The empty day is skipped and the first bucket is moved to the start of the range
+    Assert.assertEquals(rows.size(), 2);
+    Assert.assertEquals(
+        rows.get(0),
+        AGGREGATED_CUSTOMER_ID + "|" + METER_API_NAME + "|" + START.getMillis() + "|12.5");
+    Assert.assertEquals(
+        rows.get(1),
+        AGGREGATED_CUSTOMER_ID + "|" + METER_API_NAME + "|" + (firstDay + 2 * 86400000L) + "|30.0");
+  }
+
+  private AmberfloClientImpl newClient() {
+    Properties properties = new Properties();
+    properties.setProperty(PROPERTY_PREFIX + "url", "http://localhost:7040/usage/events");
+    properties.setProperty(PROPERTY_PREFIX + "apiKey", "test");
+    properties.setProperty(PROPERTY_PREFIX + "queryMode", "aggregated");
+    properties.setProperty(PROPERTY_PREFIX + "aggregationInterval", "DAY");
+    UsageConfigProperties config = new UsageConfigProperties(properties, "");
+    return new AmberfloClientImpl(
+        config,
+        httpClientManager.getHttpClient(null, config),
+        httpClientManager.getAsyncHttpClient(null, config),
+        httpClientManager.getCircuitBreaker(null, config),
+        httpClientManager.getRateLimiter(config));
+  }
+
+  private static String bucket(long secondsSinceEpoch, String value) {
+    return "{\"value\":" + value + ",\"secondsSinceEpochUtc\":" + secondsSinceEpoch + "}";
+  }
+
+  private static UsageRowHandler collectInto(List<String> rows) {
+    return (customerId, measureName, sourceTimeInMillis, measureValue) ->
+        rows.add(customerId + "|" + measureName + "|" + sourceTimeInMillis + "|" + measureValue);
+  }
+}
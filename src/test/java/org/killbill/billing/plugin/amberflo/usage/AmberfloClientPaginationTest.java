@@ -0,0 +1,421 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClient;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClientException;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClientImpl;
+import org.killbill.billing.plugin.amberflo.usage.client.CachingAmberfloClient;
+import org.killbill.billing.plugin.amberflo.usage.client.Deadline;
+import org.killbill.billing.plugin.amberflo.usage.client.UsageIntervalCache;
+import org.killbill.billing.plugin.amberflo.usage.client.UsageRowHandler;
+import org.killbill.billing.plugin.amberflo.usage.core.UsageConfigProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+
+public class AmberfloClientPaginationTest extends TestBase {
+
+  private static final Logger logger = LoggerFactory.getLogger(AmberfloClientPaginationTest.class);
+
+  private static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.amberflo.usage.";
+  private static final String PAGED_CUSTOMER_ID = "paged-customer";
+  private static final String LOOPING_CUSTOMER_ID = "looping-customer";
+  private static final String BOUNDED_CUSTOMER_ID = "bounded-customer";
+  private static final String SUB_SECOND_CUSTOMER_ID = "sub-second-customer";
+  private static final String BOUNDARY_CUSTOMER_ID = "boundary-customer";
+  private static final String PAGE_SIZE_PARAM = "pageSize";
+
+  private static final int PAGE_SIZE = 25000;
+  private static final int PAGE_COUNT = 5;
+  private static final long FIRST_SOURCE_TIME = 1680307200000L;
+
+  @Test
+  public void testFollowsNextPageTokenUntilExhausted() {
+    logger.info("[usage-plugin] testFollowsNextPageTokenUntilExhausted");
+    for (int page = 1; page <= PAGE_COUNT; page++) {
+      stubPage(page);
+    }
+
+    UsageConfigProperties config = pagedConfig();
+    AmberfloClientImpl client =
+        new AmberfloClientImpl(
+            config,
+            httpClientManager.getHttpClient(null, config),
+            httpClientManager.getAsyncHttpClient(null, config),
+            httpClientManager.getCircuitBreaker(null, config),
+            httpClientManager.getRateLimiter(config));
+
+    long[] expectedSourceTime = {FIRST_SOURCE_TIME};
+    client.getUsageAccount(
+        PAGED_CUSTOMER_ID,
+        DateTime.parse("2023-04-01"),
+        DateTime.parse("2023-04-30"),
+        Deadline.never(),
+        (customerId, measureName, sourceTimeInMillis, measureValue) -> {
+          Assert.assertEquals(sourceTimeInMillis, expectedSourceTime[0]++);
+          Assert.assertEquals(customerId, PAGED_CUSTOMER_ID);
+        });
+
+    // 125k rows arrive in order as five bounded pages rather than one response
+    Assert.assertEquals(
+        expectedSourceTime[0] - FIRST_SOURCE_TIME, (long) PAGE_SIZE * PAGE_COUNT);
+    verify(
+        PAGE_COUNT,
+        getRequestedFor(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(PAGED_CUSTOMER_ID))
+            .withQueryParam(PAGE_SIZE_PARAM, equalTo(Integer.toString(PAGE_SIZE))));
+  }
+
+  @Test
+  public void testAsyncFollowsNextPageTokenUntilExhausted() {
+    logger.info("[usage-plugin] testAsyncFollowsNextPageTokenUntilExhausted");
+    for (int page = 1; page <= PAGE_COUNT; page++) {
+      stubPage(page);
+    }
+
+    UsageConfigProperties config = pagedConfig();
+    AmberfloClientImpl client =
+        new AmberfloClientImpl(
+            config,
+            httpClientManager.getHttpClient(null, config),
+            httpClientManager.getAsyncHttpClient(null, config),
+            httpClientManager.getCircuitBreaker(null, config),
+            httpClientManager.getRateLimiter(config));
+
+    long[] rows = {0, 0};
+    client
+        .getUsageAccountAsync(
+            PAGED_CUSTOMER_ID,
+            DateTime.parse("2023-04-01"),
+            DateTime.parse("2023-04-30"),
+            Deadline.never(),
+            (customerId, measureName, sourceTimeInMillis, measureValue) -> {
+              rows[0]++;
+              rows[1] = sourceTimeInMillis;
+            })
+        .join();
+
+    Assert.assertEquals(rows[0], (long) PAGE_SIZE * PAGE_COUNT);
+    Assert.assertEquals(rows[1], FIRST_SOURCE_TIME + PAGE_SIZE * PAGE_COUNT - 1);
+  }
+
+  @Test
+  public void testRejectsPageTokenThatDoesNotAdvance() {
+    logger.info("[usage-plugin] testRejectsPageTokenThatDoesNotAdvance");
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(LOOPING_CUSTOMER_ID))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader(CONTENT_TYPE, CONTENT_DATA)
+                    .withBody(buildPageBody(LOOPING_CUSTOMER_ID, 1, 1, "same-token"))));
+
+    UsageConfigProperties config = pagedConfig();
+    AmberfloClientImpl client =
+        new AmberfloClientImpl(
+            config,
+            httpClientManager.getHttpClient(null, config),
+            httpClientManager.getAsyncHttpClient(null, config),
+            httpClientManager.getCircuitBreaker(null, config),
+            httpClientManager.getRateLimiter(config));
+
+    int[] rows = {0};
+    try {
+      client.getUsageAccount(
+          LOOPING_CUSTOMER_ID,
+          DateTime.parse("2023-04-01"),
+          DateTime.parse("2023-04-30"),
+          Deadline.never(),
+          (customerId, measureName, sourceTimeInMillis, measureValue) -> rows[0]++);
+      Assert.fail("A page token that does not advance should stop the paging loop");
+    } catch (AmberfloClientException e) {
+      Assert.assertEquals(rows[0], 2);
+    }
+  }
+
+  @Test
+  public void testRowOnTheEndOfTheRangeIsLeftOutWithOrWithoutCache() {
+    logger.info("[usage-plugin] testRowOnTheEndOfTheRangeIsLeftOutWithOrWithoutCache");
+    DateTime start = new DateTime(2023, 4, 1, 0, 0, DateTimeZone.UTC);
+    DateTime end = start.plusDays(1);
+    // Amberflo answers with the rows sitting on both ends of the range
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(BOUNDED_CUSTOMER_ID))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader(CONTENT_TYPE, CONTENT_DATA)
+                    .withBody(
+                        "{\"columns\":[\"customerId\",\"measure_name\",\"sourceTimeInMillis\","
+                            + "\"measure_value::double\"],\"rows\":[[\""
+                            + BOUNDED_CUSTOMER_ID
+                            + "\",\"BulletsAPI\",\""
+                            + start.getMillis()
+                            + "\",\"1.0\"],[\""
+                            + BOUNDED_CUSTOMER_ID
+                            + "\",\"BulletsAPI\",\""
+                            + end.getMillis()
+                            + "\",\"1.0\"]],\"nextPageToken\":null}")));
+
+    UsageConfigProperties config = pagedConfig();
+    AmberfloClientImpl client =
+        new AmberfloClientImpl(
+            config,
+            httpClientManager.getHttpClient(null, config),
+            httpClientManager.getAsyncHttpClient(null, config),
+            httpClientManager.getCircuitBreaker(null, config),
+            httpClientManager.getRateLimiter(config));
+    AmberfloClient cachingClient =
+        new CachingAmberfloClient(
+            client, new UsageIntervalCache(Long.MAX_VALUE, Long.MAX_VALUE, 60000, 0));
+
+    List<Long> expected = Arrays.asList(start.getMillis());
+    for (AmberfloClient usageClient : new AmberfloClient[] {client, cachingClient}) {
+      List<Long> sourceTimes = new ArrayList<>();
+      usageClient.getUsageAccount(
+          BOUNDED_CUSTOMER_ID, start, end, Deadline.never(), collectInto(sourceTimes));
+      Assert.assertEquals(sourceTimes, expected);
+
+      List<Long> asyncSourceTimes = new ArrayList<>();
+      usageClient
+          .getUsageAccountAsync(
+              BOUNDED_CUSTOMER_ID, start, end, Deadline.never(), collectInto(asyncSourceTimes))
+          .join();
+      Assert.assertEquals(asyncSourceTimes, expected);
+    }
+  }
+
+  @Test
+  public void testRangeEndingWithinASecondIsCutAtTheMillisecondWithOrWithoutCache() {
+    logger.info(
+        "[usage-plugin] testRangeEndingWithinASecondIsCutAtTheMillisecondWithOrWithoutCache");
+    DateTime start = new DateTime(2023, 4, 1, 0, 0, DateTimeZone.UTC);
+    DateTime end = start.plusDays(1).plusMillis(500);
+    // One row on either side of the end, within the same second
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(SUB_SECOND_CUSTOMER_ID))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader(CONTENT_TYPE, CONTENT_DATA)
+                    .withBody(
+                        buildPageBody(
+                            SUB_SECOND_CUSTOMER_ID,
+                            null,
+                            start.getMillis(),
+                            end.getMillis() - 300,
+                            end.getMillis() + 200))));
+
+    UsageConfigProperties config = pagedConfig();
+    AmberfloClientImpl client =
+        new AmberfloClientImpl(
+            config,
+            httpClientManager.getHttpClient(null, config),
+            httpClientManager.getAsyncHttpClient(null, config),
+            httpClientManager.getCircuitBreaker(null, config),
+            httpClientManager.getRateLimiter(config));
+    AmberfloClient cachingClient =
+        new CachingAmberfloClient(
+            client, new UsageIntervalCache(Long.MAX_VALUE, Long.MAX_VALUE, 60000, 0));
+
+    List<Long> expected = Arrays.asList(start.getMillis(), end.getMillis() - 300);
+    for (AmberfloClient usageClient : new AmberfloClient[] {client, cachingClient}) {
+      List<Long> sourceTimes = new ArrayList<>();
+      usageClient.getUsageAccount(
+          SUB_SECOND_CUSTOMER_ID, start, end, Deadline.never(), collectInto(sourceTimes));
+      Assert.assertEquals(sourceTimes, expected);
+
+      List<Long> asyncSourceTimes = new ArrayList<>();
+      usageClient
+          .getUsageAccountAsync(
+              SUB_SECOND_CUSTOMER_ID, start, end, Deadline.never(), collectInto(asyncSourceTimes))
+          .join();
+      Assert.assertEquals(asyncSourceTimes, expected);
+    }
+  }
+
+  @Test
+  public void testIdenticalRowsOnEitherSideOfAPageBoundaryAreAllKept() {
+    logger.info("[usage-plugin] testIdenticalRowsOnEitherSideOfAPageBoundaryAreAllKept");
+    // Pages do not overlap: two identical events end the first page, a third one starts the next
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(BOUNDARY_CUSTOMER_ID))
+            .withQueryParam(NEXT_PAGE_TOKEN_PARAM, absent())
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader(CONTENT_TYPE, CONTENT_DATA)
+                    .withBody(
+                        buildPageBody(
+                            BOUNDARY_CUSTOMER_ID,
+                            "page-2",
+                            FIRST_SOURCE_TIME,
+                            FIRST_SOURCE_TIME + 1,
+                            FIRST_SOURCE_TIME + 1))));
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(BOUNDARY_CUSTOMER_ID))
+            .withQueryParam(NEXT_PAGE_TOKEN_PARAM, equalTo("page-2"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader(CONTENT_TYPE, CONTENT_DATA)
+                    .withBody(
+                        buildPageBody(
+                            BOUNDARY_CUSTOMER_ID,
+                            null,
+                            FIRST_SOURCE_TIME + 1,
+                            FIRST_SOURCE_TIME + 2))));
+
+    UsageConfigProperties config = pagedConfig();
+    AmberfloClientImpl client =
+        new AmberfloClientImpl(
+            config,
+            httpClientManager.getHttpClient(null, config),
+            httpClientManager.getAsyncHttpClient(null, config),
+            httpClientManager.getCircuitBreaker(null, config),
+            httpClientManager.getRateLimiter(config));
+
+    List<Long> expected =
+        Arrays.asList(
+            FIRST_SOURCE_TIME,
+            FIRST_SOURCE_TIME + 1,
+            FIRST_SOURCE_TIME + 1,
+            FIRST_SOURCE_TIME + 1,
+            FIRST_SOURCE_TIME + 2);
+    List<Long> sourceTimes = new ArrayList<>();
+    client.getUsageAccount(
+        BOUNDARY_CUSTOMER_ID,
+        DateTime.parse("2023-04-01"),
+        DateTime.parse("2023-04-30"),
+        Deadline.never(),
+        collectInto(sourceTimes));
+    Assert.assertEquals(sourceTimes, expected);
+
+    List<Long> asyncSourceTimes = new ArrayList<>();
+    client
+        .getUsageAccountAsync(
+            BOUNDARY_CUSTOMER_ID,
+            DateTime.parse("2023-04-01"),
+            DateTime.parse("2023-04-30"),
+            Deadline.never(),
+            collectInto(asyncSourceTimes))
+        .join();
+    Assert.assertEquals(asyncSourceTimes, expected);
+  }
+
+  private static UsageRowHandler collectInto(List<Long> sourceTimes) {
+    return (customerId, measureName, sourceTimeInMillis, measureValue) ->
+        sourceTimes.add(sourceTimeInMillis);
+  }
+
+  private UsageConfigProperties pagedConfig() {
+    Properties properties = new Properties();
+    properties.setProperty(PROPERTY_PREFIX + "url", "http://localhost:7040");
+    properties.setProperty(PROPERTY_PREFIX + "apiKey", "test");
+    properties.setProperty(PROPERTY_PREFIX + "pageSize", Integer.toString(PAGE_SIZE));
+    // Keep April in a single slice, the stubs only know about paging
+    properties.setProperty(PROPERTY_PREFIX + "sliceDurationHours", "744");
+    return new UsageConfigProperties(properties, "");
+  }
+
+  private void stubPage(int page) {
+    String nextPageToken = page < PAGE_COUNT ? "page-" + (page + 1) : null;
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(PAGED_CUSTOMER_ID))
+            .withQueryParam(
+                NEXT_PAGE_TOKEN_PARAM, page == 1 ? absent() : equalTo("page-" + page))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader(CONTENT_TYPE, CONTENT_DATA)
+                    .withBody(
+                        buildPageBody(
+                            PAGED_CUSTOMER_ID,
+                            FIRST_SOURCE_TIME + (long) (page - 1) * PAGE_SIZE,
+                            PAGE_SIZE,
+                            nextPageToken))));
+  }
+
+  private static String buildPageBody(
+      String customerId, long firstSourceTime, int rows, String nextPageToken) {
+    StringBuilder body = new StringBuilder(rows * 64);
+    body.append("{\"columns\":[\"customerId\",\"measure_name\",\"sourceTimeInMillis\",")
+        .append("\"measure_value::double\"],\"rows\":[");
+    for (int i = 0; i < rows; i++) {
+      if (i > 0) {
+        body.append(',');
+      }
+      body.append("[\"")
+          .append(customerId)
+          .append("\",\"BulletsAPI\",\"")
+          .append(firstSourceTime + i)
+          .append("\",\"1.0\"]");
+    }
+    return appendPageToken(body, nextPageToken);
+  }
+
+  private static String buildPageBody(
+      String customerId, String nextPageToken, long... sourceTimes) {
+    StringBuilder body = new StringBuilder(sourceTimes.length * 64);
+    body.append("{\"columns\":[\"customerId\",\"measure_name\",\"sourceTimeInMillis\",")
+        .append("\"measure_value::double\"],\"rows\":[");
+    for (int i = 0; i < sourceTimes.length; i++) {
+      if (i > 0) {
+        body.append(',');
+      }
+      body.append("[\"")
+          .append(customerId)
+          .append("\",\"BulletsAPI\",\"")
+          .append(sourceTimes[i])
+          .append("\",\"1.0\"]");
+    }
+    return appendPageToken(body, nextPageToken);
+  }
+
+  private static String appendPageToken(StringBuilder body, String nextPageToken) {
+    body.append("],\"nextPageToken\":");
+    if (nextPageToken == null) {
+      body.append("null");
+    } else {
+      body.append('"').append(nextPageToken).append('"');
+    }
+    return body.append('}').toString();
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.After;
+import org.junit.Test;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClient;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClientRegistry;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloHttpClientManager;
+import org.killbill.billing.plugin.amberflo.usage.core.UsageConfigProperties;
+import org.testng.Assert;
+
+public class AmberfloClientRegistryTest {
+
+  private static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.amberflo.usage.";
+  private static final UUID TENANT_ID = UUID.randomUUID();
+  private static final UUID OTHER_TENANT_ID = UUID.randomUUID();
+
+  private final Map<UUID, UsageConfigProperties> configurations = new HashMap<>();
+  private final AmberfloHttpClientManager httpClientManager = new AmberfloHttpClientManager();
+  private final AmberfloClientRegistry registry =
+      new AmberfloClientRegistry(this::getConfiguration, httpClientManager);
+
+  @After
+  public void tearDown() {
+    httpClientManager.close();
+  }
+
+  @Test
+  public void testClientIsReusedPerTenant() {
+    AmberfloClient client = registry.getClient(TENANT_ID);
+
+    Assert.assertSame(registry.getClient(TENANT_ID), client);
+    Assert.assertNotSame(registry.getClient(OTHER_TENANT_ID), client);
+    Assert.assertSame(registry.getClient(null), registry.getClient(null));
+  }
+
+  @Test
+  public void testOnlyTheReconfiguredTenantGetsANewClient() {
+    AmberfloClient client = registry.getClient(TENANT_ID);
+    AmberfloClient otherClient = registry.getClient(OTHER_TENANT_ID);
+
+    configurations.put(TENANT_ID, newConfiguration("http://localhost:7041"));
+    registry.onConfigurationChange(TENANT_ID);
+
+    Assert.assertNotSame(registry.getClient(TENANT_ID), client);
+    Assert.assertSame(registry.getClient(OTHER_TENANT_ID), otherClient);
+  }
+
+  @Test
+  public void testGlobalChangeRebuildsEveryClient() {
+    AmberfloClient client = registry.getClient(TENANT_ID);
+    AmberfloClient defaultClient = registry.getClient(null);
+
+    registry.onConfigurationChange(null);
+
+    Assert.assertNotSame(registry.getClient(TENANT_ID), client);
+    Assert.assertNotSame(registry.getClient(null), defaultClient);
+  }
+
+  @Test
+  public void testRetiredPoolIsClosedOnceIdle() throws Exception {
+    CloseableHttpClient retired =
+        httpClientManager.getHttpClient(TENANT_ID, getConfiguration(TENANT_ID));
+    httpClientManager.getHttpClient(TENANT_ID, newConfiguration("http://localhost:7041"));
+
+    // No other pool gets created, the retired one is closed all the same
+    long giveUpMillis = System.currentTimeMillis() + 10000;
+    while (true) {
+      try {
+        retired.execute(new HttpGet("http://localhost:1/")).close();
+      } catch (IllegalStateException e) {
+        // Connection pool shut down
+        return;
+      } catch (IOException e) {
+        // Nothing listens there, the pool is still open
+      }
+      if (System.currentTimeMillis() > giveUpMillis) {
+        Assert.fail("The retired pool was never closed");
+      }
+      Thread.sleep(100);
+    }
+  }
+
+  private UsageConfigProperties getConfiguration(UUID tenantId) {
+    return configurations.computeIfAbsent(
+        tenantId, ignored -> newConfiguration("http://localhost:7040"));
+  }
+
+  private static UsageConfigProperties newConfiguration(String url) {
+    Properties properties = new Properties();
+    properties.setProperty(PROPERTY_PREFIX + "url", url);
+    properties.setProperty(PROPERTY_PREFIX + "apiKey", "test");
+    return new UsageConfigProperties(properties, "");
+  }
+}
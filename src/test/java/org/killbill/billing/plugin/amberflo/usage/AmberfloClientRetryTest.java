@@ -0,0 +1,320 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletionException;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloCircuitBreaker;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClientException;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClientImpl;
+import org.killbill.billing.plugin.amberflo.usage.client.Deadline;
+import org.killbill.billing.plugin.amberflo.usage.core.UsageConfigProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+
+public class AmberfloClientRetryTest extends TestBase {
+
+  private static final Logger logger = LoggerFactory.getLogger(AmberfloClientRetryTest.class);
+
+  private static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.amberflo.usage.";
+  private static final String FLAKY_CUSTOMER_ID = "flaky-customer";
+  private static final String DOWN_CUSTOMER_ID = "down-customer";
+  private static final String REJECTED_CUSTOMER_ID = "rejected-customer";
+  private static final String SLOW_CUSTOMER_ID = "slow-customer";
+  private static final String CUT_CUSTOMER_ID = "cut-customer";
+  private static final String RECOVERED_STATE = "recovered";
+
+  private static final DateTime START = new DateTime(2023, 4, 1, 0, 0, DateTimeZone.UTC);
+  private static final DateTime END = START.plusHours(12);
+
+  @Test
+  public void testRetriesAfterServiceUnavailable() {
+    logger.info("[usage-plugin] testRetriesAfterServiceUnavailable");
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(FLAKY_CUSTOMER_ID))
+            .inScenario(FLAKY_CUSTOMER_ID)
+            .whenScenarioStateIs(Scenario.STARTED)
+            .willSetStateTo(RECOVERED_STATE)
+            .willReturn(aResponse().withStatus(503).withHeader("Retry-After", "1")));
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(FLAKY_CUSTOMER_ID))
+            .inScenario(FLAKY_CUSTOMER_ID)
+            .whenScenarioStateIs(RECOVERED_STATE)
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader(CONTENT_TYPE, CONTENT_DATA)
+                    .withBody(
+                        "{\"columns\":[\"customerId\",\"measure_name\",\"sourceTimeInMillis\","
+                            + "\"measure_value::double\"],\"rows\":[[\""
+                            + FLAKY_CUSTOMER_ID
+                            + "\",\"BulletsAPI\",\""
+                            + START.getMillis()
+                            + "\",\"1.0\"]],\"nextPageToken\":null}")));
+
+    int[] rows = {0};
+    long startedAt = System.currentTimeMillis();
+    newClient(new Properties())
+        .getUsageAccount(
+            FLAKY_CUSTOMER_ID,
+            START,
+            END,
+            Deadline.never(),
+            (customerId, measureName, sourceTimeInMillis, measureValue) -> rows[0]++);
+
+    // The retry waited for as long as Retry-After asked
+    Assert.assertTrue(System.currentTimeMillis() - startedAt >= 1000);
+    Assert.assertEquals(rows[0], 1);
+    verify(
+        2,
+        getRequestedFor(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(FLAKY_CUSTOMER_ID)));
+  }
+
+  @Test
+  public void testCircuitBreakerFailsFastOnceOpen() {
+    logger.info("[usage-plugin] testCircuitBreakerFailsFastOnceOpen");
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(DOWN_CUSTOMER_ID))
+            .willReturn(aResponse().withStatus(500)));
+
+    Properties properties = new Properties();
+    properties.setProperty(PROPERTY_PREFIX + "maxRetries", "1");
+    properties.setProperty(PROPERTY_PREFIX + "retryBaseDelayMillis", "1");
+    properties.setProperty(PROPERTY_PREFIX + "circuitBreakerWindowSize", "4");
+    properties.setProperty(PROPERTY_PREFIX + "circuitBreakerMinimumCalls", "2");
+    AmberfloClientImpl client = newClient(properties);
+
+    for (int call = 0; call < 2; call++) {
+      try {
+        client.getUsageAccount(
+            DOWN_CUSTOMER_ID,
+            START,
+            END,
+            Deadline.never(),
+            (customerId, measureName, sourceTimeInMillis, measureValue) -> {});
+        Assert.fail("Amberflo keeps failing, the call should fail too");
+      } catch (AmberfloClientException e) {
+        logger.info("[usage-plugin] call {} failed with {}", call, e.getMessage());
+      }
+    }
+
+    // Both attempts of the first call failed, the second call never reached Amberflo
+    verify(
+        2,
+        getRequestedFor(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(DOWN_CUSTOMER_ID)));
+    Assert.assertEquals(
+        httpClientManager.getCircuitBreaker(null).getState(), AmberfloCircuitBreaker.State.OPEN);
+  }
+
+  @Test
+  public void testHalfOpenBreakerIsReleasedWhenItsTrialCannotBeBuilt() throws Exception {
+    logger.info("[usage-plugin] testHalfOpenBreakerIsReleasedWhenItsTrialCannotBeBuilt");
+    Properties properties = new Properties();
+    properties.setProperty(PROPERTY_PREFIX + "url", "http://localhost:7040");
+    // Not a valid header value, the request fails to build before it is sent
+    properties.setProperty(PROPERTY_PREFIX + "apiKey", "bad\nkey");
+    properties.setProperty(PROPERTY_PREFIX + "circuitBreakerWindowSize", "2");
+    properties.setProperty(PROPERTY_PREFIX + "circuitBreakerMinimumCalls", "2");
+    properties.setProperty(PROPERTY_PREFIX + "circuitBreakerOpenMillis", "100");
+    UsageConfigProperties config = new UsageConfigProperties(properties, "");
+    AmberfloCircuitBreaker circuitBreaker = new AmberfloCircuitBreaker(config);
+    AmberfloClientImpl client =
+        new AmberfloClientImpl(
+            config,
+            httpClientManager.getHttpClient(null, config),
+            httpClientManager.getAsyncHttpClient(null, config),
+            circuitBreaker,
+            httpClientManager.getRateLimiter(config));
+
+    circuitBreaker.onFailure();
+    circuitBreaker.onFailure();
+    Thread.sleep(200);
+    Assert.assertEquals(circuitBreaker.getState(), AmberfloCircuitBreaker.State.HALF_OPEN);
+
+    try {
+      client
+          .getUsageAccountAsync(
+              FLAKY_CUSTOMER_ID,
+              START,
+              END,
+              Deadline.never(),
+              (customerId, measureName, sourceTimeInMillis, measureValue) -> {})
+          .join();
+      Assert.fail("A request that cannot be built should fail the call");
+    } catch (CompletionException e) {
+      Assert.assertTrue(e.getCause() instanceof AmberfloClientException);
+    }
+
+    // The trial never went out, the next request may be the trial instead
+    Assert.assertEquals(circuitBreaker.getState(), AmberfloCircuitBreaker.State.HALF_OPEN);
+    circuitBreaker.acquirePermission();
+  }
+
+  @Test
+  public void testClientErrorIsNotRetried() {
+    logger.info("[usage-plugin] testClientErrorIsNotRetried");
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(REJECTED_CUSTOMER_ID))
+            .willReturn(aResponse().withStatus(400)));
+
+    try {
+      newClient(new Properties())
+          .getUsageAccountAsync(
+              REJECTED_CUSTOMER_ID,
+              START,
+              END,
+              Deadline.never(),
+              (customerId, measureName, sourceTimeInMillis, measureValue) -> {})
+          .join();
+      Assert.fail("A rejected request should fail the call");
+    } catch (CompletionException e) {
+      Assert.assertTrue(e.getCause() instanceof AmberfloClientException);
+      Assert.assertTrue(e.getCause().getMessage().contains("400"));
+    }
+
+    verify(
+        1,
+        getRequestedFor(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(REJECTED_CUSTOMER_ID)));
+    Assert.assertEquals(
+        httpClientManager.getCircuitBreaker(null).getState(), AmberfloCircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void testDeadlineCutsSlowRequestShort() {
+    logger.info("[usage-plugin] testDeadlineCutsSlowRequestShort");
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(SLOW_CUSTOMER_ID))
+            .willReturn(aResponse().withStatus(200).withFixedDelay(5000)));
+
+    long startedAt = System.currentTimeMillis();
+    try {
+      newClient(new Properties())
+          .getUsageAccount(
+              SLOW_CUSTOMER_ID,
+              START,
+              END,
+              Deadline.after(500),
+              (customerId, measureName, sourceTimeInMillis, measureValue) -> {});
+      Assert.fail("The call should fail once its budget is spent");
+    } catch (AmberfloClientException e) {
+      Assert.assertTrue(e.getMessage().contains("budget"));
+    }
+
+    // The socket timeout was cut to the budget instead of the configured 60 seconds
+    Assert.assertTrue(System.currentTimeMillis() - startedAt < 3000);
+  }
+
+  @Test
+  public void testPageCutShortIsRetriedWithoutHandingRowsOverTwice() {
+    logger.info("[usage-plugin] testPageCutShortIsRetriedWithoutHandingRowsOverTwice");
+    // Two identical events every second, the first answer stalls half way through past the
+    // socket timeout
+    StringBuilder body =
+        new StringBuilder(
+            "{\"columns\":[\"customerId\",\"measure_name\",\"sourceTimeInMillis\","
+                + "\"measure_value::double\"],\"rows\":[");
+    List<Long> expected = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      long sourceTime = START.getMillis() + (i / 2) * 1000L;
+      expected.add(sourceTime);
+      body.append(i == 0 ? "" : ",")
+          .append("[\"")
+          .append(CUT_CUSTOMER_ID)
+          .append("\",\"BulletsAPI\",\"")
+          .append(sourceTime)
+          .append("\",\"1.0\"]");
+    }
+    body.append("],\"nextPageToken\":null}");
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(CUT_CUSTOMER_ID))
+            .inScenario(CUT_CUSTOMER_ID)
+            .whenScenarioStateIs(Scenario.STARTED)
+            .willSetStateTo(RECOVERED_STATE)
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader(CONTENT_TYPE, CONTENT_DATA)
+                    .withBody(body.toString())
+                    .withChunkedDribbleDelay(2, 6000)));
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(CUT_CUSTOMER_ID))
+            .inScenario(CUT_CUSTOMER_ID)
+            .whenScenarioStateIs(RECOVERED_STATE)
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader(CONTENT_TYPE, CONTENT_DATA)
+                    .withBody(body.toString())));
+
+    Properties properties = new Properties();
+    properties.setProperty(PROPERTY_PREFIX + "socketTimeoutMillis", "1500");
+    properties.setProperty(PROPERTY_PREFIX + "retryBaseDelayMillis", "1");
+    List<Long> sourceTimes = new ArrayList<>();
+    newClient(properties)
+        .getUsageAccount(
+            CUT_CUSTOMER_ID,
+            START,
+            END,
+            Deadline.never(),
+            (customerId, measureName, sourceTimeInMillis, measureValue) ->
+                sourceTimes.add(sourceTimeInMillis));
+
+    // Every row once, identical events included, although the first half was received twice
+    Assert.assertEquals(sourceTimes, expected);
+    verify(
+        2,
+        getRequestedFor(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(CUT_CUSTOMER_ID)));
+  }
+
+  private AmberfloClientImpl newClient(Properties properties) {
+    properties.setProperty(PROPERTY_PREFIX + "url", "http://localhost:7040");
+    properties.setProperty(PROPERTY_PREFIX + "apiKey", "test");
+    UsageConfigProperties config = new UsageConfigProperties(properties, "");
+    return new AmberfloClientImpl(
+        config,
+        httpClientManager.getHttpClient(null, config),
+        httpClientManager.getAsyncHttpClient(null, config),
+        httpClientManager.getCircuitBreaker(null, config),
+        httpClientManager.getRateLimiter(config));
+  }
+}
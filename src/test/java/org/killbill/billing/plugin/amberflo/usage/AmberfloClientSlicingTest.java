@@ -0,0 +1,261 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.findAll;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletionException;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClientException;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClientImpl;
+import org.killbill.billing.plugin.amberflo.usage.client.Deadline;
+import org.killbill.billing.plugin.amberflo.usage.client.UsageRowHandler;
+import org.killbill.billing.plugin.amberflo.usage.core.UsageConfigProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+
+public class AmberfloClientSlicingTest extends TestBase {
+
+  private static final Logger logger = LoggerFactory.getLogger(AmberfloClientSlicingTest.class);
+
+  private static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.amberflo.usage.";
+  private static final String SLICED_CUSTOMER_ID = "sliced-customer";
+  private static final String START_TIME_PARAM = "startTimeInSeconds";
+  private static final String END_TIME_PARAM = "endTimeInSeconds";
+
+  private static final DateTime START = new DateTime(2023, 4, 1, 0, 0, DateTimeZone.UTC);
+  private static final int SLICE_COUNT = 7;
+  private static final long SLICE_SECONDS = 86400L;
+  private static final long HOUR_MILLIS = 3600000L;
+
+  @Test
+  public void testSlicesAreMergedInOrderWithoutDuplicates() {
+    logger.info("[usage-plugin] testSlicesAreMergedInOrderWithoutDuplicates");
+    stubSlices();
+
+    List<Long> sourceTimes = new ArrayList<>();
+    newClient()
+        .getUsageAccount(
+            SLICED_CUSTOMER_ID,
+            START,
+            START.plusDays(SLICE_COUNT),
+            Deadline.never(),
+            collectInto(sourceTimes));
+
+    assertMerged(sourceTimes);
+    for (int slice = 0; slice < SLICE_COUNT; slice++) {
+      long sliceStart = START.getMillis() / 1000 + slice * SLICE_SECONDS;
+      verify(
+          1,
+          getRequestedFor(urlPathEqualTo(ENDPOINT_PATH))
+              .withQueryParam(CUSTOMER_ID_PARAM, equalTo(SLICED_CUSTOMER_ID))
+              .withQueryParam(START_TIME_PARAM, equalTo(Long.toString(sliceStart)))
+              .withQueryParam(END_TIME_PARAM, equalTo(Long.toString(sliceStart + SLICE_SECONDS))));
+    }
+  }
+
+  @Test
+  public void testAsyncSlicesAreMergedInOrderWithoutDuplicates() {
+    logger.info("[usage-plugin] testAsyncSlicesAreMergedInOrderWithoutDuplicates");
+    stubSlices();
+
+    List<Long> sourceTimes = new ArrayList<>();
+    newClient()
+        .getUsageAccountAsync(
+            SLICED_CUSTOMER_ID,
+            START,
+            START.plusDays(SLICE_COUNT),
+            Deadline.never(),
+            collectInto(sourceTimes))
+        .join();
+
+    assertMerged(sourceTimes);
+  }
+
+  @Test
+  public void testSlicesAreNotFetchedAheadOfASlowSlice() {
+    logger.info("[usage-plugin] testSlicesAreNotFetchedAheadOfASlowSlice");
+    stubSlices();
+    // The first slice answers last, the later ones must wait for it to be handed over
+    long firstSliceStart = START.getMillis() / 1000;
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(SLICED_CUSTOMER_ID))
+            .withQueryParam(START_TIME_PARAM, equalTo(Long.toString(firstSliceStart)))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withFixedDelay(1000)
+                    .withHeader(CONTENT_TYPE, CONTENT_DATA)
+                    .withBody(
+                        "{\"columns\":[\"customerId\",\"measure_name\",\"sourceTimeInMillis\","
+                            + "\"measure_value::double\"],\"rows\":["
+                            + row(START.getMillis())
+                            + "],\"nextPageToken\":null}")));
+
+    List<Integer> requestsBeforeFirstRow = new ArrayList<>();
+    newClient()
+        .getUsageAccount(
+            SLICED_CUSTOMER_ID,
+            START,
+            START.plusDays(SLICE_COUNT),
+            Deadline.never(),
+            (customerId, measureName, sourceTimeInMillis, measureValue) -> {
+              if (requestsBeforeFirstRow.isEmpty()) {
+                requestsBeforeFirstRow.add(
+                    findAll(getRequestedFor(urlPathEqualTo(ENDPOINT_PATH))).size());
+              }
+            });
+
+    // One slice per lane
+    Assert.assertEquals(requestsBeforeFirstRow.get(0).intValue(), 3);
+    verify(SLICE_COUNT, getRequestedFor(urlPathEqualTo(ENDPOINT_PATH)));
+  }
+
+  @Test
+  public void testSlowSliceBodyIsCutShortByTheBudget() {
+    logger.info("[usage-plugin] testSlowSliceBodyIsCutShortByTheBudget");
+    stubSlices();
+    // The headers of the first slice come right away, its body trickles in for 5 seconds
+    long firstSliceStart = START.getMillis() / 1000;
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(SLICED_CUSTOMER_ID))
+            .withQueryParam(START_TIME_PARAM, equalTo(Long.toString(firstSliceStart)))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader(CONTENT_TYPE, CONTENT_DATA)
+                    .withBody(
+                        "{\"columns\":[\"customerId\",\"measure_name\",\"sourceTimeInMillis\","
+                            + "\"measure_value::double\"],\"rows\":["
+                            + row(START.getMillis())
+                            + "],\"nextPageToken\":null}")
+                    .withChunkedDribbleDelay(5, 5000)));
+
+    long startedAt = System.currentTimeMillis();
+    try {
+      newClient()
+          .getUsageAccount(
+              SLICED_CUSTOMER_ID,
+              START,
+              START.plusDays(SLICE_COUNT),
+              Deadline.after(500),
+              (customerId, measureName, sourceTimeInMillis, measureValue) -> {});
+      Assert.fail("The call should fail once its budget is spent");
+    } catch (AmberfloClientException e) {
+      Assert.assertTrue(e.getMessage().contains("budget"));
+    }
+    Assert.assertTrue(System.currentTimeMillis() - startedAt < 3000);
+
+    startedAt = System.currentTimeMillis();
+    try {
+      newClient()
+          .getUsageAccountAsync(
+              SLICED_CUSTOMER_ID,
+              START,
+              START.plusDays(SLICE_COUNT),
+              Deadline.after(500),
+              (customerId, measureName, sourceTimeInMillis, measureValue) -> {})
+          .join();
+      Assert.fail("The call should fail once its budget is spent");
+    } catch (CompletionException e) {
+      Assert.assertTrue(e.getCause() instanceof AmberfloClientException);
+      Assert.assertTrue(e.getCause().getMessage().contains("budget"));
+    }
+    Assert.assertTrue(System.currentTimeMillis() - startedAt < 3000);
+  }
+
+  // Every slice starts with a row on its own lower boundary and, like an inclusive end would,
+  // also returns the row sitting on the lower boundary of the next slice
+  private void stubSlices() {
+    for (int slice = 0; slice < SLICE_COUNT; slice++) {
+      long sliceStartMillis = START.getMillis() + slice * SLICE_SECONDS * 1000;
+      long sliceEndMillis = sliceStartMillis + SLICE_SECONDS * 1000;
+      String body =
+          "{\"columns\":[\"customerId\",\"measure_name\",\"sourceTimeInMillis\","
+              + "\"measure_value::double\"],\"rows\":["
+              + row(sliceStartMillis)
+              + ","
+              + row(sliceStartMillis + HOUR_MILLIS)
+              + ","
+              + row(sliceEndMillis)
+              + "],\"nextPageToken\":null}";
+
+      // Later slices answer first so the merge cannot rely on completion order
+      stubFor(
+          get(urlPathEqualTo(ENDPOINT_PATH))
+              .withQueryParam(CUSTOMER_ID_PARAM, equalTo(SLICED_CUSTOMER_ID))
+              .withQueryParam(START_TIME_PARAM, equalTo(Long.toString(sliceStartMillis / 1000)))
+              .willReturn(
+                  aResponse()
+                      .withStatus(200)
+                      .withFixedDelay((SLICE_COUNT - slice) * 50)
+                      .withHeader(CONTENT_TYPE, CONTENT_DATA)
+                      .withBody(body)));
+    }
+  }
+
+  private static void assertMerged(List<Long> sourceTimes) {
+    // Two rows per slice, the one on the end of the range is left to the next range
+    Assert.assertEquals(sourceTimes.size(), SLICE_COUNT * 2);
+    for (int i = 1; i < sourceTimes.size(); i++) {
+      Assert.assertTrue(sourceTimes.get(i) > sourceTimes.get(i - 1));
+    }
+    Assert.assertEquals(sourceTimes.get(0).longValue(), START.getMillis());
+    Assert.assertEquals(
+        sourceTimes.get(sourceTimes.size() - 1).longValue(),
+        START.plusDays(SLICE_COUNT - 1).getMillis() + HOUR_MILLIS);
+  }
+
+  private AmberfloClientImpl newClient() {
+    Properties properties = new Properties();
+    properties.setProperty(PROPERTY_PREFIX + "url", "http://localhost:7040");
+    properties.setProperty(PROPERTY_PREFIX + "apiKey", "test");
+    properties.setProperty(PROPERTY_PREFIX + "sliceDurationHours", "24");
+    properties.setProperty(PROPERTY_PREFIX + "maxParallelSlices", "3");
+    UsageConfigProperties config = new UsageConfigProperties(properties, "");
+    return new AmberfloClientImpl(
+        config,
+        httpClientManager.getHttpClient(null, config),
+        httpClientManager.getAsyncHttpClient(null, config),
+        httpClientManager.getCircuitBreaker(null, config),
+        httpClientManager.getRateLimiter(config));
+  }
+
+  private static String row(long sourceTimeInMillis) {
+    return "[\"" + SLICED_CUSTOMER_ID + "\",\"BulletsAPI\",\"" + sourceTimeInMillis + "\",\"1.0\"]";
+  }
+
+  private static UsageRowHandler collectInto(List<Long> sourceTimes) {
+    return (customerId, measureName, sourceTimeInMillis, measureValue) ->
+        sourceTimes.add(sourceTimeInMillis);
+  }
+}
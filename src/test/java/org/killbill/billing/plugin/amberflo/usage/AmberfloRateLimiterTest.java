@@ -0,0 +1,96 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage;
+
+import java.util.Map;
+import java.util.Properties;
+import org.junit.Test;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClientException;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloRateLimiter;
+import org.killbill.billing.plugin.amberflo.usage.client.Deadline;
+import org.killbill.billing.plugin.amberflo.usage.core.UsageConfigProperties;
+import org.testng.Assert;
+
+public class AmberfloRateLimiterTest {
+
+  private static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.amberflo.usage.";
+
+  @Test
+  public void testBurstIsGrantedThenRequestsArePaced() {
+    AmberfloRateLimiter rateLimiter = newRateLimiter(10, 2, 5000);
+    Deadline deadline = Deadline.after(60000);
+
+    long startedAt = System.nanoTime();
+    rateLimiter.acquire(deadline);
+    rateLimiter.acquire(deadline);
+    long burstMillis = (System.nanoTime() - startedAt) / 1000000;
+
+    rateLimiter.acquire(deadline);
+    rateLimiter.acquire(deadline);
+    rateLimiter.acquire(deadline);
+    long pacedMillis = (System.nanoTime() - startedAt) / 1000000;
+
+    // The two saved permits and a fresh one go out at once, every later one 100 ms after the last
+    Assert.assertTrue(burstMillis < 100, "burst took " + burstMillis + " ms");
+    Assert.assertTrue(pacedMillis >= 190, "paced requests took " + pacedMillis + " ms");
+
+    Map<String, Object> details = rateLimiter.getDetails();
+    Assert.assertEquals(details.get("rateLimitGrantedPermits"), 5L);
+    Assert.assertEquals(details.get("rateLimitDelayedPermits"), 2L);
+    Assert.assertEquals(details.get("rateLimitRejectedPermits"), 0L);
+  }
+
+  @Test
+  public void testAsyncPermitCompletesAfterTheWait() {
+    AmberfloRateLimiter rateLimiter = newRateLimiter(5, 1, 5000);
+    Deadline deadline = Deadline.after(60000);
+    rateLimiter.acquireAsync(deadline).join();
+    rateLimiter.acquireAsync(deadline).join();
+
+    long startedAt = System.nanoTime();
+    rateLimiter.acquireAsync(deadline).join();
+    long waitedMillis = (System.nanoTime() - startedAt) / 1000000;
+
+    Assert.assertTrue(waitedMillis >= 150, "waited " + waitedMillis + " ms");
+  }
+
+  @Test
+  public void testPermitTooFarAwayIsRejected() {
+    AmberfloRateLimiter rateLimiter = newRateLimiter(1, 1, 10);
+    Deadline deadline = Deadline.after(60000);
+    rateLimiter.acquire(deadline);
+    rateLimiter.acquire(deadline);
+
+    try {
+      rateLimiter.acquire(deadline);
+      Assert.fail("The next permit is a second away, more than the 10 ms callers may wait");
+    } catch (AmberfloClientException e) {
+      Assert.assertEquals(rateLimiter.getDetails().get("rateLimitRejectedPermits"), 1L);
+    }
+  }
+
+  private static AmberfloRateLimiter newRateLimiter(
+      int permitsPerSecond, int burst, int maxWaitMillis) {
+    Properties properties = new Properties();
+    properties.setProperty(
+        PROPERTY_PREFIX + "rateLimitPermitsPerSecond", Integer.toString(permitsPerSecond));
+    properties.setProperty(PROPERTY_PREFIX + "rateLimitBurst", Integer.toString(burst));
+    properties.setProperty(
+        PROPERTY_PREFIX + "rateLimitMaxWaitMillis", Integer.toString(maxWaitMillis));
+    return new AmberfloRateLimiter(new UsageConfigProperties(properties, ""));
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClient;
+import org.killbill.billing.plugin.amberflo.usage.client.Deadline;
+import org.killbill.billing.plugin.amberflo.usage.client.PersistentAmberfloClient;
+import org.killbill.billing.plugin.amberflo.usage.client.RecordAggregation;
+import org.killbill.billing.plugin.amberflo.usage.client.UsageRowHandler;
+import org.killbill.billing.plugin.amberflo.usage.dao.AmberfloUsageDao;
+import org.mockito.Mockito;
+import org.testng.Assert;
+
+public class PersistentAmberfloClientTest {
+
+  private static final long DAY = 24 * 3600 * 1000L;
+  private static final DateTime START = new DateTime(2023, 4, 1, 0, 0, DateTimeZone.UTC);
+  private static final long DAY_1 = START.getMillis();
+  private static final long DAY_2 = DAY_1 + DAY;
+  private static final long DAY_3 = DAY_2 + DAY;
+  private static final long END = DAY_3 + DAY;
+  private static final UUID TENANT_ID = UUID.randomUUID();
+
+  private final DailyClient amberflo = new DailyClient();
+
+  @Test
+  public void testStoredBucketsAreNotFetchedAgain() throws Exception {
+    AmberfloUsageDao dao = Mockito.mock(AmberfloUsageDao.class);
+    Mockito.when(
+            dao.getStoredBuckets(
+                Mockito.eq(TENANT_ID),
+                Mockito.eq("test"),
+                Mockito.eq("BulletsAPI"),
+                Mockito.eq(DAY_1),
+                Mockito.eq(END),
+                Mockito.eq(DAY)))
+        .thenReturn(Collections.singleton(DAY_2));
+    Mockito.doAnswer(
+            invocation -> {
+              UsageRowHandler handler = invocation.getArgument(5);
+              handler.onRow("test", "BulletsAPI", DAY_2 + 1, "2.0");
+              return null;
+            })
+        .when(dao)
+        .getUsage(
+            Mockito.eq(TENANT_ID),
+            Mockito.eq("test"),
+            Mockito.eq("BulletsAPI"),
+            Mockito.eq(DAY_2),
+            Mockito.eq(DAY_3),
+            Mockito.any());
+
+    List<String> values = fetch(dao);
+
+    Assert.assertEquals(values, Arrays.asList("1.0", "2.0", "1.0"));
+    Assert.assertEquals(amberflo.ranges, Arrays.asList(DAY_1, DAY_2, DAY_3, END));
+    for (long bucket : new long[] {DAY_1, DAY_3}) {
+      Mockito.verify(dao)
+          .addBucket(
+              Mockito.eq(TENANT_ID),
+              Mockito.eq("test"),
+              Mockito.eq("BulletsAPI"),
+              Mockito.eq(bucket),
+              Mockito.eq(bucket + DAY),
+              Mockito.any());
+    }
+  }
+
+  @Test
+  public void testBucketsAreStoredAsTheFetchMovesPastThem() throws Exception {
+    // Nothing stored yet, the three days are fetched with a single query
+    AmberfloUsageDao dao = Mockito.mock(AmberfloUsageDao.class);
+    List<Integer> rowsFetchedWhenStored = new ArrayList<>();
+    Mockito.doAnswer(
+            invocation -> {
+              rowsFetchedWhenStored.add(amberflo.rows);
+              return null;
+            })
+        .when(dao)
+        .addBucket(
+            Mockito.any(),
+            Mockito.any(),
+            Mockito.any(),
+            Mockito.anyLong(),
+            Mockito.anyLong(),
+            Mockito.any());
+
+    Assert.assertEquals(fetch(dao), Arrays.asList("1.0", "1.0", "1.0"));
+    Assert.assertEquals(amberflo.ranges, Arrays.asList(DAY_1, END));
+    // A day was stored once the row of the next one came in, not after the whole range
+    Assert.assertEquals(rowsFetchedWhenStored, Arrays.asList(2, 3, 3));
+  }
+
+  @Test
+  public void testUnavailableStoreFallsBackToAmberflo() throws Exception {
+    AmberfloUsageDao dao = Mockito.mock(AmberfloUsageDao.class);
+    Mockito.when(
+            dao.getStoredBuckets(
+                Mockito.any(),
+                Mockito.any(),
+                Mockito.any(),
+                Mockito.anyLong(),
+                Mockito.anyLong(),
+                Mockito.anyLong()))
+        .thenThrow(new SQLException("Connection refused"));
+    Mockito.doThrow(new SQLException("Connection refused"))
+        .when(dao)
+        .addBucket(
+            Mockito.any(),
+            Mockito.any(),
+            Mockito.any(),
+            Mockito.anyLong(),
+            Mockito.anyLong(),
+            Mockito.any());
+
+    List<String> values = fetch(dao);
+
+    // The whole range went to Amberflo in a single query
+    Assert.assertEquals(values, Arrays.asList("1.0", "1.0", "1.0"));
+    Assert.assertEquals(amberflo.ranges, Arrays.asList(DAY_1, END));
+  }
+
+  private List<String> fetch(AmberfloUsageDao dao) {
+    List<String> values = new ArrayList<>();
+    new PersistentAmberfloClient(amberflo, dao, TENANT_ID, DAY, 0)
+        .getUsageSubscription(
+            "test",
+            "BulletsAPI",
+            START,
+            new DateTime(END, DateTimeZone.UTC),
+            Deadline.never(),
+            (customerId, measureName, sourceTimeInMillis, measureValue) ->
+                values.add(measureValue));
+    return values;
+  }
+
+  // One row at the start of every day, recording the ranges it was asked for
+  private static final class DailyClient implements AmberfloClient {
+
+    private final List<Long> ranges = new ArrayList<>();
+    private int rows;
+
+    @Override
+    public void getUsageAccount(
+        String customerId,
+        DateTime startDate,
+        DateTime endDate,
+        Deadline deadline,
+        UsageRowHandler handler) {
+      getUsageSubscription(customerId, "BulletsAPI", startDate, endDate, deadline, handler);
+    }
+
+    @Override
+    public void getUsageSubscription(
+        String customerId,
+        String meterApiName,
+        DateTime startDate,
+        DateTime endDate,
+        Deadline deadline,
+        UsageRowHandler handler) {
+      ranges.add(startDate.getMillis());
+      ranges.add(endDate.getMillis());
+      for (long time = startDate.getMillis(); time < endDate.getMillis(); time += DAY) {
+        rows++;
+        handler.onRow(customerId, meterApiName, time, "1.0");
+      }
+    }
+
+    @Override
+    public CompletableFuture<Void> getUsageAccountAsync(
+        String customerId,
+        DateTime startDate,
+        DateTime endDate,
+        Deadline deadline,
+        UsageRowHandler handler) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public CompletableFuture<Void> getUsageSubscriptionAsync(
+        String customerId,
+        String meterApiName,
+        DateTime startDate,
+        DateTime endDate,
+        Deadline deadline,
+        UsageRowHandler handler) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isAggregated() {
+      return false;
+    }
+
+    @Override
+    public long getUsageBudgetMillis() {
+      return 0;
+    }
+
+    @Override
+    public long getSpillThresholdBytes() {
+      return Long.MAX_VALUE;
+    }
+
+    @Override
+    public RecordAggregation getRecordAggregation() {
+      return RecordAggregation.NONE;
+    }
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+import org.junit.Test;
+import org.killbill.billing.plugin.amberflo.usage.api.SpillingRawUsageRecordList;
+import org.killbill.billing.usage.api.RawUsageRecord;
+import org.testng.Assert;
+
+public class SpillingRawUsageRecordListTest {
+
+  private static final UUID SUBSCRIPTION_ID = UUID.randomUUID();
+  private static final long FIRST_SOURCE_TIME = 1680307200000L;
+  private static final int ROWS = 10000;
+
+  @Test
+  public void testSmallResultsStayOnHeap() {
+    SpillingRawUsageRecordList records = new SpillingRawUsageRecordList(1024 * 1024);
+    addRows(records, 100);
+    records.finish();
+
+    Assert.assertEquals(records.getSpilledSize(), 0);
+    assertRows(records, 100);
+  }
+
+  @Test
+  public void testRecordsPastTheThresholdAreReadBackFromDisk() {
+    // Room for a handful of records, everything else goes to the temp file
+    SpillingRawUsageRecordList records = new SpillingRawUsageRecordList(100);
+    addRows(records, ROWS);
+    records.finish();
+
+    Assert.assertTrue(records.getSpilledSize() > ROWS - 10);
+    assertRows(records, ROWS);
+  }
+
+  @Test
+  public void testRecordsAreReadOnlyViews() {
+    SpillingRawUsageRecordList records = new SpillingRawUsageRecordList(100);
+    addRows(records, 10);
+    records.finish();
+
+    // A view of a spilled record reads the same values each time
+    RawUsageRecord record = records.get(9);
+    Assert.assertEquals(record.getDate(), records.get(9).getDate());
+    Assert.assertEquals(record.getAmount(), new BigDecimal("9.25"));
+    try {
+      records.add(record);
+      Assert.fail("Kill Bill should not be able to add records");
+    } catch (UnsupportedOperationException e) {
+      // Expected
+    }
+    try {
+      records.get(10);
+      Assert.fail("There are only 10 records");
+    } catch (IndexOutOfBoundsException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testAmountTooWideForALongIsKept() {
+    BigDecimal wide = new BigDecimal("123456789012345678901234567890.125");
+    SpillingRawUsageRecordList records = new SpillingRawUsageRecordList(0);
+    records.add(SUBSCRIPTION_ID, "BulletsAPI", FIRST_SOURCE_TIME, wide, 1L);
+    records.add(null, "RocksApi", FIRST_SOURCE_TIME + 1, new BigDecimal("18.5"), 2L);
+    records.finish();
+
+    Assert.assertEquals(records.getSpilledSize(), 2);
+    Assert.assertEquals(records.get(0).getAmount(), wide);
+    Assert.assertNull(records.get(1).getSubscriptionId());
+    Assert.assertEquals(records.get(1).getAmount(), new BigDecimal("18.5"));
+  }
+
+  @Test
+  public void testAmountsAreReadAsBigDecimalWould() {
+    String[] amounts = {
+      "87.0", "-0.5", "+3", ".25", "5.", "-0.000", "1.0E7", "999999999999999999.5",
+      "123456789012345678901234567890.125", "000000000000000000000012"
+    };
+    String[] invalid = {"", "-", ".", "1.2.3", "12a", "NaN"};
+    for (long thresholdBytes : new long[] {1024 * 1024, 0}) {
+      SpillingRawUsageRecordList records = new SpillingRawUsageRecordList(thresholdBytes);
+      for (String amount : amounts) {
+        records.add(SUBSCRIPTION_ID, "BulletsAPI", FIRST_SOURCE_TIME, amount, 0L);
+      }
+      for (String amount : invalid) {
+        try {
+          records.add(SUBSCRIPTION_ID, "BulletsAPI", FIRST_SOURCE_TIME, amount, 0L);
+          Assert.fail("\"" + amount + "\" is not an amount");
+        } catch (NumberFormatException e) {
+          // Expected, the record is not added
+        }
+      }
+      records.finish();
+
+      Assert.assertEquals(records.size(), amounts.length);
+      for (int i = 0; i < amounts.length; i++) {
+        Assert.assertEquals(records.get(i).getAmount(), new BigDecimal(amounts[i]));
+      }
+    }
+  }
+
+  @Test
+  public void testRecordsAreMergedByDateAndSubscription() {
+    UUID first = new UUID(0, 1);
+    UUID second = new UUID(0, 2);
+    for (long thresholdBytes : new long[] {1024 * 1024, 100}) {
+      // One run per meter, as a multi-meter query would add them
+      SpillingRawUsageRecordList records = new SpillingRawUsageRecordList(thresholdBytes);
+      for (int i = 0; i < 3000; i++) {
+        records.add(second, "RocksApi", FIRST_SOURCE_TIME + 2 * i, "1", i);
+      }
+      for (int i = 0; i < 3000; i++) {
+        records.add(first, "BulletsAPI", FIRST_SOURCE_TIME + 3 * i, "2", 3000 + i);
+      }
+      records.add(null, "Unknown", FIRST_SOURCE_TIME, "3", 6000);
+      records.finish();
+
+      Assert.assertEquals(records.getRunCount(), 3);
+      Assert.assertEquals(records.size(), 6001);
+      Assert.assertNull(records.get(0).getSubscriptionId());
+      RawUsageRecord previous = records.get(0);
+      for (int i = 1; i < records.size(); i++) {
+        RawUsageRecord record = records.get(i);
+        long previousMillis = previous.getDate().getMillis();
+        Assert.assertTrue(previousMillis <= record.getDate().getMillis());
+        if (previousMillis == record.getDate().getMillis()) {
+          Assert.assertTrue(
+              previous.getSubscriptionId() == null
+                  || previous.getSubscriptionId().compareTo(record.getSubscriptionId()) <= 0);
+        }
+        previous = record;
+      }
+      // The three runs start at the same date, their records go by subscription
+      Assert.assertEquals(records.get(1).getUnitType(), "BulletsAPI");
+      Assert.assertEquals(records.get(2).getUnitType(), "RocksApi");
+      // Iterating merges the runs without get, in the same order
+      int i = 0;
+      for (RawUsageRecord record : records) {
+        Assert.assertEquals(record.getTrackingId(), records.get(i++).getTrackingId());
+      }
+      Assert.assertEquals(i, records.size());
+    }
+  }
+
+  @Test
+  public void testRecordsAddedInReverseOrderAreReadBackwards() {
+    for (long thresholdBytes : new long[] {1024 * 1024, 100}) {
+      SpillingRawUsageRecordList records = new SpillingRawUsageRecordList(thresholdBytes);
+      for (int i = 0; i < 3000; i++) {
+        records.add(SUBSCRIPTION_ID, "BulletsAPI", FIRST_SOURCE_TIME + 2999 - i, "1", i);
+      }
+      records.finish();
+
+      Assert.assertEquals(records.getRunCount(), 1);
+      int i = 0;
+      for (RawUsageRecord record : records) {
+        Assert.assertEquals(record.getDate().getMillis(), FIRST_SOURCE_TIME + i);
+        Assert.assertEquals(records.get(i).getTrackingId(), record.getTrackingId());
+        i++;
+      }
+      Assert.assertEquals(i, 3000);
+    }
+  }
+
+  @Test
+  public void testRecordsAddedAfterAReverseRunWithTheSameDateStayAfterIt() {
+    SpillingRawUsageRecordList records = new SpillingRawUsageRecordList(1024 * 1024);
+    for (int i = 0; i < 10; i++) {
+      records.add(SUBSCRIPTION_ID, "BulletsAPI", FIRST_SOURCE_TIME + 9 - i, "1", i);
+    }
+    // Equal to the last record, it cannot go on with a descending run
+    records.add(SUBSCRIPTION_ID, "BulletsAPI", FIRST_SOURCE_TIME, "2", 10);
+    records.finish();
+
+    Assert.assertEquals(records.getRunCount(), 2);
+    Assert.assertEquals(records.get(0).getAmount(), new BigDecimal("1"));
+    Assert.assertEquals(records.get(1).getAmount(), new BigDecimal("2"));
+    Assert.assertEquals(records.get(1).getDate().getMillis(), FIRST_SOURCE_TIME);
+    Assert.assertEquals(records.get(10).getDate().getMillis(), FIRST_SOURCE_TIME + 9);
+  }
+
+  private static void addRows(SpillingRawUsageRecordList records, int rows) {
+    for (int i = 0; i < rows; i++) {
+      records.add(
+          SUBSCRIPTION_ID,
+          "meter-" + (i % 7),
+          FIRST_SOURCE_TIME + i,
+          new BigDecimal(i + ".25"),
+          -1L - i);
+    }
+  }
+
+  private static void assertRows(SpillingRawUsageRecordList records, int rows) {
+    Assert.assertEquals(records.size(), rows);
+    int i = 0;
+    for (RawUsageRecord record : records) {
+      Assert.assertEquals(record.getSubscriptionId(), SUBSCRIPTION_ID);
+      Assert.assertEquals(record.getUnitType(), "meter-" + (i % 7));
+      Assert.assertEquals(record.getDate().getMillis(), FIRST_SOURCE_TIME + i);
+      Assert.assertEquals(record.getAmount(), new BigDecimal(i + ".25"));
+      // Tracking ids are unsigned hexadecimal numbers
+      Assert.assertEquals(record.getTrackingId(), Long.toHexString(-1L - i));
+      i++;
+    }
+    Assert.assertEquals(i, rows);
+  }
+}
@@ -17,9 +17,11 @@
 package org.killbill.billing.plugin.amberflo.usage;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
-import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
 
 import com.github.tomakehurst.wiremock.WireMockServer;
@@ -45,6 +47,8 @@ import org.killbill.billing.payment.api.PaymentApi;
 import org.killbill.billing.payment.api.PaymentMethod;
 import org.killbill.billing.plugin.TestUtils;
 import org.killbill.billing.plugin.amberflo.usage.api.UsagePluginApiImpl;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClientRegistry;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloHttpClientManager;
 import org.killbill.billing.plugin.amberflo.usage.core.UsageActivator;
 import org.killbill.billing.plugin.amberflo.usage.core.UsageConfigProperties;
 import org.killbill.billing.plugin.amberflo.usage.core.UsageConfigurationHandler;
@@ -61,16 +65,21 @@ import org.slf4j.LoggerFactory;
 @SuppressWarnings("java:S1192")
 public class TestBase {
 
-  private static final String ENDPOINT_TEST_URL =
-      "/?customerId=test&meterApiName=test&startTimeInSeconds=1680321600&endTimeInSeconds=1682827200";
+  // Stubs match on the query parameters that identify the request so that paging parameters such
+  // as pageSize do not have to be spelled out in every URL
+  protected static final String ENDPOINT_PATH = "/";
+  protected static final String CUSTOMER_ID_PARAM = "customerId";
+  protected static final String METER_API_NAME_PARAM = "meterApiName";
+  protected static final String NEXT_PAGE_TOKEN_PARAM = "nextPageToken";
 
-  private static final String ENDPOINT_CUSTOMER_ID_URL =
-      "/?customerId=a35132c1-3d28-45e3-ae98-101ea4211663";
-  private static final String ENDPOINT_CUSTOMER_ID_AND_METER_API_URL =
-      "/?customerId=a35132c1-3d28-45e3-ae98-101ea4211663&meterApiName=BulletsAPI";
+  private static final String TEST_CUSTOMER_ID = "test";
+  private static final String TEST_METER_API_NAME = "test";
 
-  private static final String CONTENT_TYPE = "Content-Type";
-  private static final String CONTENT_DATA = "application/x-www-form-urlencoded";
+  private static final String ENDPOINT_CUSTOMER_ID = "a35132c1-3d28-45e3-ae98-101ea4211663";
+  private static final String ENDPOINT_METER_API_NAME = "BulletsAPI";
+
+  protected static final String CONTENT_TYPE = "Content-Type";
+  protected static final String CONTENT_DATA = "application/x-www-form-urlencoded";
 
   protected static final String PROPERTIES_FILE_NAME = "usage.properties";
 
@@ -91,6 +100,8 @@ public class TestBase {
   protected UsageConfigurationHandler usageConfigHandler;
   protected UsageConfigProperties usageConfigProperties;
   protected UsagePluginApi usagePluginApi;
+  protected AmberfloHttpClientManager httpClientManager;
+  protected AmberfloClientRegistry clientRegistry;
 
   private static final Logger logger = LoggerFactory.getLogger(TestBase.class);
 
@@ -113,12 +124,18 @@ public class TestBase {
     CustomFieldImp customField = new CustomFieldImp();
     customField.setFieldName("measure_name");
     customField.setFieldValue("test");
+    customField.setObjectId(UUID.fromString("a35132c1-3d28-45e3-ae98-101ea4211663"));
     customFields.add(customField);
     Mockito.when(
             killbillApi
                 .getCustomFieldUserApi()
                 .getCustomFieldsForObject(Mockito.any(), Mockito.any(), Mockito.any()))
         .thenReturn(customFields);
+    Mockito.when(
+            killbillApi
+                .getCustomFieldUserApi()
+                .getCustomFieldsForAccountType(Mockito.any(), Mockito.any(), Mockito.any()))
+        .thenReturn(customFields);
     invoiceUserApi = Mockito.mock(InvoiceUserApi.class);
     Mockito.when(killbillApi.getInvoiceUserApi()).thenReturn(invoiceUserApi);
     accountUserApi = Mockito.mock(AccountUserApi.class);
@@ -157,7 +174,11 @@ public class TestBase {
 
     final OSGIConfigPropertiesService configPropertiesService =
         Mockito.mock(OSGIConfigPropertiesService.class);
-    usagePluginApiImpl = new UsagePluginApiImpl(usageConfigHandler, killbillApi);
+    httpClientManager = new AmberfloHttpClientManager();
+    clientRegistry =
+        new AmberfloClientRegistry(usageConfigHandler::getConfigurable, httpClientManager);
+    usageConfigHandler.addConfigurationListener(clientRegistry::onConfigurationChange);
+    usagePluginApiImpl = new UsagePluginApiImpl(killbillApi, clientRegistry);
     Mockito.when(killbillApi.getAccountUserApi().getAccountById(Mockito.any(), Mockito.any()))
         .thenReturn(account);
     Mockito.when(
@@ -190,12 +211,15 @@ public class TestBase {
 
   @After
   public void tearDownAfterSuite() throws IOException {
+    httpClientManager.close();
     wireMockServer.stop();
   }
 
   private void getUsageWithCustomerIdAndMeter() {
     stubFor(
-        get(urlEqualTo(ENDPOINT_CUSTOMER_ID_AND_METER_API_URL))
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(ENDPOINT_CUSTOMER_ID))
+            .withQueryParam(METER_API_NAME_PARAM, equalTo(ENDPOINT_METER_API_NAME))
             .willReturn(
                 aResponse()
                     .withStatus(200)
@@ -249,7 +273,9 @@ public class TestBase {
   private void getUsageWithCustomerId() {
 
     stubFor(
-        get(urlEqualTo(ENDPOINT_CUSTOMER_ID_URL))
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(ENDPOINT_CUSTOMER_ID))
+            .withQueryParam(METER_API_NAME_PARAM, absent())
             .willReturn(
                 aResponse()
                     .withStatus(200)
@@ -327,7 +353,9 @@ public class TestBase {
   private void getUsageFromHttp() {
     // ok
     stubFor(
-        get(urlEqualTo(ENDPOINT_TEST_URL))
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo(TEST_CUSTOMER_ID))
+            .withQueryParam(METER_API_NAME_PARAM, equalTo(TEST_METER_API_NAME))
             .willReturn(
                 aResponse()
                     .withStatus(200)
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.killbill.billing.plugin.amberflo.usage.client.Deadline;
+import org.killbill.billing.plugin.amberflo.usage.client.UsageIntervalCache;
+import org.testng.Assert;
+
+public class UsageIntervalCacheTest {
+
+  private static final long HOUR = 3600 * 1000L;
+
+  private final List<List<Long>> fetched = new ArrayList<>();
+
+  // One row at the start of every hour of the range
+  private final UsageIntervalCache.GapFetcher hourly =
+      (startMillis, endMillis, handler) -> {
+        fetched.add(Arrays.asList(startMillis, endMillis));
+        for (long time = startMillis; time <= endMillis; time += HOUR) {
+          handler.onRow("test", "BulletsAPI", time, "1.0");
+        }
+      };
+
+  @Test
+  public void testOnlyMissingGapsAreFetched() {
+    UsageIntervalCache cache = new UsageIntervalCache(Long.MAX_VALUE, Long.MAX_VALUE, 60000, 0);
+
+    Assert.assertEquals(fetch(cache, "test", 10 * HOUR, 20 * HOUR), hours(10, 20));
+    Assert.assertEquals(fetched.size(), 1);
+
+    // Covered both sides of the cached interval, only the two missing ends are fetched
+    fetched.clear();
+    Assert.assertEquals(fetch(cache, "test", 5 * HOUR, 25 * HOUR), hours(5, 25));
+    Assert.assertEquals(fetched.size(), 2);
+    Assert.assertEquals(fetched.get(0), Arrays.asList(5 * HOUR, 10 * HOUR));
+    Assert.assertEquals(fetched.get(1), Arrays.asList(20 * HOUR, 25 * HOUR));
+
+    // Fully cached
+    fetched.clear();
+    Assert.assertEquals(fetch(cache, "test", 12 * HOUR, 15 * HOUR), hours(12, 15));
+    Assert.assertEquals(fetched.size(), 0);
+    Assert.assertEquals(cache.getRecordCount(), 20);
+  }
+
+  @Test
+  public void testLeastRecentlyUsedCustomerIsEvicted() {
+    UsageIntervalCache cache = new UsageIntervalCache(Long.MAX_VALUE, 15, 60000, 0);
+
+    fetch(cache, "first", 0, 10 * HOUR);
+    fetch(cache, "second", 0, 10 * HOUR);
+    Assert.assertEquals(cache.getRecordCount(), 10);
+
+    // The first customer was evicted to make room, the second one is still cached
+    fetched.clear();
+    fetch(cache, "second", 0, 10 * HOUR);
+    Assert.assertEquals(fetched.size(), 0);
+    fetch(cache, "first", 0, 10 * HOUR);
+    Assert.assertEquals(fetched.size(), 1);
+  }
+
+  @Test
+  public void testGapPastTheCeilingIsHandedOverWithoutBeingKept() {
+    UsageIntervalCache cache = new UsageIntervalCache(Long.MAX_VALUE, 5, 60000, 0);
+    List<Long> received = new ArrayList<>();
+    List<Integer> receivedWhileFetching = new ArrayList<>();
+    UsageIntervalCache.GapFetcher watched =
+        (startMillis, endMillis, handler) -> {
+          hourly.fetch(startMillis, endMillis, handler);
+          receivedWhileFetching.add(received.size());
+        };
+
+    cache.fetch(
+        "test",
+        "BulletsAPI",
+        0,
+        10 * HOUR,
+        Deadline.never(),
+        watched,
+        (rowCustomerId, measureName, sourceTimeInMillis, measureValue) ->
+            received.add(sourceTimeInMillis));
+
+    // Rows reach the caller as the gap is fetched, not once it is complete
+    Assert.assertEquals(received, hours(0, 10));
+    Assert.assertEquals(receivedWhileFetching, Arrays.asList(10));
+    Assert.assertEquals(cache.getRecordCount(), 0);
+    Assert.assertEquals(fetch(cache, "test", 0, 10 * HOUR), hours(0, 10));
+    Assert.assertEquals(fetched.size(), 2);
+  }
+
+  @Test
+  public void testExpiredIntervalsAreFetchedAgain() {
+    // Nothing is ever settled with such a horizon
+    UsageIntervalCache cache =
+        new UsageIntervalCache(Long.MAX_VALUE, Long.MAX_VALUE, 0, Long.MAX_VALUE);
+
+    fetch(cache, "test", 0, 10 * HOUR);
+    fetch(cache, "test", 0, 10 * HOUR);
+    Assert.assertEquals(fetched.size(), 2);
+    Assert.assertEquals(cache.getRecordCount(), 10);
+  }
+
+  @Test
+  public void testOnlyTheTailAfterTheHorizonIsFetchedAgain() {
+    UsageIntervalCache cache = new UsageIntervalCache(Long.MAX_VALUE, Long.MAX_VALUE, 0, 2 * HOUR);
+    long now = System.currentTimeMillis() / HOUR * HOUR;
+    int[] calls = {0};
+    UsageIntervalCache.GapFetcher lateRow =
+        (startMillis, endMillis, handler) -> {
+          fetched.add(Arrays.asList(startMillis, endMillis));
+          handler.onRow("test", "BulletsAPI", now - 10 * HOUR, "1.0");
+          handler.onRow("test", "BulletsAPI", now - HOUR, "1.0");
+          // Received by Amberflo after the first fetch
+          if (calls[0]++ > 0) {
+            handler.onRow("test", "BulletsAPI", now - HOUR + 1, "1.0");
+          }
+        };
+
+    fetch(cache, "test", now - 24 * HOUR, now, lateRow);
+    Assert.assertEquals(fetch(cache, "test", now - 24 * HOUR, now, lateRow).size(), 3);
+
+    // The settled part was kept, only the last two hours were fetched again
+    Assert.assertEquals(fetched.size(), 2);
+    Assert.assertTrue(fetched.get(1).get(0) >= now - 2 * HOUR);
+    Assert.assertEquals((long) fetched.get(1).get(1), now);
+    Assert.assertEquals(cache.getLateRows(), 1);
+    Assert.assertTrue(cache.getMaxObservedLatenessMillis() >= HOUR - 1);
+  }
+
+  private List<Long> fetch(
+      UsageIntervalCache cache, String customerId, long startMillis, long endMillis) {
+    return fetch(cache, customerId, startMillis, endMillis, hourly);
+  }
+
+  private List<Long> fetch(
+      UsageIntervalCache cache,
+      String customerId,
+      long startMillis,
+      long endMillis,
+      UsageIntervalCache.GapFetcher fetcher) {
+    List<Long> rows = new ArrayList<>();
+    cache.fetch(
+        customerId,
+        "BulletsAPI",
+        startMillis,
+        endMillis,
+        Deadline.never(),
+        fetcher,
+        (rowCustomerId, measureName, sourceTimeInMillis, measureValue) ->
+            rows.add(sourceTimeInMillis));
+    return rows;
+  }
+
+  private static List<Long> hours(int from, int to) {
+    List<Long> rows = new ArrayList<>();
+    for (int hour = from; hour < to; hour++) {
+      rows.add(hour * HOUR);
+    }
+    return rows;
+  }
+}
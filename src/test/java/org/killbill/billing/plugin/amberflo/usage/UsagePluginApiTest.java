@@ -16,16 +16,38 @@
 
 package org.killbill.billing.plugin.amberflo.usage;
 
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import lombok.Setter;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.joda.time.LocalDate;
 import org.junit.Test;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.entitlement.api.Subscription;
+import org.killbill.billing.entitlement.api.SubscriptionBundle;
 import org.killbill.billing.invoice.api.DryRunType;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.plugin.amberflo.usage.api.AccountCache;
+import org.killbill.billing.plugin.amberflo.usage.api.UsagePluginApiImpl;
+import org.killbill.billing.plugin.amberflo.usage.core.UsageConfigProperties;
+import org.killbill.billing.plugin.amberflo.usage.core.UsageEventHandler;
 import org.killbill.billing.usage.api.RawUsageRecord;
 import org.killbill.billing.usage.plugin.api.UsageContext;
+import org.killbill.billing.util.customfield.CustomField;
+import org.mockito.Mockito;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.Assert;
@@ -34,6 +56,10 @@ public class UsagePluginApiTest extends TestBase {
 
   private static final Logger logger = LoggerFactory.getLogger(UsagePluginApiTest.class);
 
+  private static final int SUBSCRIPTIONS = 500;
+  private static final DateTime START = DateTime.parse("2023-04-01");
+  private static final DateTime END = DateTime.parse("2023-04-02");
+
   @Test
   public void testCreateGetUsageForSubscription() {
     logger.info("[usage-plugin] testCreateGetUsageForSubscription");
@@ -49,7 +75,7 @@ public class UsagePluginApiTest extends TestBase {
 
     String expectedUnitType = "BulletsAPI";
     UUID expectedSubId = UUID.fromString("a35132c1-3d28-45e3-ae98-101ea4211663");
-    String expectedAmount = "10.0";
+    String expectedAmount = "87.0";
     // Assert
 
     if (!rawRecord.isEmpty()) {
@@ -59,6 +85,284 @@ public class UsagePluginApiTest extends TestBase {
       Assert.assertEquals(expectedSubId, rawRecord.get(0).getSubscriptionId());
     }
   }
+
+  @Test
+  public void testMeasureNamesAreCachedUntilSubscriptionsChange() throws Exception {
+    logger.info("[usage-plugin] testMeasureNamesAreCachedUntilSubscriptionsChange");
+    AccountCache<String> externalKeys = new AccountCache<>(AccountCache.DEFAULT_MAX_ENTRIES);
+    AccountCache<Map<String, UUID>> measureNames =
+        new AccountCache<>(AccountCache.DEFAULT_MAX_ENTRIES);
+    UsagePluginApiImpl api =
+        new UsagePluginApiImpl(
+            killbillApi,
+            clientRegistry,
+            externalKeys,
+            measureNames,
+            UsageConfigProperties.DEFAULT_LOOKUP_THREADS);
+    UsageEventHandler eventHandler = new UsageEventHandler(externalKeys, measureNames);
+    UsageContext usageContext = new UsageContextImpl(UUID.randomUUID(), context.getTenantId());
+    stubAccountUsage();
+    // Only count the lookups of the usage calls, not those made while stubbing
+    Mockito.clearInvocations(accountUserApi, subscriptionApi);
+
+    for (int call = 0; call < 3; call++) {
+      api.getUsageForAccount(START, END, usageContext, null);
+    }
+    Mockito.verify(subscriptionApi, Mockito.times(1))
+        .getSubscriptionBundlesForAccountId(Mockito.any(), Mockito.any());
+    Mockito.verify(accountUserApi, Mockito.times(1)).getAccountById(Mockito.any(), Mockito.any());
+
+    // A new custom field may tag another subscription with a measure_name
+    ExtBusEvent event = Mockito.mock(ExtBusEvent.class);
+    Mockito.when(event.getEventType()).thenReturn(ExtBusEventType.CUSTOM_FIELD_CREATION);
+    Mockito.when(event.getAccountId()).thenReturn(usageContext.getAccountId());
+    eventHandler.handleKillbillEvent(event);
+
+    api.getUsageForAccount(START, END, usageContext, null);
+    Mockito.verify(subscriptionApi, Mockito.times(2))
+        .getSubscriptionBundlesForAccountId(Mockito.any(), Mockito.any());
+    Mockito.verify(accountUserApi, Mockito.times(1)).getAccountById(Mockito.any(), Mockito.any());
+  }
+
+  @Test
+  public void testMeasureNamesComeFromOneCustomFieldCall() throws Exception {
+    logger.info("[usage-plugin] testMeasureNamesComeFromOneCustomFieldCall");
+    List<Subscription> subscriptions = new ArrayList<>();
+    List<CustomField> customFields = new ArrayList<>();
+    for (int i = 0; i < SUBSCRIPTIONS; i++) {
+      SubscriptionImp subscription = new SubscriptionImp(UUID.randomUUID(), "sub-" + i);
+      subscriptions.add(subscription);
+      CustomFieldImp customField = new CustomFieldImp();
+      customField.setObjectId(subscription.getId());
+      customField.setObjectType(ObjectType.SUBSCRIPTION);
+      customField.setFieldName("measure_name");
+      customField.setFieldValue(i == SUBSCRIPTIONS - 1 ? "BulletsAPI" : "meter-" + i);
+      customFields.add(customField);
+    }
+    List<SubscriptionBundle> bundles =
+        Collections.singletonList(new SubscriptionBundleImp(subscriptions));
+    Mockito.when(subscriptionApi.getSubscriptionBundlesForAccountId(Mockito.any(), Mockito.any()))
+        .thenReturn(bundles);
+    Mockito.when(
+            customFieldUserApi.getCustomFieldsForAccountType(
+                Mockito.any(), Mockito.eq(ObjectType.SUBSCRIPTION), Mockito.any()))
+        .thenReturn(customFields);
+    Mockito.clearInvocations(customFieldUserApi, subscriptionApi);
+    stubAccountUsage();
+
+    List<RawUsageRecord> records =
+        usagePluginApiImpl.getUsageForAccount(
+            START,
+            END,
+            new UsageContextImpl(UUID.randomUUID(), context.getTenantId()),
+            null);
+
+    Assert.assertEquals(records.size(), 1);
+    Assert.assertEquals(
+        records.get(0).getSubscriptionId(), subscriptions.get(SUBSCRIPTIONS - 1).getId());
+    Mockito.verify(subscriptionApi, Mockito.times(1))
+        .getSubscriptionBundlesForAccountId(Mockito.any(), Mockito.any());
+    Mockito.verify(customFieldUserApi, Mockito.times(1))
+        .getCustomFieldsForAccountType(Mockito.any(), Mockito.any(), Mockito.any());
+    Mockito.verify(customFieldUserApi, Mockito.never())
+        .getCustomFieldsForObject(Mockito.any(), Mockito.any(), Mockito.any());
+  }
+
+  @Test
+  public void testSubscriptionsAreLookedUpWhileAmberfloIsQueried() throws Exception {
+    logger.info("[usage-plugin] testSubscriptionsAreLookedUpWhileAmberfloIsQueried");
+    List<SubscriptionBundle> bundles =
+        Collections.singletonList(
+            new SubscriptionBundleImp(
+                Collections.singletonList(new SubscriptionImp(UUID.randomUUID(), "bullets"))));
+    CustomFieldImp customField = new CustomFieldImp();
+    customField.setObjectId(bundles.get(0).getSubscriptions().get(0).getId());
+    customField.setObjectType(ObjectType.SUBSCRIPTION);
+    customField.setFieldName("measure_name");
+    customField.setFieldValue("BulletsAPI");
+    List<String> lookupThreads = new ArrayList<>();
+    Mockito.when(subscriptionApi.getSubscriptionBundlesForAccountId(Mockito.any(), Mockito.any()))
+        .thenAnswer(
+            invocation -> {
+              lookupThreads.add(Thread.currentThread().getName());
+              return bundles;
+            });
+    Mockito.when(
+            customFieldUserApi.getCustomFieldsForAccountType(
+                Mockito.any(), Mockito.eq(ObjectType.SUBSCRIPTION), Mockito.any()))
+        .thenReturn(Collections.singletonList(customField));
+    stubAccountUsage();
+
+    List<RawUsageRecord> records =
+        usagePluginApiImpl.getUsageForAccount(
+            START,
+            END,
+            new UsageContextImpl(UUID.randomUUID(), context.getTenantId()),
+            null);
+
+    Assert.assertEquals(records.size(), 1);
+    Assert.assertEquals(records.get(0).getSubscriptionId(), customField.getObjectId());
+    Assert.assertEquals(lookupThreads.size(), 1);
+    Assert.assertNotEquals(lookupThreads.get(0), Thread.currentThread().getName());
+  }
+
+  @Test
+  public void testRecordsAreSummedPerDayOfTheAccountTimeZone() {
+    logger.info("[usage-plugin] testRecordsAreSummedPerDayOfTheAccountTimeZone");
+    usageConfigProperties.setRecordAggregation("DAY");
+    // 4 hours behind UTC, the first two events happen on March 31st for the account
+    Mockito.when(account.getTimeZone()).thenReturn(DateTimeZone.forID("America/Puerto_Rico"));
+    DateTime start = new DateTime(2023, 4, 1, 0, 0, DateTimeZone.UTC);
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo("test"))
+            .withQueryParam(METER_API_NAME_PARAM, absent())
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader(CONTENT_TYPE, CONTENT_DATA)
+                    .withBody(
+                        "{\"columns\":[\"customerId\",\"measure_name\",\"sourceTimeInMillis\","
+                            + "\"measure_value::double\"],\"rows\":["
+                            + usageRow(start.plusHours(2), "1.5")
+                            + ","
+                            + usageRow(start.plusHours(3), "2.5")
+                            + ","
+                            + usageRow(start.plusHours(5), "4.0")
+                            + ","
+                            + usageRow(start.plusHours(20), "0.25")
+                            + "],\"nextPageToken\":null}")));
+    UsageContext usageContext = new UsageContextImpl(UUID.randomUUID(), context.getTenantId());
+
+    List<RawUsageRecord> records =
+        usagePluginApiImpl.getUsageForAccount(start, start.plusDays(1), usageContext, null);
+
+    Assert.assertEquals(records.size(), 2);
+    // The total of March 31st is dated at the start of the call
+    Assert.assertEquals(records.get(0).getDate().getMillis(), start.getMillis());
+    Assert.assertEquals(records.get(0).getAmount(), new BigDecimal("4.0"));
+    Assert.assertEquals(records.get(1).getDate().getMillis(), start.plusHours(4).getMillis());
+    Assert.assertEquals(records.get(1).getAmount(), new BigDecimal("4.25"));
+    Assert.assertEquals(
+        records.get(1).getSubscriptionId(),
+        UUID.fromString("a35132c1-3d28-45e3-ae98-101ea4211663"));
+
+    // The same usage gets the same tracking ids
+    List<RawUsageRecord> again =
+        usagePluginApiImpl.getUsageForAccount(start, start.plusDays(1), usageContext, null);
+    Assert.assertEquals(again.get(0).getTrackingId(), records.get(0).getTrackingId());
+    Assert.assertEquals(again.get(1).getTrackingId(), records.get(1).getTrackingId());
+
+    // A late event changes the total of April 1st, not its tracking id
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo("test"))
+            .withQueryParam(METER_API_NAME_PARAM, absent())
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader(CONTENT_TYPE, CONTENT_DATA)
+                    .withBody(
+                        "{\"columns\":[\"customerId\",\"measure_name\",\"sourceTimeInMillis\","
+                            + "\"measure_value::double\"],\"rows\":["
+                            + usageRow(start.plusHours(2), "1.5")
+                            + ","
+                            + usageRow(start.plusHours(3), "2.5")
+                            + ","
+                            + usageRow(start.plusHours(5), "4.0")
+                            + ","
+                            + usageRow(start.plusHours(20), "0.25")
+                            + ","
+                            + usageRow(start.plusHours(21), "1.0")
+                            + "],\"nextPageToken\":null}")));
+    List<RawUsageRecord> late =
+        usagePluginApiImpl.getUsageForAccount(start, start.plusDays(1), usageContext, null);
+    Assert.assertEquals(late.get(1).getAmount(), new BigDecimal("5.25"));
+    Assert.assertEquals(late.get(1).getTrackingId(), records.get(1).getTrackingId());
+  }
+
+  @Test
+  public void testIdenticalEventsKeepDistinctTrackingIdsAcrossAPageBoundary() {
+    logger.info("[usage-plugin] testIdenticalEventsKeepDistinctTrackingIdsAcrossAPageBoundary");
+    DateTime start = new DateTime(2023, 4, 1, 0, 0, DateTimeZone.UTC);
+    // Two identical events within the first page, two more on either side of the boundary
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo("test"))
+            .withQueryParam(METER_API_NAME_PARAM, absent())
+            .withQueryParam(NEXT_PAGE_TOKEN_PARAM, absent())
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader(CONTENT_TYPE, CONTENT_DATA)
+                    .withBody(
+                        "{\"columns\":[\"customerId\",\"measure_name\",\"sourceTimeInMillis\","
+                            + "\"measure_value::double\"],\"rows\":["
+                            + usageRow(start.plusHours(1), "1.5")
+                            + ","
+                            + usageRow(start.plusHours(1), "1.5")
+                            + ","
+                            + usageRow(start.plusHours(2), "2.0")
+                            + "],\"nextPageToken\":\"page-2\"}")));
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo("test"))
+            .withQueryParam(METER_API_NAME_PARAM, absent())
+            .withQueryParam(NEXT_PAGE_TOKEN_PARAM, equalTo("page-2"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader(CONTENT_TYPE, CONTENT_DATA)
+                    .withBody(
+                        "{\"columns\":[\"customerId\",\"measure_name\",\"sourceTimeInMillis\","
+                            + "\"measure_value::double\"],\"rows\":["
+                            + usageRow(start.plusHours(2), "2.0")
+                            + ","
+                            + usageRow(start.plusHours(3), "0.5")
+                            + "],\"nextPageToken\":null}")));
+    UsageContext usageContext = new UsageContextImpl(UUID.randomUUID(), context.getTenantId());
+
+    List<RawUsageRecord> records =
+        usagePluginApiImpl.getUsageForAccount(start, start.plusDays(1), usageContext, null);
+
+    Assert.assertEquals(records.size(), 5);
+    Assert.assertEquals(records.get(0).getDate(), records.get(1).getDate());
+    Assert.assertNotEquals(records.get(0).getTrackingId(), records.get(1).getTrackingId());
+    Assert.assertEquals(records.get(2).getDate(), records.get(3).getDate());
+    Assert.assertEquals(records.get(2).getAmount(), new BigDecimal("2.0"));
+    Assert.assertEquals(records.get(3).getAmount(), new BigDecimal("2.0"));
+    Assert.assertNotEquals(records.get(2).getTrackingId(), records.get(3).getTrackingId());
+    Assert.assertEquals(records.get(4).getAmount(), new BigDecimal("0.5"));
+
+    // The same rows get the same tracking ids
+    List<RawUsageRecord> again =
+        usagePluginApiImpl.getUsageForAccount(start, start.plusDays(1), usageContext, null);
+    Assert.assertEquals(again.size(), records.size());
+    for (int i = 0; i < records.size(); i++) {
+      Assert.assertEquals(again.get(i).getTrackingId(), records.get(i).getTrackingId());
+    }
+  }
+
+  private static String usageRow(DateTime sourceTime, String measureValue) {
+    return "[\"test\",\"test\",\"" + sourceTime.getMillis() + "\",\"" + measureValue + "\"]";
+  }
+
+  // Usage of the whole account of external key "test", one BulletsAPI row
+  private static void stubAccountUsage() {
+    stubFor(
+        get(urlPathEqualTo(ENDPOINT_PATH))
+            .withQueryParam(CUSTOMER_ID_PARAM, equalTo("test"))
+            .withQueryParam(METER_API_NAME_PARAM, absent())
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader(CONTENT_TYPE, CONTENT_DATA)
+                    .withBody(
+                        "{\"columns\":[\"customerId\",\"measure_name\",\"sourceTimeInMillis\","
+                            + "\"measure_value::double\"],\"rows\":[[\"test\",\"BulletsAPI\",\""
+                            + START.plusHours(1).getMillis()
+                            + "\",\"87.0\"]],\"nextPageToken\":null}")));
+  }
 }
 
 @Setter
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClientException;
+import org.killbill.billing.plugin.amberflo.usage.client.UsageRecordDecoder;
+import org.killbill.billing.plugin.amberflo.usage.client.UsageRowHandler;
+import org.testng.Assert;
+
+public class UsageRecordDecoderTest {
+
+  private final UsageRecordDecoder decoder = new UsageRecordDecoder();
+
+  @Test
+  public void testDecodesOnlyTheColumnsItNeeds() throws IOException {
+    String body =
+        "{\"columns\":[\"owner\",\"sourceTimeInMillis\",\"customerId\",\"uniqueId\","
+            + "\"measure_name\",\"measure_value::double\"],"
+            + "\"rows\":[[\"17212\",\"1680217660435\",\"a35132c1\",null,\"BulletsAPI\",\"87.0\"],"
+            + "[{\"nested\":[1,2]},1680203084267,\"a35132c1\",[3],\"RocksApi\",18.5]],"
+            + "\"nextPageToken\":\"page-2\",\"query\":{\"customerId\":\"a35132c1\"}}";
+
+    List<String> rows = new ArrayList<>();
+    String nextPageToken = decoder.decode(bytes(body), collectInto(rows));
+
+    Assert.assertEquals(nextPageToken, "page-2");
+    Assert.assertEquals(rows.size(), 2);
+    Assert.assertEquals(rows.get(0), "a35132c1|BulletsAPI|1680217660435|87.0");
+    Assert.assertEquals(rows.get(1), "a35132c1|RocksApi|1680203084267|18.5");
+  }
+
+  @Test
+  public void testRowsSentBeforeColumnsAreStillDecoded() throws IOException {
+    String body =
+        "{\"nextPageToken\":null,\"rows\":[[\"BulletsAPI\",\"10.0\",\"1680217660435\"]],"
+            + "\"columns\":[\"measure_name\",\"measure_value::double\",\"sourceTimeInMillis\"]}";
+
+    List<String> rows = new ArrayList<>();
+    String nextPageToken = decoder.decode(bytes(body), collectInto(rows));
+
+    Assert.assertNull(nextPageToken);
+    Assert.assertEquals(rows.size(), 1);
+    Assert.assertEquals(rows.get(0), "null|BulletsAPI|1680217660435|10.0");
+  }
+
+  @Test
+  public void testRowWithoutSourceTimeIsSkipped() throws IOException {
+    String body =
+        "{\"columns\":[\"measure_name\",\"measure_value::double\",\"sourceTimeInMillis\"],"
+            + "\"rows\":[[\"BulletsAPI\",\"10.0\",null],[\"BulletsAPI\",\"20.0\",\"oops\"],"
+            + "[\"BulletsAPI\",\"30.0\",\"1680217660435\"]]}";
+
+    List<String> rows = new ArrayList<>();
+    decoder.decode(bytes(body), collectInto(rows));
+
+    Assert.assertEquals(rows.size(), 1);
+    Assert.assertEquals(rows.get(0), "null|BulletsAPI|1680217660435|30.0");
+  }
+
+  @Test
+  public void testRowsOfAMeterShareTheSameStrings() throws IOException {
+    StringBuilder body =
+        new StringBuilder(
+            "{\"columns\":[\"customerId\",\"measure_name\",\"sourceTimeInMillis\","
+                + "\"measure_value::double\"],\"rows\":[");
+    for (int i = 0; i < 200; i++) {
+      body.append(i == 0 ? "" : ",")
+          .append("[\"a35132c1\",\"meter-")
+          .append(i % 100)
+          .append("\",\"")
+          .append(1680217660435L + i)
+          .append("\",\"1.0\"]");
+    }
+    body.append("]}");
+
+    List<String> customerIds = new ArrayList<>();
+    List<String> measureNames = new ArrayList<>();
+    decoder.decode(
+        bytes(body.toString()),
+        (customerId, measureName, sourceTimeInMillis, measureValue) -> {
+          customerIds.add(customerId);
+          measureNames.add(measureName);
+        });
+
+    Assert.assertEquals(measureNames.size(), 200);
+    for (int i = 0; i < 100; i++) {
+      Assert.assertEquals(measureNames.get(i), "meter-" + i);
+      Assert.assertSame(measureNames.get(i + 100), measureNames.get(i));
+      Assert.assertSame(customerIds.get(i + 100), customerIds.get(0));
+    }
+  }
+
+  @Test(expected = AmberfloClientException.class)
+  public void testMissingColumnIsRejected() throws IOException {
+    String body =
+        "{\"columns\":[\"measure_name\",\"sourceTimeInMillis\"],"
+            + "\"rows\":[[\"BulletsAPI\",\"1680217660435\"]]}";
+
+    decoder.decode(bytes(body), collectInto(new ArrayList<>()));
+  }
+
+  private static byte[] bytes(String body) {
+    return body.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static UsageRowHandler collectInto(List<String> rows) {
+    return (customerId, measureName, sourceTimeInMillis, measureValue) ->
+        rows.add(customerId + "|" + measureName + "|" + sourceTimeInMillis + "|" + measureValue);
+  }
+}
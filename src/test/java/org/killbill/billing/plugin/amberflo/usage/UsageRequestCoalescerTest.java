@@ -0,0 +1,246 @@
+/*
+ * Copyright 2023 Wovenware, Inc
+ *
+ * Wovenware licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.amberflo.usage;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+import org.killbill.billing.plugin.amberflo.usage.client.AmberfloClientException;
+import org.killbill.billing.plugin.amberflo.usage.client.Deadline;
+import org.killbill.billing.plugin.amberflo.usage.client.UsageRequestCoalescer;
+import org.testng.Assert;
+
+public class UsageRequestCoalescerTest {
+
+  private static final int CALLERS = 4;
+  private static final DateTime START = new DateTime(2023, 4, 1, 0, 0, DateTimeZone.UTC);
+  private static final DateTime END = START.plusMonths(1);
+
+  private final UsageRequestCoalescer coalescer = new UsageRequestCoalescer();
+  private final UsageRequestCoalescer.Key key =
+      new UsageRequestCoalescer.Key(UUID.randomUUID(), "test", null, START, END);
+
+  @Test
+  public void testConcurrentCallersShareOneFetch() throws Exception {
+    AtomicInteger fetches = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+
+    ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+    try {
+      Future<?>[] callers = new Future<?>[CALLERS];
+      AtomicInteger[] rows = new AtomicInteger[CALLERS];
+      for (int i = 0; i < CALLERS; i++) {
+        AtomicInteger callerRows = rows[i] = new AtomicInteger();
+        callers[i] =
+            executor.submit(
+                () ->
+                    coalescer.fetch(
+                        key,
+                        Deadline.never(),
+                        handler -> {
+                          fetches.incrementAndGet();
+                          await(release);
+                          handler.onRow("test", "BulletsAPI", START.getMillis(), "1.0");
+                          handler.onRow("test", "BulletsAPI", START.getMillis() + 1, "2.0");
+                        },
+                        (customerId, measureName, sourceTimeInMillis, measureValue) ->
+                            callerRows.incrementAndGet()));
+      }
+
+      // Give every caller the time to join the fetch before letting it finish
+      Thread.sleep(200);
+      release.countDown();
+      for (int i = 0; i < CALLERS; i++) {
+        callers[i].get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(rows[i].get(), 2);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    Assert.assertEquals(fetches.get(), 1);
+  }
+
+  @Test
+  public void testRowsOfASingleCallerAreStreamed() {
+    AtomicInteger rows = new AtomicInteger();
+    coalescer.fetch(
+        key,
+        Deadline.never(),
+        handler -> {
+          // Each row reaches the caller before the next one is fetched, nothing is kept aside
+          for (int i = 0; i < 3; i++) {
+            handler.onRow("test", "BulletsAPI", START.getMillis() + i, "1.0");
+            Assert.assertEquals(rows.get(), i + 1);
+          }
+        },
+        (customerId, measureName, sourceTimeInMillis, measureValue) -> rows.incrementAndGet());
+    Assert.assertEquals(rows.get(), 3);
+  }
+
+  @Test
+  public void testCallerArrivingAfterTheFirstRowFetchesOnItsOwn() throws Exception {
+    AtomicInteger fetches = new AtomicInteger();
+    CountDownLatch firstRowSent = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      AtomicInteger leaderRows = new AtomicInteger();
+      Future<?> leader =
+          executor.submit(
+              () ->
+                  coalescer.fetch(
+                      key,
+                      Deadline.never(),
+                      handler -> {
+                        fetches.incrementAndGet();
+                        handler.onRow("test", "BulletsAPI", START.getMillis(), "1.0");
+                        firstRowSent.countDown();
+                        await(release);
+                        handler.onRow("test", "BulletsAPI", START.getMillis() + 1, "2.0");
+                      },
+                      (customerId, measureName, sourceTimeInMillis, measureValue) ->
+                          leaderRows.incrementAndGet()));
+      await(firstRowSent);
+
+      AtomicInteger rows = new AtomicInteger();
+      coalescer.fetch(
+          key,
+          Deadline.never(),
+          handler -> {
+            fetches.incrementAndGet();
+            handler.onRow("test", "BulletsAPI", START.getMillis(), "1.0");
+            handler.onRow("test", "BulletsAPI", START.getMillis() + 1, "2.0");
+          },
+          (customerId, measureName, sourceTimeInMillis, measureValue) -> rows.incrementAndGet());
+      Assert.assertEquals(rows.get(), 2);
+
+      release.countDown();
+      leader.get(5, TimeUnit.SECONDS);
+      Assert.assertEquals(leaderRows.get(), 2);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    Assert.assertEquals(fetches.get(), 2);
+  }
+
+  @Test
+  public void testFailureIsSharedAndNotRemembered() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<?> leader =
+          executor.submit(
+              () ->
+                  coalescer.fetch(
+                      key,
+                      Deadline.never(),
+                      handler -> {
+                        await(release);
+                        throw new AmberfloClientException("Amberflo answered 500");
+                      },
+                      (customerId, measureName, sourceTimeInMillis, measureValue) -> {}));
+      Thread.sleep(100);
+      Future<?> follower =
+          executor.submit(
+              () ->
+                  coalescer.fetch(
+                      key,
+                      Deadline.never(),
+                      handler -> Assert.fail("The follower should join the running fetch"),
+                      (customerId, measureName, sourceTimeInMillis, measureValue) -> {}));
+      Thread.sleep(100);
+      release.countDown();
+
+      for (Future<?> caller : new Future<?>[] {leader, follower}) {
+        try {
+          caller.get(5, TimeUnit.SECONDS);
+          Assert.fail("Both callers should see the failure");
+        } catch (ExecutionException e) {
+          Assert.assertTrue(e.getCause() instanceof AmberfloClientException);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // Once over, the next caller fetches again
+    AtomicInteger fetches = new AtomicInteger();
+    coalescer.fetch(
+        key,
+        Deadline.never(),
+        handler -> fetches.incrementAndGet(),
+        (customerId, measureName, sourceTimeInMillis, measureValue) -> {});
+    Assert.assertEquals(fetches.get(), 1);
+  }
+
+  @Test
+  public void testFollowerStopsWaitingAtItsDeadline() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> leader =
+          executor.submit(
+              () ->
+                  coalescer.fetch(
+                      key,
+                      Deadline.never(),
+                      handler -> await(release),
+                      (customerId, measureName, sourceTimeInMillis, measureValue) -> {}));
+      Thread.sleep(100);
+
+      long startedAt = System.currentTimeMillis();
+      try {
+        coalescer.fetch(
+            key,
+            Deadline.after(200),
+            handler -> Assert.fail("The follower should join the running fetch"),
+            (customerId, measureName, sourceTimeInMillis, measureValue) -> {});
+        Assert.fail("The follower should give up once its budget is spent");
+      } catch (AmberfloClientException e) {
+        Assert.assertTrue(e.getMessage().contains("budget"));
+      }
+      Assert.assertTrue(System.currentTimeMillis() - startedAt < 2000);
+
+      // The leader is not affected by the follower giving up
+      release.countDown();
+      leader.get(5, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}